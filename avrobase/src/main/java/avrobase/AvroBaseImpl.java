@@ -9,14 +9,11 @@ import org.apache.avro.io.EncoderFactory;
 import org.apache.avro.specific.SpecificDatumReader;
 import org.apache.avro.specific.SpecificDatumWriter;
 import org.apache.avro.specific.SpecificRecord;
-import org.apache.commons.codec.binary.Hex;
 
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.nio.charset.Charset;
-import java.security.MessageDigest;
-import java.security.NoSuchAlgorithmException;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
 
@@ -139,18 +136,7 @@ public abstract class AvroBaseImpl<T extends SpecificRecord, K> implements AvroB
    * @return
    */
   protected String createSchemaKey(Schema schema, String doc) {
-    String schemaKey;
-    MessageDigest md;
-    try {
-      md = MessageDigest.getInstance("SHA-256");
-    } catch (NoSuchAlgorithmException e) {
-      md = null;
-    }
-    if (md == null) {
-      schemaKey = doc;
-    } else {
-      schemaKey = new String(Hex.encodeHex(md.digest(doc.getBytes())));
-    }
+    String schemaKey = SchemaRegistry.hash(doc);
     schemaCache.put(schemaKey, schema);
     hashCache.put(schema, schemaKey);
     return schemaKey;
@@ -177,7 +163,7 @@ public abstract class AvroBaseImpl<T extends SpecificRecord, K> implements AvroB
       Decoder d;
       switch (format) {
         case JSON:
-          d = decoderFactory.jsonDecoder(schema, new String(data, UTF8));
+          d = decoderFactory.jsonDecoder(schema, new String(data, offset, length, UTF8));
           break;
         case BINARY:
         default:
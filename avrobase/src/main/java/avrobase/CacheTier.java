@@ -0,0 +1,61 @@
+package avrobase;
+
+import org.apache.avro.specific.SpecificRecord;
+
+/**
+ * One level of cache in front of a store of record, e.g. an in-process cache or memcached.
+ * Rows keep the version the store gave them so that a tier never replaces a newer row with
+ * an older one.
+ * <p/>
+ * A reader that misses takes a lease on the row before it reads the store and presents it
+ * when it fills the tier. Invalidating the row revokes the lease, so a row read before a
+ * write or delete can't be filled in after the write invalidated it.
+ * <p/>
+ * User: sam
+ * Date: 7/8/11
+ * Time: 10:05 AM
+ */
+public interface CacheTier<T extends SpecificRecord, K> {
+  /**
+   * @param row
+   * @return the cached row with its store version or null if it isn't cached
+   * @throws AvroBaseException
+   */
+  Row<T, K> getCached(K row) throws AvroBaseException;
+
+  /**
+   * Cache the row unless a row with the same or a later version is already cached.
+   *
+   * @param row a row read from the store of record
+   * @throws AvroBaseException
+   */
+  void cache(Row<T, K> row) throws AvroBaseException;
+
+  /**
+   * Take a lease on a row that missed, shared with any other reader that missed it since
+   * the last invalidation.
+   *
+   * @param row
+   * @return token for cache(row, lease), 0 if the row is cached again already
+   * @throws AvroBaseException
+   */
+  long lease(K row) throws AvroBaseException;
+
+  /**
+   * Fill in a row read from the store of record after a miss. The row is only cached if the
+   * lease is still held, or if an older row has been cached since.
+   *
+   * @param row   a row read from the store of record after taking the lease
+   * @param lease token from lease(row)
+   * @throws AvroBaseException
+   */
+  void cache(Row<T, K> row, long lease) throws AvroBaseException;
+
+  /**
+   * Remove the row and revoke any lease on it.
+   *
+   * @param row
+   * @throws AvroBaseException
+   */
+  void invalidate(K row) throws AvroBaseException;
+}
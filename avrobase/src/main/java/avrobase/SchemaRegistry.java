@@ -0,0 +1,166 @@
+package avrobase;
+
+import org.apache.avro.Schema;
+import org.apache.commons.codec.binary.Hex;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+/**
+ * Two-way cache between schemas and the ids a backend stores them under. Lookups of known
+ * schemas and ids never lock. When an id or schema is missing, only one thread asks the
+ * backend's Store for it and every other thread asking for the same one waits for that
+ * answer instead of going to the store itself.
+ * <p/>
+ * User: sam
+ * Date: 7/1/11
+ * Time: 11:30 AM
+ */
+public class SchemaRegistry<I> {
+
+  /**
+   * Persistence of schemas for a particular backend.
+   */
+  public interface Store<I> {
+    /**
+     * @param id
+     * @return the schema stored under id or null if there is none
+     */
+    Schema load(I id) throws AvroBaseException;
+
+    /**
+     * Persist the schema if it isn't already and return its id. Must return the same id
+     * when called again for the same schema.
+     *
+     * @param schema
+     * @return
+     */
+    I store(Schema schema) throws AvroBaseException;
+  }
+
+  private final Store<I> store;
+  private final ConcurrentMap<I, Schema> schemas = new ConcurrentHashMap<I, Schema>();
+  private final ConcurrentMap<Schema, I> ids = new ConcurrentHashMap<Schema, I>();
+  private final ConcurrentMap<I, FutureTask<Schema>> loading = new ConcurrentHashMap<I, FutureTask<Schema>>();
+  private final ConcurrentMap<Schema, FutureTask<I>> storing = new ConcurrentHashMap<Schema, FutureTask<I>>();
+
+  public SchemaRegistry(Store<I> store) {
+    this.store = store;
+  }
+
+  /**
+   * @param id
+   * @return the schema with this id, loading it from the store if needed, or null if the
+   *         store doesn't have it
+   */
+  public Schema getSchema(final I id) throws AvroBaseException {
+    Schema schema = schemas.get(id);
+    if (schema != null) return schema;
+    return once(loading, id, new Callable<Schema>() {
+      @Override
+      public Schema call() throws Exception {
+        Schema schema = store.load(id);
+        if (schema != null) {
+          register(id, schema);
+        }
+        return schema;
+      }
+    });
+  }
+
+  /**
+   * @param schema
+   * @return the id of this schema, storing it first if needed
+   */
+  public I getId(final Schema schema) throws AvroBaseException {
+    I id = ids.get(schema);
+    if (id != null) return id;
+    return once(storing, schema, new Callable<I>() {
+      @Override
+      public I call() throws Exception {
+        I id = store.store(schema);
+        register(id, schema);
+        return id;
+      }
+    });
+  }
+
+  /**
+   * Add a schema that is already persisted, e.g. when loading all of them at startup.
+   *
+   * @param id
+   * @param schema
+   */
+  public void register(I id, Schema schema) {
+    schemas.put(id, schema);
+    ids.put(schema, id);
+  }
+
+  public void clear() {
+    schemas.clear();
+    ids.clear();
+  }
+
+  // Run the callable for this key unless another thread already is, then share its result
+
+  private static <K, V> V once(ConcurrentMap<K, FutureTask<V>> inFlight, K key, Callable<V> callable) throws AvroBaseException {
+    FutureTask<V> task = new FutureTask<V>(callable);
+    FutureTask<V> existing = inFlight.putIfAbsent(key, task);
+    if (existing == null) {
+      try {
+        task.run();
+      } finally {
+        inFlight.remove(key, task);
+      }
+      existing = task;
+    }
+    try {
+      return existing.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new AvroBaseException("Interrupted waiting for schema " + key, e);
+    } catch (ExecutionException e) {
+      Throwable cause = e.getCause();
+      if (cause instanceof AvroBaseException) {
+        throw (AvroBaseException) cause;
+      }
+      throw new AvroBaseException("Failed to load schema " + key, cause);
+    }
+  }
+
+  /**
+   * SHA-256 of the schema as hex, the key HAB, RAB and friends store schemas under.
+   *
+   * @param doc the schema json
+   * @return
+   */
+  public static String hash(String doc) {
+    MessageDigest md;
+    try {
+      md = MessageDigest.getInstance("SHA-256");
+    } catch (NoSuchAlgorithmException e) {
+      return doc;
+    }
+    return new String(Hex.encodeHex(md.digest(doc.getBytes())));
+  }
+
+  /**
+   * Parse a stored schema.
+   *
+   * @param id    where it was stored, for the error message
+   * @param bytes the schema json
+   * @return
+   */
+  public static Schema parse(Object id, byte[] bytes) throws AvroBaseException {
+    try {
+      return Schema.parse(new String(bytes, "UTF-8"));
+    } catch (Exception e) {
+      throw new AvroBaseException("Failed to deserialize schema: " + id, e);
+    }
+  }
+}
@@ -0,0 +1,127 @@
+package avrobase;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Hands out sequential ids from blocks leased from a SequenceStore with a single increment.
+ * The block size grows when blocks are used up quickly and shrinks when they last a long time
+ * so idle tables don't burn through ids. Ids left in a block when the process exits are never
+ * used and ids from different processes interleave, so sequences are unique but not dense.
+ * <p/>
+ * User: sam
+ * Date: 6/27/11
+ * Time: 4:10 PM
+ */
+public class SequenceAllocator {
+  public static final long DEFAULT_MAX_BLOCK = 1000;
+
+  // Aim to lease a new block about once per this many milliseconds
+  private static final long TARGET_LEASE_MS = 1000;
+
+  private final SequenceStore store;
+  private final long minBlock;
+  private final long maxBlock;
+  private volatile Block block;
+  private long blockSize;
+
+  private static class Block {
+    final AtomicLong next;
+    final long last;
+    final long leased = System.currentTimeMillis();
+    volatile boolean discarded;
+
+    Block(long first, long last) {
+      this.next = new AtomicLong(first);
+      this.last = last;
+    }
+  }
+
+  public SequenceAllocator(SequenceStore store) {
+    this(store, 1, DEFAULT_MAX_BLOCK);
+  }
+
+  /**
+   * @param store    where blocks are leased from
+   * @param minBlock smallest number of ids leased at once
+   * @param maxBlock largest number of ids leased at once, use minBlock for a fixed size
+   */
+  public SequenceAllocator(SequenceStore store, long minBlock, long maxBlock) {
+    if (minBlock < 1 || maxBlock < minBlock) {
+      throw new IllegalArgumentException("Invalid block sizes: " + minBlock + ", " + maxBlock);
+    }
+    this.store = store;
+    this.minBlock = minBlock;
+    this.maxBlock = maxBlock;
+    this.blockSize = minBlock;
+  }
+
+  /**
+   * @return the next id, only goes to the store when the current block is used up
+   * @throws AvroBaseException
+   */
+  public long next() throws AvroBaseException {
+    do {
+      Block current = block;
+      if (current != null) {
+        long id = current.next.getAndIncrement();
+        if (id <= current.last && !current.discarded) {
+          return id;
+        }
+      }
+      lease(current);
+    } while (true);
+  }
+
+  // Only one thread leases a replacement for an exhausted block
+
+  private synchronized void lease(Block exhausted) throws AvroBaseException {
+    if (block != exhausted) return;
+    if (exhausted != null) {
+      long lasted = System.currentTimeMillis() - exhausted.leased;
+      if (lasted < TARGET_LEASE_MS) {
+        blockSize = Math.min(maxBlock, blockSize * 2);
+      } else if (lasted > TARGET_LEASE_MS * 10) {
+        blockSize = Math.max(minBlock, blockSize / 2);
+      }
+    }
+    long size = blockSize;
+    long last = store.increment(size);
+    block = new Block(last - size + 1, last);
+  }
+
+  /**
+   * Drop the ids left in the current block so that the next id comes from a new lease, e.g.
+   * after the store's counter has been moved.
+   */
+  public synchronized void discard() {
+    Block current = block;
+    if (current != null) {
+      current.discarded = true;
+      block = null;
+    }
+  }
+
+  /**
+   * @return the number of ids that will be leased next time
+   */
+  public synchronized long getBlockSize() {
+    return blockSize;
+  }
+
+  /**
+   * Reverse the decimal digits of the id so consecutive ids are spread across the key space.
+   *
+   * @param id
+   * @return
+   */
+  public static byte[] reversed(long id) {
+    byte[] row = String.valueOf(id).getBytes();
+    int length = row.length;
+    for (int i = 0; i < length / 2; i++) {
+      byte tmp = row[i];
+      row[i] = row[length - i - 1];
+      row[length - i - 1] = tmp;
+    }
+    return row;
+  }
+}
@@ -0,0 +1,19 @@
+package avrobase;
+
+/**
+ * The durable counter behind a SequenceAllocator, e.g. an HBase counter column or a MySQL row.
+ * <p/>
+ * User: sam
+ * Date: 6/27/11
+ * Time: 4:02 PM
+ */
+public interface SequenceStore {
+  /**
+   * Atomically add amount to the counter.
+   *
+   * @param amount
+   * @return the new value of the counter, the caller owns the ids after the old value up to it
+   * @throws AvroBaseException
+   */
+  long increment(long amount) throws AvroBaseException;
+}
@@ -2,16 +2,69 @@ package avrobase;
 
 import com.google.inject.Singleton;
 
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock-free generator of unique timestamps. The low bits of the nanosecond timestamp can be
+ * reserved for a node id, so that generators in different JVMs never collide, and for a
+ * stripe id, so that threads spread over separate counters instead of contending on one.
+ * Without stripes the timestamps are strictly increasing per generator, with stripes they
+ * are only strictly increasing per thread.
+ */
 @Singleton
 public class TimestampGenerator {
   protected static final int NS_PER_MS = 1000000;
+
+  // Longs per cache line so each stripe counter sits on its own line
+  private static final int PADDING = 8;
+
   long startMillis = System.currentTimeMillis();
   long startMillisInNanos = startMillis * NS_PER_MS;
   long startNanos = System.nanoTime();
-  long last;
+
+  private final int lowBits;
+  private final long nodeId;
+  private final int stripes;
+  private final AtomicLongArray last;
+  private final AtomicInteger nextStripe = new AtomicInteger(0);
+  private final ThreadLocal<Integer> stripe = new ThreadLocal<Integer>() {
+    @Override
+    protected Integer initialValue() {
+      return (nextStripe.getAndIncrement() & Integer.MAX_VALUE) % stripes;
+    }
+  };
 
   public TimestampGenerator() {
-    this.last = 0;
+    this(0, 0, 0);
+  }
+
+  /**
+   * Embed a node id so multiple JVMs can generate timestamps for the same table.
+   *
+   * @param nodeId   unique id of this JVM, less than 2^nodeBits
+   * @param nodeBits number of low bits reserved for the node id
+   */
+  public TimestampGenerator(int nodeId, int nodeBits) {
+    this(nodeId, nodeBits, 0);
+  }
+
+  /**
+   * @param nodeId     unique id of this JVM, less than 2^nodeBits
+   * @param nodeBits   number of low bits reserved for the node id
+   * @param stripeBits number of low bits reserved for per-thread stripes
+   */
+  public TimestampGenerator(int nodeId, int nodeBits, int stripeBits) {
+    if (nodeBits < 0 || stripeBits < 0 || nodeBits + stripeBits > 20) {
+      throw new IllegalArgumentException("At most 20 bits can be reserved: " + nodeBits + " + " + stripeBits);
+    }
+    if (nodeId < 0 || nodeId >= 1 << nodeBits) {
+      throw new IllegalArgumentException("Node id does not fit in " + nodeBits + " bits: " + nodeId);
+    }
+    this.lowBits = nodeBits + stripeBits;
+    this.nodeId = (long) nodeId << stripeBits;
+    this.stripes = 1 << stripeBits;
+    this.last = new AtomicLongArray(stripes * PADDING);
   }
 
   /**
@@ -29,14 +82,22 @@ public class TimestampGenerator {
   }
 
   /**
-   * Return a timestamp accurate to nanoseconds. Never
-   * returns the same one twice given an increasing clock. Only
-   * works up to 1B/second.
-   * 
+   * Return a timestamp accurate to nanoseconds, or to 2^reserved bits nanoseconds when
+   * bits are reserved. Never returns the same one twice given an increasing clock. Only
+   * works up to 1B/second divided by 2^reserved bits per stripe.
+   *
    * @return
    */
   public long getTimestamp() {
-    long current = startMillisInNanos + (System.nanoTime() - startNanos);
-    return current <= last ? ++last : (last = current);
+    int s = stripes == 1 ? 0 : stripe.get();
+    int index = s * PADDING;
+    long current = (startMillisInNanos + (System.nanoTime() - startNanos)) >>> lowBits;
+    long next;
+    do {
+      long previous = last.get(index);
+      next = current <= previous ? previous + 1 : current;
+      if (last.compareAndSet(index, previous, next)) break;
+    } while (true);
+    return next << lowBits | nodeId | s;
   }
-}
\ No newline at end of file
+}
@@ -0,0 +1,92 @@
+package avrobase;
+
+import org.apache.avro.Schema;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+/**
+ * Test the schema registry caching and single-flight loading.
+ * <p/>
+ * User: sam
+ * Date: 7/1/11
+ * Time: 2:05 PM
+ */
+public class SchemaRegistryTest {
+  private static final Schema SCHEMA = Schema.parse("{\"type\":\"record\",\"name\":\"Test\",\"fields\":[{\"name\":\"a\",\"type\":\"int\"}]}");
+
+  static class SlowStore implements SchemaRegistry.Store<Integer> {
+    final ConcurrentHashMap<Integer, Schema> stored = new ConcurrentHashMap<Integer, Schema>();
+    final AtomicInteger loads = new AtomicInteger(0);
+    final AtomicInteger stores = new AtomicInteger(0);
+
+    @Override
+    public Schema load(Integer id) {
+      loads.incrementAndGet();
+      try {
+        Thread.sleep(100);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+      return stored.get(id);
+    }
+
+    @Override
+    public Integer store(Schema schema) {
+      stores.incrementAndGet();
+      stored.put(1, schema);
+      return 1;
+    }
+  }
+
+  @Test
+  public void testSingleFlight() throws Exception {
+    final SlowStore store = new SlowStore();
+    store.stored.put(5, SCHEMA);
+    final SchemaRegistry<Integer> registry = new SchemaRegistry<Integer>(store);
+    ExecutorService es = Executors.newFixedThreadPool(16);
+    List<Future<Schema>> futures = new ArrayList<Future<Schema>>();
+    for (int i = 0; i < 16; i++) {
+      futures.add(es.submit(new Callable<Schema>() {
+        @Override
+        public Schema call() throws Exception {
+          return registry.getSchema(5);
+        }
+      }));
+    }
+    for (Future<Schema> future : futures) {
+      assertEquals(SCHEMA, future.get());
+    }
+    es.shutdown();
+    assertEquals(1, store.loads.get());
+    // Cached both ways now
+    assertSame(registry.getSchema(5), registry.getSchema(5));
+    assertEquals(5, (int) registry.getId(SCHEMA));
+    assertEquals(0, store.stores.get());
+  }
+
+  @Test
+  public void testStoreAndMissing() {
+    SlowStore store = new SlowStore();
+    SchemaRegistry<Integer> registry = new SchemaRegistry<Integer>(store);
+    assertNull(registry.getSchema(2));
+    assertEquals(1, (int) registry.getId(SCHEMA));
+    assertEquals(1, (int) registry.getId(SCHEMA));
+    assertEquals(1, store.stores.get());
+    assertSame(SCHEMA, registry.getSchema(1));
+    registry.clear();
+    assertEquals(SCHEMA, registry.getSchema(1));
+    assertEquals(2, store.loads.get());
+  }
+}
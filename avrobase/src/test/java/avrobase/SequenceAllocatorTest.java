@@ -0,0 +1,96 @@
+package avrobase;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Test leasing blocks of ids.
+ * <p/>
+ * User: sam
+ * Date: 6/27/11
+ * Time: 5:30 PM
+ */
+public class SequenceAllocatorTest {
+  static class CountingStore implements SequenceStore {
+    final AtomicLong counter = new AtomicLong(0);
+    final AtomicInteger increments = new AtomicInteger(0);
+
+    @Override
+    public long increment(long amount) {
+      increments.incrementAndGet();
+      return counter.addAndGet(amount);
+    }
+  }
+
+  @Test
+  public void testSequential() {
+    CountingStore store = new CountingStore();
+    SequenceAllocator allocator = new SequenceAllocator(store, 10, 10);
+    for (int i = 1; i <= 100; i++) {
+      assertEquals(i, allocator.next());
+    }
+    assertEquals(10, store.increments.get());
+  }
+
+  @Test
+  public void testAdaptive() {
+    CountingStore store = new CountingStore();
+    SequenceAllocator allocator = new SequenceAllocator(store, 1, 1000);
+    for (int i = 0; i < 10000; i++) {
+      allocator.next();
+    }
+    assertEquals(1000, allocator.getBlockSize());
+    assertTrue(store.increments.get() < 30);
+  }
+
+  @Test
+  public void testConcurrent() throws InterruptedException {
+    final CountingStore store = new CountingStore();
+    final SequenceAllocator allocator = new SequenceAllocator(store, 1, 100);
+    final Set<Long> ids = Collections.newSetFromMap(new ConcurrentHashMap<Long, Boolean>());
+    List<Thread> threads = new ArrayList<Thread>();
+    for (int i = 0; i < 8; i++) {
+      Thread thread = new Thread() {
+        public void run() {
+          for (int j = 0; j < 10000; j++) {
+            ids.add(allocator.next());
+          }
+        }
+      };
+      threads.add(thread);
+      thread.start();
+    }
+    for (Thread thread : threads) {
+      thread.join();
+    }
+    assertEquals(80000, ids.size());
+    assertTrue(store.counter.get() >= 80000);
+  }
+
+  @Test
+  public void testDiscard() {
+    CountingStore store = new CountingStore();
+    SequenceAllocator allocator = new SequenceAllocator(store, 10, 10);
+    assertEquals(1, allocator.next());
+    // The counter moved elsewhere, ids 2 to 10 must not be handed out
+    store.counter.set(500);
+    allocator.discard();
+    assertEquals(501, allocator.next());
+    assertEquals(2, store.increments.get());
+  }
+
+  @Test
+  public void testReversed() {
+    assertEquals("4321", new String(SequenceAllocator.reversed(1234)));
+  }
+}
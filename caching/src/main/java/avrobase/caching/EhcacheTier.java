@@ -0,0 +1,110 @@
+package avrobase.caching;
+
+import avrobase.AvroBaseException;
+import avrobase.CacheTier;
+import avrobase.Row;
+import net.sf.ehcache.Cache;
+import net.sf.ehcache.Element;
+import org.apache.avro.specific.SpecificRecord;
+
+import java.io.Serializable;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * In-process cache tier. Rows are copied going in and coming out since they are mutable.
+ * Other processes don't invalidate it, so how stale it can get is bounded by the time to
+ * live of the cache. A lease is an element of its own in place of the row.
+ * <p/>
+ * User: sam
+ * Date: 7/8/11
+ * Time: 10:20 AM
+ */
+public class EhcacheTier<T extends SpecificRecord, K> implements CacheTier<T, K> {
+  private static final AtomicLong tokens = new AtomicLong();
+
+  private final Cacher.KeyMaker<K> keyMaker;
+  private final Cache cache;
+
+  // Held in place of a row that missed until the row is filled or invalidated
+  private static class Lease implements Serializable {
+    final long token;
+
+    Lease(long token) {
+      this.token = token;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      return o instanceof Lease && ((Lease) o).token == token;
+    }
+
+    @Override
+    public int hashCode() {
+      return (int) (token ^ (token >>> 32));
+    }
+  }
+
+  public EhcacheTier(Cacher.KeyMaker<K> keyMaker, Cache cache) {
+    this.keyMaker = keyMaker;
+    this.cache = cache;
+  }
+
+  @Override
+  public Row<T, K> getCached(K row) throws AvroBaseException {
+    Element element = cache.get(keyMaker.make(row));
+    Object cached = element == null ? null : element.getValue();
+    return cached instanceof Row ? ((Row<T, K>) cached).clone() : null;
+  }
+
+  @Override
+  public void cache(Row<T, K> row) throws AvroBaseException {
+    Element element = new Element(keyMaker.make(row.row), row.clone());
+    while (true) {
+      Element existing = cache.putIfAbsent(element);
+      if (existing == null) return;
+      if (isNewer(existing, row)) return;
+      if (cache.replace(existing, element)) return;
+    }
+  }
+
+  @Override
+  public long lease(K row) throws AvroBaseException {
+    Element element = new Element(keyMaker.make(row), new Lease(tokens.incrementAndGet()));
+    Element existing = cache.putIfAbsent(element);
+    if (existing == null) {
+      existing = element;
+    }
+    Object cached = existing.getValue();
+    return cached instanceof Lease ? ((Lease) cached).token : 0;
+  }
+
+  @Override
+  public void cache(Row<T, K> row, long lease) throws AvroBaseException {
+    Element element = new Element(keyMaker.make(row.row), row.clone());
+    while (true) {
+      Element existing = cache.get(element.getObjectKey());
+      // Invalidated since the lease was taken
+      if (existing == null) return;
+      Object cached = existing.getValue();
+      if (cached instanceof Lease) {
+        // Revoked and leased again since
+        if (((Lease) cached).token != lease) return;
+      } else if (isNewer(existing, row)) {
+        return;
+      }
+      if (cache.replace(existing, element)) return;
+    }
+  }
+
+  @Override
+  public void invalidate(K row) throws AvroBaseException {
+    cache.remove(keyMaker.make(row));
+  }
+
+  // Whether the element holds a row at the same or a later version
+
+  private static boolean isNewer(Element existing, Row<?, ?> row) {
+    Object cached = existing.getValue();
+    return cached instanceof Row && ((Row<?, ?>) cached).version >= row.version;
+  }
+}
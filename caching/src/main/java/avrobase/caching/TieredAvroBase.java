@@ -0,0 +1,153 @@
+package avrobase.caching;
+
+import avrobase.AvroBase;
+import avrobase.AvroBaseException;
+import avrobase.CacheTier;
+import avrobase.Creator;
+import avrobase.ForwardingAvroBase;
+import avrobase.Mutator;
+import avrobase.Row;
+import org.apache.avro.specific.SpecificRecord;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Layers of cache in front of a store of record, usually an in-process EhcacheTier and then
+ * MAB or RAB in front of MysqlAB or HAB. Reads try each tier in order, then the store, and
+ * fill the tiers they missed in on the way back. Every cached row carries the store's
+ * version and tiers only ever move to later versions. A read leases each tier it misses and
+ * fills it with that lease, so a row read before a write or delete invalidated it is dropped
+ * rather than cached.
+ * <p/>
+ * Writes go to the store and then, depending on the policy, either read the row back and
+ * write it through to every tier or just invalidate it in every tier so that the next read
+ * loads it. Scans aren't cached.
+ * <p/>
+ * User: sam
+ * Date: 7/8/11
+ * Time: 10:40 AM
+ */
+public class TieredAvroBase<T extends SpecificRecord, K> extends ForwardingAvroBase<T, K> {
+
+  public enum WritePolicy {
+    /**
+     * Cache rows as they are written, for tables that are read soon after writing.
+     */
+    WRITE_THROUGH,
+    /**
+     * Invalidate rows as they are written, for tables written more than they are read.
+     */
+    WRITE_AROUND
+  }
+
+  private final List<CacheTier<T, K>> tiers;
+  private final WritePolicy policy;
+
+  /**
+   * @param store  store of record
+   * @param tiers  fastest first
+   * @param policy
+   */
+  public TieredAvroBase(AvroBase<T, K> store, List<CacheTier<T, K>> tiers, WritePolicy policy) {
+    super(store);
+    this.tiers = new ArrayList<CacheTier<T, K>>(tiers);
+    this.policy = policy;
+  }
+
+  @Override
+  public Row<T, K> get(K row) throws AvroBaseException {
+    long[] leases = new long[tiers.size()];
+    for (int i = 0; i < tiers.size(); i++) {
+      CacheTier<T, K> tier = tiers.get(i);
+      Row<T, K> cached = tier.getCached(row);
+      if (cached != null) {
+        fill(cached, i, leases);
+        return cached;
+      }
+      leases[i] = tier.lease(row);
+    }
+    Row<T, K> stored = super.get(row);
+    if (stored != null) {
+      fill(stored, tiers.size(), leases);
+    }
+    return stored;
+  }
+
+  @Override
+  public K create(T value) throws AvroBaseException {
+    K row = super.create(value);
+    written(row);
+    return row;
+  }
+
+  @Override
+  public void put(K row, T value) throws AvroBaseException {
+    super.put(row, value);
+    written(row);
+  }
+
+  @Override
+  public boolean put(K row, T value, long version) throws AvroBaseException {
+    boolean put = super.put(row, value, version);
+    if (put) {
+      written(row);
+    } else {
+      // The version the caller read was stale, so may be the cached one
+      invalidate(row);
+    }
+    return put;
+  }
+
+  @Override
+  public void delete(K row) throws AvroBaseException {
+    super.delete(row);
+    invalidate(row);
+  }
+
+  @Override
+  public Row<T, K> mutate(K row, Mutator<T> tMutator) throws AvroBaseException {
+    Row<T, K> mutate = super.mutate(row, tMutator);
+    written(row);
+    return mutate;
+  }
+
+  @Override
+  public Row<T, K> mutate(K row, Mutator<T> tMutator, Creator<T> tCreator) throws AvroBaseException {
+    Row<T, K> mutate = super.mutate(row, tMutator, tCreator);
+    written(row);
+    return mutate;
+  }
+
+  // Cache the row in the tiers before the one it was found in, slowest first
+
+  private void fill(Row<T, K> row, int found, long[] leases) throws AvroBaseException {
+    for (int i = found - 1; i >= 0; i--) {
+      tiers.get(i).cache(row, leases[i]);
+    }
+  }
+
+  // Only the store knows the version it gave the row, so read it back to write it through,
+  // under leases so that a delete racing the read back isn't undone
+
+  private void written(K row) throws AvroBaseException {
+    if (policy == WritePolicy.WRITE_THROUGH) {
+      long[] leases = new long[tiers.size()];
+      for (int i = 0; i < tiers.size(); i++) {
+        leases[i] = tiers.get(i).lease(row);
+      }
+      Row<T, K> stored = super.get(row);
+      if (stored != null) {
+        fill(stored, tiers.size(), leases);
+        return;
+      }
+    }
+    invalidate(row);
+  }
+
+  private void invalidate(K row) throws AvroBaseException {
+    for (CacheTier<T, K> tier : tiers) {
+      tier.invalidate(row);
+    }
+  }
+}
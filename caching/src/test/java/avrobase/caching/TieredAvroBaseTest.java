@@ -0,0 +1,168 @@
+package avrobase.caching;
+
+import avrobase.AvroFormat;
+import avrobase.AvroBase;
+import avrobase.AvroBaseException;
+import avrobase.CacheTier;
+import avrobase.ForwardingAvroBase;
+import avrobase.Row;
+import avrobase.data.Beacon;
+import avrobase.file.FAB;
+import com.google.common.base.Supplier;
+import com.google.common.primitives.Longs;
+import net.sf.ehcache.Cache;
+import net.sf.ehcache.CacheManager;
+import org.junit.Test;
+
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Random;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertNull;
+
+/**
+ * Tiered caching test with two in-process tiers standing in for ehcache and memcached.
+ * <p/>
+ * User: sam
+ * Date: 7/8/11
+ * Time: 2:30 PM
+ */
+public class TieredAvroBaseTest {
+  Random r = new SecureRandom();
+
+  @Test
+  public void writeThrough() {
+    FAB<Beacon, byte[]> store = getStore();
+    CacheTier<Beacon, byte[]> l1 = getTier("writeThroughL1");
+    CacheTier<Beacon, byte[]> l2 = getTier("writeThroughL2");
+    TieredAvroBase<Beacon, byte[]> tiered = new TieredAvroBase<Beacon, byte[]>(store,
+        Arrays.asList(l1, l2), TieredAvroBase.WritePolicy.WRITE_THROUGH);
+
+    byte[] row = tiered.create(getBeacon("first"));
+    Row<Beacon, byte[]> stored = store.get(row);
+    assertEquals(stored.version, l1.getCached(row).version);
+    assertEquals(stored.version, l2.getCached(row).version);
+
+    tiered.put(row, getBeacon("second"), stored.version);
+    stored = store.get(row);
+    assertEquals(stored.version, l1.getCached(row).version);
+    assertEquals("second", l2.getCached(row).value.browser.toString());
+
+    // An older row never replaces a newer one
+    l1.cache(new Row<Beacon, byte[]>(getBeacon("first"), row, stored.version - 1));
+    assertEquals("second", tiered.get(row).value.browser.toString());
+
+    tiered.delete(row);
+    assertNull(l1.getCached(row));
+    assertNull(l2.getCached(row));
+    assertNull(tiered.get(row));
+  }
+
+  @Test
+  public void writeAround() {
+    FAB<Beacon, byte[]> store = getStore();
+    CacheTier<Beacon, byte[]> l1 = getTier("writeAroundL1");
+    CacheTier<Beacon, byte[]> l2 = getTier("writeAroundL2");
+    TieredAvroBase<Beacon, byte[]> tiered = new TieredAvroBase<Beacon, byte[]>(store,
+        Arrays.asList(l1, l2), TieredAvroBase.WritePolicy.WRITE_AROUND);
+
+    byte[] row = tiered.create(getBeacon("first"));
+    assertNull(l1.getCached(row));
+    assertNull(l2.getCached(row));
+
+    // Found in L2 and filled into L1 on the way back
+    Row<Beacon, byte[]> stored = store.get(row);
+    l2.cache(stored);
+    assertEquals(stored.version, tiered.get(row).version);
+    assertEquals(stored.version, l1.getCached(row).version);
+
+    tiered.put(row, getBeacon("second"));
+    assertNull(l1.getCached(row));
+    assertNull(l2.getCached(row));
+    assertEquals("second", tiered.get(row).value.browser.toString());
+    assertEquals(store.get(row).version, l2.getCached(row).version);
+  }
+
+  @Test
+  public void staleFill() {
+    FAB<Beacon, byte[]> fab = getStore();
+    InterleavedStore store = new InterleavedStore(fab);
+    CacheTier<Beacon, byte[]> l1 = getTier("staleFillL1");
+    CacheTier<Beacon, byte[]> l2 = getTier("staleFillL2");
+    final TieredAvroBase<Beacon, byte[]> tiered = new TieredAvroBase<Beacon, byte[]>(store,
+        Arrays.asList(l1, l2), TieredAvroBase.WritePolicy.WRITE_AROUND);
+
+    // A write lands between the read of the first row and filling it in
+    final byte[] row = tiered.create(getBeacon("first"));
+    store.afterGet = new Runnable() {
+      @Override
+      public void run() {
+        tiered.put(row, getBeacon("second"));
+      }
+    };
+    assertEquals("first", tiered.get(row).value.browser.toString());
+    assertNull(l1.getCached(row));
+    assertNull(l2.getCached(row));
+    assertEquals("second", tiered.get(row).value.browser.toString());
+    assertEquals(fab.get(row).version, l1.getCached(row).version);
+
+    // Nor does a deleted row come back
+    tiered.put(row, getBeacon("third"));
+    store.afterGet = new Runnable() {
+      @Override
+      public void run() {
+        tiered.delete(row);
+      }
+    };
+    assertEquals("third", tiered.get(row).value.browser.toString());
+    assertNull(l1.getCached(row));
+    assertNull(l2.getCached(row));
+    assertNull(tiered.get(row));
+  }
+
+  // Runs a write once, right after the next read from the store returns
+  private static class InterleavedStore extends ForwardingAvroBase<Beacon, byte[]> {
+    Runnable afterGet;
+
+    InterleavedStore(AvroBase<Beacon, byte[]> store) {
+      super(store);
+    }
+
+    @Override
+    public Row<Beacon, byte[]> get(byte[] row) throws AvroBaseException {
+      Row<Beacon, byte[]> stored = super.get(row);
+      Runnable write = afterGet;
+      afterGet = null;
+      if (write != null) {
+        write.run();
+      }
+      return stored;
+    }
+  }
+
+  private FAB<Beacon, byte[]> getStore() {
+    return new FAB<Beacon, byte[]>("/tmp/tieredtest/beacons", "/tmp/tieredtest/schemas", new Supplier<byte[]>() {
+      @Override
+      public byte[] get() {
+        return Longs.toByteArray(r.nextLong());
+      }
+    }, Beacon.SCHEMA$, AvroFormat.BINARY, null);
+  }
+
+  private CacheTier<Beacon, byte[]> getTier(String name) {
+    Cache cache = new Cache(name, 1000, false, true, -1, -1);
+    CacheManager.create().addCache(cache);
+    return new EhcacheTier<Beacon, byte[]>(new BytesKeyMaker(), cache);
+  }
+
+  private Beacon getBeacon(String browser) {
+    Beacon beacon = new Beacon();
+    beacon.browser = browser;
+    beacon.login = "login";
+    beacon.useragent = "useragent";
+    beacon.parameters = new HashMap<CharSequence, CharSequence>();
+    return beacon;
+  }
+}
@@ -7,6 +7,7 @@ import avrobase.Creator;
 import avrobase.Mutator;
 import avrobase.ReversableFunction;
 import avrobase.Row;
+import avrobase.SchemaRegistry;
 import com.google.common.base.Supplier;
 import jinahya.rfc4648.Base32HEX;
 import org.apache.avro.AvroTypeException;
@@ -58,6 +59,17 @@ public class FAB<T extends SpecificRecord, K> extends AvroBaseImpl<T, K> {
   private final Base32HEX base32hex = new Base32HEX();
 
   private final Map<String, ReadWriteLock> locks = new ConcurrentHashMap<String, ReadWriteLock>();
+  private final SchemaRegistry<String> schemas = new SchemaRegistry<String>(new SchemaRegistry.Store<String>() {
+    @Override
+    public Schema load(String hash) throws AvroBaseException {
+      return loadSchema(hash);
+    }
+
+    @Override
+    public String store(Schema schema) throws AvroBaseException {
+      return storeSchema(schema);
+    }
+  });
   private Supplier<K> supplier;
   private ReversableFunction<K, byte[]> transformer;
 
@@ -152,16 +164,9 @@ public class FAB<T extends SpecificRecord, K> extends AvroBaseImpl<T, K> {
       }
       long version = ByteBuffer.wrap(bytes).getLong();
       // Get the schema
-      Schema schema = schemaCache.get(hash);
+      Schema schema = schemas.getSchema(hash);
       if (schema == null) {
-        File schemaFile = new File(schemaDir, hash);
-        try {
-          schema = Schema.parse(new FileInputStream(schemaFile));
-        } catch (IOException ioe) {
-          throw new AvroBaseException("Failed to read schema for hash: " + hash + " row: " + row, ioe);
-        }
-        schemaCache.put(hash, schema);
-        hashCache.put(schema, hash);
+        throw new AvroBaseException("Failed to find schema for hash: " + hash + " row: " + row);
       }
       try {
         DecoderFactory decoderFactory = new DecoderFactory();
@@ -190,6 +195,42 @@ public class FAB<T extends SpecificRecord, K> extends AvroBaseImpl<T, K> {
     }
   }
 
+  // Read and write the schema files for the registry, named by the hash of the schema
+
+  private Schema loadSchema(String hash) throws AvroBaseException {
+    File schemaFile = new File(schemaDir, hash);
+    if (!schemaFile.exists()) return null;
+    try {
+      FileInputStream fis = new FileInputStream(schemaFile);
+      try {
+        return Schema.parse(fis);
+      } finally {
+        fis.close();
+      }
+    } catch (IOException e) {
+      throw new AvroBaseException("Failed to read schema for hash: " + hash, e);
+    }
+  }
+
+  private String storeSchema(Schema schema) throws AvroBaseException {
+    String doc = schema.toString();
+    String hash = SchemaRegistry.hash(doc);
+    File schemaFile = new File(schemaDir, hash);
+    if (!schemaFile.exists()) {
+      try {
+        FileOutputStream schemaOs = new FileOutputStream(schemaFile);
+        try {
+          schemaOs.write(doc.getBytes());
+        } finally {
+          schemaOs.close();
+        }
+      } catch (IOException e) {
+        throw new AvroBaseException("Failed to write schema: " + doc, e);
+      }
+    }
+    return hash;
+  }
+
   private Set<File> madedirs = new ConcurrentSkipListSet<File>();
 
   private File getFile(K row, boolean mkdirs) {
@@ -233,18 +274,7 @@ public class FAB<T extends SpecificRecord, K> extends AvroBaseImpl<T, K> {
       FileChannel channel = raf.getChannel();
       FileLock fileLock = channel.lock();
       try {
-        Schema schema = value.getSchema();
-        String hash = hashCache.get(schema);
-        if (hash == null) {
-          String doc = schema.toString();
-          hash = createSchemaKey(schema, doc);
-          File schemaFile = new File(schemaDir, hash);
-          if (!schemaFile.exists()) {
-            FileOutputStream schemaOs = new FileOutputStream(schemaFile);
-            schemaOs.write(doc.getBytes());
-            schemaOs.close();
-          }
-        }
+        String hash = schemas.getId(value.getSchema());
         File tmp = new File(file.getCanonicalPath() + ".tmp");
         BufferedOutputStream bos = new BufferedOutputStream(new FileOutputStream(tmp));
         bos.write(hash.getBytes());
@@ -294,7 +324,6 @@ public class FAB<T extends SpecificRecord, K> extends AvroBaseImpl<T, K> {
       FileChannel channel = raf.getChannel();
       FileLock fileLock = channel.lock();
       try {
-        Schema schema = value.getSchema();
         if (file.exists()) {
           raf.seek(HASH_LENGTH);
           byte[] bytes = new byte[8];
@@ -308,17 +337,7 @@ public class FAB<T extends SpecificRecord, K> extends AvroBaseImpl<T, K> {
             return false;
           }
         }
-        String hash = hashCache.get(schema);
-        if (hash == null) {
-          String doc = schema.toString();
-          hash = createSchemaKey(schema, doc);
-          File schemaFile = new File(schemaDir, hash);
-          if (!schemaFile.exists()) {
-            FileOutputStream schemaOs = new FileOutputStream(schemaFile);
-            schemaOs.write(doc.getBytes());
-            schemaOs.close();
-          }
-        }
+        String hash = schemas.getId(value.getSchema());
         File tmp = new File(file.getCanonicalPath() + ".tmp");
         BufferedOutputStream bos = new BufferedOutputStream(new FileOutputStream(tmp));
         bos.write(hash.getBytes());
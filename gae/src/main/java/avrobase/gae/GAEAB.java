@@ -5,6 +5,7 @@ import avrobase.AvroBaseException;
 import avrobase.Creator;
 import avrobase.Mutator;
 import avrobase.Row;
+import avrobase.SchemaRegistry;
 import com.google.appengine.api.datastore.AsyncDatastoreService;
 import com.google.appengine.api.datastore.Blob;
 import com.google.appengine.api.datastore.DatastoreService;
@@ -25,7 +26,6 @@ import java.util.Collection;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * Implementation on top of Google App Engine datastore. Supports only Long and String for keys.
@@ -67,8 +67,25 @@ public class GAEAB<T extends SpecificRecord, K> implements AvroBase<T, K> {
     }
   }
 
-  private Map<Long, Schema> schemas = new ConcurrentHashMap<Long, Schema>();
-  private Map<Schema, Long> reverseSchema = new ConcurrentHashMap<Schema, Long>();
+  private final SchemaRegistry<Long> schemas = new SchemaRegistry<Long>(new SchemaRegistry.Store<Long>() {
+    @Override
+    public Schema load(Long id) throws AvroBaseException {
+      try {
+        Entity schemaEntity = ds.get(KeyFactory.createKey(schemaEntityName, id));
+        Object json = schemaEntity.getProperty("schema");
+        return Schema.parse(json instanceof Text ? ((Text) json).getValue() : (String) json);
+      } catch (EntityNotFoundException e) {
+        return null;
+      }
+    }
+
+    @Override
+    public Long store(Schema schema) throws AvroBaseException {
+      Entity schemaEntity = new Entity(schemaEntityName);
+      schemaEntity.setProperty("schema", new Text(schema.toString()));
+      return ds.put(schemaEntity).getId();
+    }
+  });
 
   @Override
   public Row<T, K> get(K row) throws AvroBaseException {
@@ -77,13 +94,9 @@ public class GAEAB<T extends SpecificRecord, K> implements AvroBase<T, K> {
       Entity entity = ds.get(key);
       Map<String, Object> properties = entity.getProperties();
       long schemaId = (Long) properties.get("avrobase.schema");
-      Schema writerSchema = schemas.get(schemaId);
+      Schema writerSchema = schemas.getSchema(schemaId);
       if (writerSchema == null) {
-        Entity schemaEntity = ds.get(KeyFactory.createKey(schemaEntityName, schemaId));
-        if (schemaEntity == null) {
-          throw new AvroBaseException("Failed to find schema: " + schemaId);
-        }
-        writerSchema = Schema.parse((String) schemaEntity.getProperty("schema"));
+        throw new AvroBaseException("Failed to find schema: " + schemaId);
       }
       Schema schema = Schema.applyAliases(writerSchema, readerSchema);
       return new Row<T, K>((T) applyFields(entity, schema), row);
@@ -203,13 +216,7 @@ public class GAEAB<T extends SpecificRecord, K> implements AvroBase<T, K> {
 
   @Override
   public void put(K row, T value) throws AvroBaseException {
-    Long schemaId = reverseSchema.get(readerSchema);
-    if (schemaId == null) {
-      Key put = ds.put(new Entity(schemaEntityName));
-      long id = put.getId();
-      schemas.put(id, readerSchema);
-      reverseSchema.put(readerSchema, id);
-    }
+    Long schemaId = schemas.getId(readerSchema);
     Key key = getKey(row);
     Entity entity = applyFields(key, value, readerSchema);
 
@@ -5,60 +5,458 @@ import avrobase.AvroFormat;
 import avrobase.Row;
 import avrobase.mysql.KeyStrategy;
 import avrobase.mysql.MysqlAB;
+import com.google.code.hs4j.FindOperator;
 import com.google.code.hs4j.HSClient;
 import com.google.code.hs4j.IndexSession;
 import com.google.inject.Inject;
+import com.google.inject.name.Named;
 import org.apache.avro.Schema;
 import org.apache.avro.specific.SpecificRecord;
 
 import javax.sql.DataSource;
+import java.nio.charset.Charset;
+import java.sql.Connection;
+import java.sql.DatabaseMetaData;
 import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * HandlerSocket AvroBase is just a thin layer on top of Mysql with different access pattern for the
- * main lookup and scan cases.
+ * main lookup and scan cases. Gets, multi-gets and scans go through HandlerSocket. Writes go
+ * through JDBC unless a client for the HandlerSocket write port is set, in which case they
+ * are done with HandlerSocket inserts and version checked updates.
+ * <p/>
+ * Rows and values are binary, so they are passed to HandlerSocket as ISO-8859-1 strings and
+ * the clients must be configured with that encoding.
  * <p/>
  * User: sam
  * Date: 12/20/10
  * Time: 12:25 PM
  */
 public class HSAB<T extends SpecificRecord, K> extends MysqlAB<T, K> {
-  private IndexSession session;
+  public static final int DEFAULT_SESSIONS = 8;
+  public static final int MULTI_GET_BATCH = 100;
+  public static final int PUT_RETRIES = 10;
+
+  // How long to wait for an idle session before checking whether one can be opened again
+  private static final long SESSION_WAIT = 100;
+
+  // HandlerSocket reports the storage engine error, 121 is a duplicate key
+  private static final String DUPLICATE_KEY = "121";
+
+  private static final Charset BYTES = Charset.forName("ISO-8859-1");
+  private static final String[] COLUMNS = new String[]{"row", "schema_id", "version", "format", "avro"};
+  private static final String[] UPDATE_COLUMNS = new String[]{"schema_id", "version", "format", "avro"};
+  private static final String VERSION_INDEX = "row_version";
+
+  private final String database;
+  private final HSClient hsClient;
+  private volatile int sessions = DEFAULT_SESSIONS;
+  private SessionPool reads;
+  private SessionPool inserts;
+  private SessionPool updates;
 
   @Inject
   public HSAB(ExecutorService es, DataSource datasource, HSClient hsClient, String table, String family,
               String schemaTable, Schema schema, AvroFormat storageFormat, KeyStrategy<K> keytx) throws AvroBaseException {
     super(es, datasource, table, family, schemaTable, schema, storageFormat, keytx);
+    this.hsClient = hsClient;
     try {
-      String url = datasource.getConnection().getMetaData().getURL();
-      String database = url.substring(url.lastIndexOf("/") + 1);
-      session = hsClient.openIndexSession(database, mysqlTableName, "PRIMARY", new String[]{"schema_id", "version", "format", "avro"});
-    } catch (Exception e) {
-      throw new AvroBaseException("Failed to open index", e);
+      Connection connection = datasource.getConnection();
+      try {
+        String url = connection.getMetaData().getURL();
+        String database = url.substring(url.lastIndexOf("/") + 1);
+        int params = database.indexOf('?');
+        this.database = params == -1 ? database : database.substring(0, params);
+      } finally {
+        connection.close();
+      }
+    } catch (SQLException e) {
+      throw new AvroBaseException("Failed to find database", e);
     }
+    reads = new SessionPool(hsClient, "PRIMARY", COLUMNS);
+  }
+
+  /**
+   * Most index sessions opened on each HandlerSocket client, and so most concurrent requests.
+   * Applies to every pool whenever it is set.
+   *
+   * @param sessions
+   */
+  @Inject(optional = true)
+  public void setSessions(@Named("hsSessions") int sessions) {
+    if (sessions < 1) {
+      throw new IllegalArgumentException("sessions must be positive: " + sessions);
+    }
+    this.sessions = sessions;
+  }
+
+  /**
+   * Write through HandlerSocket with this client, connected to the write port. Version checked
+   * updates use an index on (row, version), which is added to the table if it is missing.
+   *
+   * @param writeClient
+   */
+  @Inject(optional = true)
+  public void setWriteClient(@Named("hsWriteClient") HSClient writeClient) throws AvroBaseException {
+    addVersionIndex();
+    inserts = new SessionPool(writeClient, "PRIMARY", COLUMNS);
+    updates = new SessionPool(writeClient, VERSION_INDEX, UPDATE_COLUMNS);
   }
 
   @Override
   public Row<T, K> get(byte[] row) throws AvroBaseException {
+    IndexSession session = reads.take();
     try {
-      ResultSet rs = session.find(new String[]{new String(row)});
+      ResultSet rs = session.find(new String[]{encode(row)});
+      Row<T, K> result = null;
       if (rs.next()) {
-        int schema_id = rs.getInt(1);
-        long version = rs.getLong(2);
-        AvroFormat format = AvroFormat.values()[rs.getByte(3)];
-        byte[] avro = rs.getBytes(4);
-        Schema schema = getSchema(schema_id);
-        if (schema != null) {
-          return new Row<T, K>(readValue(avro, schema, format), keytx.fromBytes(row), version);
-        } else {
-          throw new AvroBaseException("Failed to find schema: " + schema_id);
+        result = read(rs);
+        if (result == null) {
+          throw new AvroBaseException("Failed to find schema: " + rs.getInt(2));
         }
-      } else {
-        return null;
       }
+      reads.release(session);
+      return result;
+    } catch (AvroBaseException e) {
+      reads.release(session);
+      throw e;
     } catch (Exception e) {
+      reads.discard(session);
       throw new AvroBaseException("Failed to retrieve row", e);
     }
   }
+
+  /**
+   * Get many rows at once. The keys are split into batches that are looked up in parallel,
+   * each on its own index session.
+   *
+   * @param rows
+   * @return the rows in the same order as the keys, null where a row doesn't exist
+   */
+  public List<Row<T, K>> getAll(List<K> rows) throws AvroBaseException {
+    if (rows.size() <= MULTI_GET_BATCH) {
+      return find(rows);
+    }
+    List<Future<List<Row<T, K>>>> futures = new ArrayList<Future<List<Row<T, K>>>>();
+    for (int start = 0; start < rows.size(); start += MULTI_GET_BATCH) {
+      final List<K> batch = rows.subList(start, Math.min(rows.size(), start + MULTI_GET_BATCH));
+      futures.add(es.submit(new Callable<List<Row<T, K>>>() {
+        @Override
+        public List<Row<T, K>> call() throws Exception {
+          return find(batch);
+        }
+      }));
+    }
+    List<Row<T, K>> results = new ArrayList<Row<T, K>>(rows.size());
+    try {
+      for (Future<List<Row<T, K>>> future : futures) {
+        results.addAll(future.get());
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new AvroBaseException("Interrupted retrieving rows", e);
+    } catch (ExecutionException e) {
+      throw new AvroBaseException("Failed to retrieve rows", e.getCause());
+    } finally {
+      for (Future<List<Row<T, K>>> future : futures) {
+        future.cancel(true);
+      }
+    }
+    return results;
+  }
+
+  // Look up a batch of keys one after another on a single session
+
+  private List<Row<T, K>> find(List<K> rows) throws AvroBaseException {
+    List<Row<T, K>> results = new ArrayList<Row<T, K>>(rows.size());
+    IndexSession session = reads.take();
+    try {
+      for (K row : rows) {
+        ResultSet rs = session.find(new String[]{encode(keytx.toBytes(row))});
+        results.add(rs.next() ? read(rs) : null);
+      }
+      reads.release(session);
+      return results;
+    } catch (AvroBaseException e) {
+      reads.release(session);
+      throw e;
+    } catch (Exception e) {
+      reads.discard(session);
+      throw new AvroBaseException("Failed to retrieve rows", e);
+    }
+  }
+
+  /**
+   * Scan the range [startRow, stopRow) in row order with HandlerSocket finds, a page at a
+   * time. Each page after the first starts strictly after the last row of the one before.
+   *
+   * @param startRow
+   * @param stopRow
+   * @return
+   */
+  @Override
+  public Iterable<Row<T, K>> scan(final byte[] startRow, final byte[] stopRow) throws AvroBaseException {
+    return new Iterable<Row<T, K>>() {
+      @Override
+      public Iterator<Row<T, K>> iterator() {
+        return new HSScanner(startRow, stopRow);
+      }
+    };
+  }
+
+  @Override
+  public void put(byte[] row, T value) throws AvroBaseException {
+    if (inserts == null) {
+      super.put(row, value);
+      return;
+    }
+    // HandlerSocket can't increment on duplicate key, retry version checked writes instead
+    for (int attempt = 0; attempt < PUT_RETRIES; attempt++) {
+      if (put(row, value, version(row))) return;
+    }
+    throw new AvroBaseException("Failed to put row after " + PUT_RETRIES + " attempts");
+  }
+
+  @Override
+  public boolean put(byte[] row, T value, long version) throws AvroBaseException {
+    if (inserts == null) {
+      return super.put(row, value, version);
+    }
+    int schemaId = getSchemaId(value.getSchema());
+    byte[] serialized = serialize(value);
+    int format = storageFormat.ordinal();
+    boolean written;
+    if (version == 0) {
+      IndexSession session = inserts.take();
+      try {
+        written = session.insert(new String[]{encode(row), String.valueOf(schemaId), "1", String.valueOf(format), encode(serialized)});
+        inserts.release(session);
+      } catch (Exception e) {
+        if (isDuplicateKey(e)) {
+          inserts.release(session);
+          return false;
+        }
+        inserts.discard(session);
+        throw new AvroBaseException("Failed to insert row", e);
+      }
+    } else {
+      IndexSession session = updates.take();
+      try {
+        written = session.update(new String[]{encode(row), String.valueOf(version)},
+            new String[]{String.valueOf(schemaId), String.valueOf(version + 1), String.valueOf(format), encode(serialized)},
+            FindOperator.EQ) == 1;
+        updates.release(session);
+      } catch (Exception e) {
+        updates.discard(session);
+        throw new AvroBaseException("Failed to update row", e);
+      }
+    }
+    if (written) {
+      log(row, schemaId, format, serialized, version + 1);
+    }
+    return written;
+  }
+
+  // Current version of the row, 0 if it doesn't exist
+
+  private long version(byte[] row) throws AvroBaseException {
+    IndexSession session = reads.take();
+    try {
+      ResultSet rs = session.find(new String[]{encode(row)});
+      long version = rs.next() ? rs.getLong(3) : 0;
+      reads.release(session);
+      return version;
+    } catch (Exception e) {
+      reads.discard(session);
+      throw new AvroBaseException("Failed to retrieve version", e);
+    }
+  }
+
+  private Row<T, K> read(ResultSet rs) throws SQLException {
+    return readRow(rs.getBytes(1), rs.getInt(2), rs.getLong(3), rs.getInt(4), rs.getBytes(5));
+  }
+
+  private void addVersionIndex() throws AvroBaseException {
+    try {
+      Connection connection = datasource.getConnection();
+      try {
+        DatabaseMetaData metaData = connection.getMetaData();
+        ResultSet indexes = metaData.getIndexInfo(null, null, mysqlTableName, false, false);
+        boolean found = false;
+        while (indexes.next()) {
+          if (VERSION_INDEX.equals(indexes.getString("INDEX_NAME"))) {
+            found = true;
+          }
+        }
+        indexes.close();
+        if (!found) {
+          Statement statement = connection.createStatement();
+          statement.executeUpdate("CREATE INDEX " + VERSION_INDEX + " ON " + mysqlTableName + " (row, version)");
+          statement.close();
+        }
+      } finally {
+        connection.close();
+      }
+    } catch (SQLException e) {
+      throw new AvroBaseException("Failed to add version index", e);
+    }
+  }
+
+  // The error field ends the response, so it is the last field of the message
+
+  static boolean isDuplicateKey(Exception e) {
+    String message = e.getMessage();
+    if (message == null) return false;
+    String[] fields = message.trim().split("[\\s:]+");
+    return fields[fields.length - 1].equals(DUPLICATE_KEY);
+  }
+
+  private static String encode(byte[] bytes) {
+    return new String(bytes, BYTES);
+  }
+
+  private static int compare(byte[] a, byte[] b) {
+    int length = Math.min(a.length, b.length);
+    for (int i = 0; i < length; i++) {
+      int diff = (a[i] & 0xff) - (b[i] & 0xff);
+      if (diff != 0) return diff;
+    }
+    return a.length - b.length;
+  }
+
+  /**
+   * Index sessions opened on demand up to the current sessions limit. Callers wait for an idle
+   * one once the limit is reached and sessions that fail are thrown away rather than reused.
+   */
+  private class SessionPool {
+    private final HSClient client;
+    private final String index;
+    private final String[] columns;
+    private final BlockingQueue<IndexSession> idle = new LinkedBlockingQueue<IndexSession>();
+    private final AtomicInteger opened = new AtomicInteger(0);
+
+    SessionPool(HSClient client, String index, String[] columns) {
+      this.client = client;
+      this.index = index;
+      this.columns = columns;
+    }
+
+    IndexSession take() throws AvroBaseException {
+      // Sessions discarded while waiting make room to open a replacement
+      while (true) {
+        IndexSession session = idle.poll();
+        if (session != null) return session;
+        if (opened.incrementAndGet() <= sessions) {
+          try {
+            return client.openIndexSession(database, mysqlTableName, index, columns);
+          } catch (Exception e) {
+            opened.decrementAndGet();
+            throw new AvroBaseException("Failed to open index " + index, e);
+          }
+        }
+        opened.decrementAndGet();
+        try {
+          session = idle.poll(SESSION_WAIT, TimeUnit.MILLISECONDS);
+          if (session != null) return session;
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          throw new AvroBaseException("Interrupted waiting for an index session", e);
+        }
+      }
+    }
+
+    void release(IndexSession session) {
+      idle.offer(session);
+    }
+
+    void discard(IndexSession session) {
+      opened.decrementAndGet();
+    }
+  }
+
+  private class HSScanner implements Iterator<Row<T, K>> {
+    private final byte[] stopRow;
+    private byte[] from;
+    private boolean after;
+    private boolean done;
+    private List<Row<T, K>> page = new ArrayList<Row<T, K>>();
+    private int index;
+
+    HSScanner(byte[] startRow, byte[] stopRow) {
+      this.stopRow = stopRow;
+      from = startRow == null ? new byte[0] : startRow;
+    }
+
+    @Override
+    public boolean hasNext() {
+      while (index == page.size()) {
+        if (done) return false;
+        fetch();
+      }
+      return true;
+    }
+
+    @Override
+    public Row<T, K> next() {
+      if (!hasNext()) {
+        throw new NoSuchElementException();
+      }
+      return page.get(index++);
+    }
+
+    @Override
+    public void remove() {
+      throw new UnsupportedOperationException();
+    }
+
+    private void fetch() {
+      int pageSize = getScanPageSize();
+      page = new ArrayList<Row<T, K>>(pageSize);
+      index = 0;
+      IndexSession session = reads.take();
+      try {
+        // Strictly after the last row seen, which may have been deleted since
+        ResultSet rs = session.find(new String[]{encode(from)}, after ? FindOperator.GT : FindOperator.GE, pageSize, 0);
+        int count = 0;
+        while (rs.next()) {
+          count++;
+          byte[] row = rs.getBytes(1);
+          if (stopRow != null && compare(row, stopRow) >= 0) {
+            done = true;
+            break;
+          }
+          from = row;
+          after = true;
+          Row<T, K> result = read(rs);
+          if (result != null) {
+            page.add(result);
+          }
+        }
+        if (count < pageSize) {
+          done = true;
+        }
+        reads.release(session);
+      } catch (AvroBaseException e) {
+        reads.release(session);
+        throw e;
+      } catch (Exception e) {
+        reads.discard(session);
+        throw new AvroBaseException("Failed to scan rows", e);
+      }
+    }
+  }
 }
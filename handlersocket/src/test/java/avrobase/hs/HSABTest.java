@@ -19,6 +19,7 @@ import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.security.SecureRandom;
 import java.sql.SQLException;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
 import java.util.Random;
@@ -29,6 +30,8 @@ import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
 
 import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertFalse;
+import static junit.framework.Assert.assertTrue;
 
 /**
  * TODO: Edit this
@@ -38,6 +41,15 @@ import static junit.framework.Assert.assertEquals;
  * Time: 12:32 PM
  */
 public class HSABTest {
+  @Test
+  public void duplicateKey() {
+    assertTrue(HSAB.isDuplicateKey(new Exception("121")));
+    assertTrue(HSAB.isDuplicateKey(new Exception("1\t1\t121")));
+    assertFalse(HSAB.isDuplicateKey(new Exception("Connection to 10.0.0.121:9999 refused")));
+    assertFalse(HSAB.isDuplicateKey(new Exception("1\t1\t1121")));
+    assertFalse(HSAB.isDuplicateKey(new Exception()));
+  }
+
   @Test
   public void putGet() throws IOException, SQLException {
     AvroBase<User, byte[]> userHSAB = getHSAB();
@@ -47,6 +59,34 @@ public class HSABTest {
     assertEquals(user, test.value);
   }
 
+  @Test
+  public void getAllAndScan() throws IOException, SQLException {
+    HSAB<User, byte[]> userHSAB = getHSAB();
+    User user = getUser();
+    for (int i = 0; i < 250; i++) {
+      user.firstName = new Utf8("scan" + i);
+      userHSAB.put($("scan" + (1000 + i)), user);
+    }
+    List<byte[]> keys = new ArrayList<byte[]>();
+    for (int i = 0; i < 250; i++) {
+      keys.add($("scan" + (1000 + i)));
+    }
+    keys.add($("missing"));
+    List<Row<User, byte[]>> rows = userHSAB.getAll(keys);
+    assertEquals(251, rows.size());
+    for (int i = 0; i < 250; i++) {
+      assertEquals(new Utf8("scan" + i), rows.get(i).value.firstName);
+    }
+    assertEquals(null, rows.get(250));
+    userHSAB.setScanPageSize(7);
+    int count = 0;
+    for (Row<User, byte[]> row : userHSAB.scan($("scan1000"), $("scan1250"))) {
+      assertEquals(new Utf8("scan" + count), row.value.firstName);
+      count++;
+    }
+    assertEquals(250, count);
+  }
+
   @Test
   public void waitforit() throws InterruptedException {
     Thread.sleep(30000);
@@ -0,0 +1,179 @@
+package havrobase;
+
+import avrobase.AvroBaseException;
+import org.apache.avro.specific.SpecificRecord;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.hbase.client.HTable;
+import org.apache.hadoop.hbase.client.Put;
+import org.apache.hadoop.hbase.client.RetriesExhaustedWithDetailsException;
+import org.apache.hadoop.hbase.util.Bytes;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Buffered, last-writer-wins writes to the table of a HAB. Puts go into the HBase client
+ * write buffer with autoflush off and are sent in batches grouped by region server when
+ * the buffer fills, when the flush interval elapses or when flush() is called. There is no
+ * per-write CAS so this is meant for ingest tables where blind writes are fine.
+ * <p/>
+ * Rows are versioned like HAB.put in LAST_WRITER_WINS mode, so each put reads the current
+ * version of its row before it is buffered. That read doesn't see writes still buffered.
+ * <p/>
+ * Failures are collected per row and returned from the next flush() barrier.
+ * <p/>
+ * User: sam
+ * Date: 6/22/11
+ * Time: 11:05 AM
+ */
+public class BufferedHABWriter<T extends SpecificRecord> implements Closeable {
+  public static final long DEFAULT_WRITE_BUFFER = 2 * 1024 * 1024;
+  public static final long DEFAULT_FLUSH_INTERVAL = 1000;
+
+  private final Logger logger = LoggerFactory.getLogger("BufferedHABWriter");
+  private final HAB<T> hab;
+  private final HTable table;
+  private final ScheduledExecutorService flusher;
+  private final List<Failure> failures = new ArrayList<Failure>();
+  private boolean closed;
+
+  /**
+   * A row that could not be written and why.
+   */
+  public static class Failure {
+    public final byte[] row;
+    public final Throwable cause;
+
+    public Failure(byte[] row, Throwable cause) {
+      this.row = row;
+      this.cause = cause;
+    }
+
+    @Override
+    public String toString() {
+      return "[" + Bytes.toStringBinary(row) + ", " + cause + "]";
+    }
+  }
+
+  public BufferedHABWriter(HAB<T> hab, Configuration conf) {
+    this(hab, conf, DEFAULT_WRITE_BUFFER, DEFAULT_FLUSH_INTERVAL);
+  }
+
+  /**
+   * @param hab           the AvroBase whose table and layout are written to
+   * @param conf          HBase configuration for the dedicated table connection
+   * @param writeBuffer   bytes buffered before the client sends a batch
+   * @param flushInterval milliseconds between background flushes, 0 for none
+   */
+  public BufferedHABWriter(HAB<T> hab, Configuration conf, long writeBuffer, long flushInterval) {
+    this.hab = hab;
+    try {
+      table = new HTable(conf, hab.getTableName());
+      table.setAutoFlush(false);
+      table.setWriteBufferSize(writeBuffer);
+    } catch (IOException e) {
+      throw new AvroBaseException("Could not open table " + Bytes.toString(hab.getTableName()), e);
+    }
+    if (flushInterval > 0) {
+      flusher = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable runnable) {
+          Thread thread = new Thread(runnable, "BufferedHABWriter");
+          thread.setDaemon(true);
+          return thread;
+        }
+      });
+      flusher.scheduleWithFixedDelay(new Runnable() {
+        @Override
+        public void run() {
+          try {
+            flushCommits();
+          } catch (Exception e) {
+            logger.error("Background flush failed", e);
+          }
+        }
+      }, flushInterval, flushInterval, TimeUnit.MILLISECONDS);
+    } else {
+      flusher = null;
+    }
+  }
+
+  /**
+   * Buffer a write of the row. It is not visible to readers until it is flushed.
+   *
+   * @param row
+   * @param value
+   */
+  public synchronized void put(byte[] row, T value) throws AvroBaseException {
+    if (closed) {
+      throw new IllegalStateException("Writer closed");
+    }
+    try {
+      Put put = hab.createLastWriterPut(row, value, table);
+      // May send a batch if the write buffer is full
+      table.put(put);
+    } catch (RetriesExhaustedWithDetailsException e) {
+      recordFailures(e);
+    } catch (IOException e) {
+      throw new AvroBaseException("Failed to write buffer", e);
+    }
+  }
+
+  /**
+   * Send everything that is buffered and wait for it to be written.
+   *
+   * @return the rows that failed since the last call to flush, empty if everything was written
+   * @throws AvroBaseException if the batch could not be sent at all
+   */
+  public synchronized List<Failure> flush() throws AvroBaseException {
+    flushCommits();
+    List<Failure> result = new ArrayList<Failure>(failures);
+    failures.clear();
+    return result;
+  }
+
+  private synchronized void flushCommits() throws AvroBaseException {
+    try {
+      table.flushCommits();
+    } catch (RetriesExhaustedWithDetailsException e) {
+      recordFailures(e);
+    } catch (IOException e) {
+      throw new AvroBaseException("Failed to flush", e);
+    }
+  }
+
+  // Failed puts stay in the client buffer and would be retried forever, report them instead
+
+  private void recordFailures(RetriesExhaustedWithDetailsException e) {
+    for (int i = 0; i < e.getNumExceptions(); i++) {
+      // Report the row the caller wrote, not the salted key
+      failures.add(new Failure(hab.unsalt(e.getRow(i).getRow()), e.getCause(i)));
+    }
+    table.getWriteBuffer().clear();
+  }
+
+  /**
+   * Flush, stop the background flusher and release the table. Failures from the final
+   * flush are logged, call flush() first to see them.
+   */
+  @Override
+  public synchronized void close() throws IOException {
+    if (closed) return;
+    closed = true;
+    if (flusher != null) {
+      flusher.shutdown();
+    }
+    for (Failure failure : flush()) {
+      logger.error("Failed to write row on close: " + failure);
+    }
+    table.close();
+  }
+}
@@ -4,8 +4,14 @@ import avrobase.AvroBaseException;
 import avrobase.AvroBaseImpl;
 import avrobase.AvroFormat;
 import avrobase.Row;
+import avrobase.SchemaRegistry;
+import avrobase.SequenceAllocator;
+import avrobase.SequenceStore;
 import avrobase.TimestampGenerator;
 import com.google.common.base.Supplier;
+import com.google.common.collect.AbstractIterator;
+import com.google.common.collect.Iterators;
+import com.google.common.collect.PeekingIterator;
 import com.google.inject.Inject;
 import com.google.inject.internal.Nullable;
 import com.google.inject.name.Named;
@@ -25,14 +31,21 @@ import org.apache.hadoop.hbase.client.Put;
 import org.apache.hadoop.hbase.client.Result;
 import org.apache.hadoop.hbase.client.ResultScanner;
 import org.apache.hadoop.hbase.client.Scan;
+import org.apache.hadoop.hbase.filter.FilterList;
+import org.apache.hadoop.hbase.filter.FirstKeyOnlyFilter;
+import org.apache.hadoop.hbase.filter.KeyOnlyFilter;
 import org.apache.hadoop.hbase.io.hfile.Compression;
 import org.apache.hadoop.hbase.util.Bytes;
 
 import java.io.IOException;
 import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.Comparator;
 import java.util.Iterator;
 import java.util.NoSuchElementException;
+import java.util.PriorityQueue;
 import java.util.Random;
+import java.util.concurrent.ExecutorService;
 
 /**
  * HAvroBase client.
@@ -55,6 +68,14 @@ public class HAB<T extends SpecificRecord> extends AvroBaseImpl<T, byte[]> {
   private final byte   DATA_COLUMN_BYTE = 100;
   private final byte[] FORMAT_COLUMN = $("f");
   private final byte   FORMAT_COLUMN_BYTE = 102;
+  private final byte[] PACKED_COLUMN = $("p");
+  private final byte   PACKED_COLUMN_BYTE = 112;
+  // A row rewritten in the other layout keeps its stale cells until it is deleted
+  private static final int ROW_CELLS = 5;
+
+  // Packed cell header: layout, version, format, schema key length, schema key
+  private static final byte PACKED_LAYOUT = 1;
+  private static final int PACKED_HEADER = 1 + 8 + 1 + 2;
 
   private final byte[] SEQUENCE_ROW = new byte[0];
   private final byte[] SEQUENCE_COLUMN = $("i");
@@ -70,7 +91,31 @@ public class HAB<T extends SpecificRecord> extends AvroBaseImpl<T, byte[]> {
   private byte[] schemaName;
   private CreateType createType;
   private Supplier<byte[]> keygen;
+  private ScanOptions scanOptions = ScanOptions.DEFAULT;
+  private PutType putType = PutType.CHECKED;
+  private boolean packed;
+  private int saltBuckets = 0;
+  private volatile boolean tableChecked;
+  private final SchemaRegistry<String> schemas = new SchemaRegistry<String>(new SchemaRegistry.Store<String>() {
+    @Override
+    public Schema load(String key) throws AvroBaseException {
+      return loadSchema(key);
+    }
+
+    @Override
+    public String store(Schema schema) throws AvroBaseException {
+      return putSchema(schema);
+    }
+  });
+  private final SequenceStore sequenceStore = new SequenceStore() {
+    @Override
+    public long increment(long amount) throws AvroBaseException {
+      return incrementSequence(amount);
+    }
+  };
+  private SequenceAllocator sequence = new SequenceAllocator(sequenceStore);
   protected static final TimestampGenerator TIMESTAMP_GENERATOR = new TimestampGenerator();
+  private TimestampGenerator timestampGenerator = TIMESTAMP_GENERATOR;
 
   public enum CreateType {
     CUSTOM,
@@ -80,6 +125,22 @@ public class HAB<T extends SpecificRecord> extends AvroBaseImpl<T, byte[]> {
     REVERSE_TIMESTAMP
   }
 
+  /**
+   * How put(row, value) writes a row. CHECKED reads the current version and then does a
+   * checkAndPut until it wins. LAST_WRITER_WINS reads the current version and writes the row
+   * with a Put without retrying, two RPCs, using a timestamp as the new version unless this
+   * node's clock is behind the current version, in which case the next version is used so
+   * that versions never go backwards under conditional puts.
+   * <p/>
+   * The read and the Put are not atomic. Two last writers that read the same version can
+   * both write and, with clocks behind, write the same version, so one of them is lost even
+   * though a conditional writer holding that version would fail either way.
+   */
+  public enum PutType {
+    CHECKED,
+    LAST_WRITER_WINS
+  }
+
   /**
    * Load the schema map on init and then keep it up to date from then on. The HBase
    * connectivity is provided usually via Guice.
@@ -130,23 +191,101 @@ public class HAB<T extends SpecificRecord> extends AvroBaseImpl<T, byte[]> {
     } finally {
       pool.putTable(schemaTable);
     }
-    HTableInterface table = getTable();
-    try {
-      if (table.getTableDescriptor().getFamily(family) == null) {
-        HColumnDescriptor familyDesc = getColumnDesc(family);
-        try {
-          admin.disableTable(tableName);
-          admin.addColumn(tableName, familyDesc);
-          admin.enableTable(tableName);
-        } catch (IOException e) {
-          throw new AvroBaseException(e);
-        }
-      }
-    } catch (IOException e) {
-      throw new AvroBaseException(e);
-    } finally {
-      pool.putTable(table);
+    // The data table is created or checked on first use so that the
+    // optional settings like salting are injected before it is created
+  }
+
+  /**
+   * Spread monotonically increasing keys over this many buckets. Each key is stored with a
+   * one byte prefix derived from its hash, scans merge the buckets back into key order and
+   * new tables are created pre-split with a region per bucket. Must be set before first use
+   * and never changed for an existing table.
+   *
+   * @param saltBuckets number of buckets, 0 to disable salting
+   */
+  @Inject(optional = true)
+  public void setSaltBuckets(@Named("saltBuckets") int saltBuckets) {
+    if (saltBuckets < 0 || saltBuckets > 256) {
+      throw new IllegalArgumentException("saltBuckets must be between 0 and 256: " + saltBuckets);
+    }
+    this.saltBuckets = saltBuckets;
+  }
+
+  public int getSaltBuckets() {
+    return saltBuckets;
+  }
+
+  /**
+   * Write rows as a single packed cell holding a small header and the serialized value
+   * instead of separate data, schema and format cells. The version cell is still written
+   * alongside it so that checkAndPut can compare it. Rows written in either layout are
+   * always readable, so this can be switched on for an existing table.
+   *
+   * @param packed
+   */
+  @Inject(optional = true)
+  public void setPacked(@Named("packed") boolean packed) {
+    this.packed = packed;
+  }
+
+  public boolean isPacked() {
+    return packed;
+  }
+
+  /**
+   * Override the default scan options for this AvroBase, e.g. ScanOptions.BATCH for
+   * an instance that is only used for reindexing.
+   *
+   * @param scanOptions
+   */
+  @Inject(optional = true)
+  public void setScanOptions(@Named("scan") ScanOptions scanOptions) {
+    if (scanOptions == null) {
+      throw new IllegalArgumentException("scanOptions must be non-null");
     }
+    this.scanOptions = scanOptions;
+  }
+
+  public ScanOptions getScanOptions() {
+    return scanOptions;
+  }
+
+  /**
+   * Set how unconditional puts are written. Conditional puts always use checkAndPut.
+   *
+   * @param putType
+   */
+  @Inject(optional = true)
+  public void setPutType(PutType putType) {
+    if (putType == null) {
+      throw new IllegalArgumentException("putType must be non-null");
+    }
+    this.putType = putType;
+  }
+
+  /**
+   * Use a generator configured with a node id when several JVMs create TIMESTAMP or
+   * REVERSE_TIMESTAMP rows in the same table.
+   *
+   * @param timestampGenerator
+   */
+  @Inject(optional = true)
+  public void setTimestampGenerator(@Named("timestamp") TimestampGenerator timestampGenerator) {
+    if (timestampGenerator == null) {
+      throw new IllegalArgumentException("timestampGenerator must be non-null");
+    }
+    this.timestampGenerator = timestampGenerator;
+  }
+
+  /**
+   * Maximum number of SEQUENTIAL ids leased from the counter at once. Defaults to
+   * SequenceAllocator.DEFAULT_MAX_BLOCK, use 1 to increment the counter for every row.
+   *
+   * @param maxBlock
+   */
+  @Inject(optional = true)
+  public void setSequenceBlock(@Named("sequenceBlock") int maxBlock) {
+    sequence = new SequenceAllocator(sequenceStore, 1, maxBlock);
   }
 
   // Load all the schemas currently registered in hbase
@@ -158,7 +297,7 @@ public class HAB<T extends SpecificRecord> extends AvroBaseImpl<T, byte[]> {
     for (Result result : scanner) {
       String row = $_(result.getRow());
       byte[] value = result.getValue(AVRO_FAMILY, SCHEMA_COLUMN);
-      loadSchema(value, row);
+      schemas.register(row, SchemaRegistry.parse(row, value));
     }
   }
 
@@ -186,9 +325,10 @@ public class HAB<T extends SpecificRecord> extends AvroBaseImpl<T, byte[]> {
   public Row<T, byte[]> get(byte[] row) throws AvroBaseException {
     HTableInterface table = getTable();
     try {
-      Result result = getHBaseRow(table, row, family);
+      byte[] key = salt(row);
+      Result result = getHBaseRow(table, key, family);
       // TODO: This is working around a bug in HBASE 0.89
-      if (row.length == 0 && !Bytes.equals(row, result.getRow())) {
+      if (key.length == 0 && !Bytes.equals(key, result.getRow())) {
         return null;
       }
       return getRowResult(result, row);
@@ -221,18 +361,11 @@ public class HAB<T extends SpecificRecord> extends AvroBaseImpl<T, byte[]> {
         return row;
       }
       case SEQUENTIAL: {
-        HTableInterface table = getTable();
-        try {
-          byte[] row;
-          do {
-            row = getNextRow(table, family);
-          } while (!put(row, value, 0));
-          return row;
-        } catch (IOException e) {
-          throw new AvroBaseException("Failed to increment column", e);
-        } finally {
-          pool.putTable(table);
-        }
+        byte[] row;
+        do {
+          row = SequenceAllocator.reversed(sequence.next());
+        } while (!put(row, value, 0));
+        return row;
       }
       case TIMESTAMP:
       case REVERSE_TIMESTAMP: {
@@ -241,8 +374,8 @@ public class HAB<T extends SpecificRecord> extends AvroBaseImpl<T, byte[]> {
           byte[] row;
           do {
             long l = createType == CreateType.TIMESTAMP ?
-                    TIMESTAMP_GENERATOR.getTimestamp() : 
-                    TIMESTAMP_GENERATOR.getInvertedTimestamp();
+                    timestampGenerator.getTimestamp() :
+                    timestampGenerator.getInvertedTimestamp();
             row = Bytes.toBytes(l);
           } while (!put(row, value, 0));
           return row;
@@ -254,27 +387,31 @@ public class HAB<T extends SpecificRecord> extends AvroBaseImpl<T, byte[]> {
     return null;
   }
 
-  private byte[] getNextRow(HTableInterface table, final byte[] family) throws IOException {
-    byte[] row;
-    long l = table.incrementColumnValue(SEQUENCE_ROW, family, SEQUENCE_COLUMN, 1);
-    row = String.valueOf(l).getBytes();
-    int length = row.length;
-    for (int i = 0; i < length / 2; i++) {
-      byte tmp = row[i];
-      row[i] = row[length - i - 1];
-      row[length - i - 1] = tmp;
+  // Lease a block of sequential ids from the counter column in the empty row
+
+  private long incrementSequence(long amount) throws AvroBaseException {
+    HTableInterface table = getTable();
+    try {
+      return table.incrementColumnValue(SEQUENCE_ROW, family, SEQUENCE_COLUMN, amount);
+    } catch (IOException e) {
+      throw new AvroBaseException("Failed to increment column", e);
+    } finally {
+      pool.putTable(table);
     }
-    return row;
   }
 
   @Override
   public void put(byte[] row, T value) throws AvroBaseException {
+    if (putType == PutType.LAST_WRITER_WINS) {
+      putLastWriterWins(row, value);
+      return;
+    }
     HTableInterface table = getTable();
     long version;
     try {
       do {
         // FIXME: Spin until success, last one wins. Provably dangerous?
-        version = getVersion(family, row, table);
+        version = getVersion(family, salt(row), table);
       } while (!put(row, value, version));
     } catch (IOException e) {
       throw new AvroBaseException("Failed to retrieve version for row: " + $_(row), e);
@@ -283,25 +420,57 @@ public class HAB<T extends SpecificRecord> extends AvroBaseImpl<T, byte[]> {
     }
   }
 
-  @Override
-  public boolean put(byte[] row, T value, long version) throws AvroBaseException {
+  // Write the row with a Put without checking
+
+  private void putLastWriterWins(byte[] row, T value) throws AvroBaseException {
     HTableInterface table = getTable();
     try {
-      Schema schema = value.getSchema();
-      String schemaKey = storeSchema(schema);
-      byte[] bytes = serialize(value);
-      Put put = new Put(row);
+      table.put(createLastWriterPut(row, value, table));
+    } catch (IOException e) {
+      throw new AvroBaseException("Could not encode " + value, e);
+    } finally {
+      pool.putTable(table);
+    }
+  }
+
+  // Create an unchecked put of the row. The new version is later than the one read even if
+  // the local clock is behind, so a CAS writer holding an older version fails.
+
+  Put createLastWriterPut(byte[] row, T value, HTableInterface table) throws IOException {
+    long current = getVersion(family, salt(row), table);
+    return createPut(row, value, Math.max(timestampGenerator.getTimestamp(), current + 1));
+  }
+
+  // Create a put for all the cells of a row with the given new version
+
+  Put createPut(byte[] row, T value, long newVersion) throws AvroBaseException {
+    Schema schema = value.getSchema();
+    String schemaKey = storeSchema(schema);
+    byte[] bytes = serialize(value);
+    Put put = new Put(salt(row));
+    if (packed) {
+      put.add(family, PACKED_COLUMN, pack(schemaKey, newVersion, format.ordinal(), bytes));
+    } else {
       put.add(family, SCHEMA_COLUMN, $(schemaKey));
       put.add(family, DATA_COLUMN, bytes);
-      put.add(family, VERSION_COLUMN, Bytes.toBytes(version + 1));
       put.add(family, FORMAT_COLUMN, Bytes.toBytes(format.ordinal()));
+    }
+    put.add(family, VERSION_COLUMN, Bytes.toBytes(newVersion));
+    return put;
+  }
+
+  @Override
+  public boolean put(byte[] row, T value, long version) throws AvroBaseException {
+    HTableInterface table = getTable();
+    try {
+      Put put = createPut(row, value, version + 1);
       final byte[] expectedValue;
       if (version == 0) {
         expectedValue = new byte[0]; // TODO: should be null, but... HBASE-2920
       } else {
         expectedValue = Bytes.toBytes(version);
       }
-      return table.checkAndPut(row, family, VERSION_COLUMN, expectedValue, put);
+      return table.checkAndPut(put.getRow(), family, VERSION_COLUMN, expectedValue, put);
     } catch (IOException e) {
       throw new AvroBaseException("Could not encode " + value, e);
     } finally {
@@ -313,7 +482,7 @@ public class HAB<T extends SpecificRecord> extends AvroBaseImpl<T, byte[]> {
   public void delete(byte[] row) throws AvroBaseException {
     HTableInterface table = getTable();
     try {
-      Delete delete = new Delete(row);
+      Delete delete = new Delete(salt(row));
       delete.deleteFamily(family);
       table.delete(delete);
     } catch (IOException e) {
@@ -325,18 +494,30 @@ public class HAB<T extends SpecificRecord> extends AvroBaseImpl<T, byte[]> {
 
   @Override
   public Iterable<Row<T, byte[]>> scan(byte[] startRow, byte[] stopRow) throws AvroBaseException {
-    Scan scan = new Scan();
-    scan.addFamily(family);
-    if (startRow != null) {
-      scan.setStartRow(startRow);
-    }
-    if (stopRow != null) {
-      scan.setStopRow(stopRow);
-    }
-    HTableInterface table = pool.getTable(tableName);
+    return scan(startRow, stopRow, scanOptions);
+  }
+
+  /**
+   * Scan with explicit options rather than the ones configured for this AvroBase. With
+   * a KEYS_ONLY or VERSIONS_ONLY projection the returned rows have a null value.
+   *
+   * @param startRow
+   * @param stopRow
+   * @param options
+   * @return
+   * @throws AvroBaseException
+   */
+  public Iterable<Row<T, byte[]>> scan(byte[] startRow, byte[] stopRow, ScanOptions options) throws AvroBaseException {
+    final ScanOptions.Projection projection = options.getProjection();
+    HTableInterface table = getTable();
     try {
-      ResultScanner scanner = table.getScanner(scan);
-      final Iterator<Result> results = scanner.iterator();
+      final Iterator<Result> results;
+      if (saltBuckets == 0) {
+        ResultScanner scanner = table.getScanner(createScan(startRow, stopRow, options));
+        results = scanner.iterator();
+      } else {
+        results = mergeBuckets(table, startRow, stopRow, options);
+      }
       return new Iterable<Row<T, byte[]>>() {
         @Override
         public Iterator<Row<T, byte[]>> iterator() {
@@ -348,7 +529,7 @@ public class HAB<T extends SpecificRecord> extends AvroBaseImpl<T, byte[]> {
               if (r != null) return true;
               while (results.hasNext()) {
                 Result result = results.next();
-                r = getRowResult(result, result.getRow());
+                r = getRowResult(result, unsalt(result.getRow()), projection);
                 // Skip empty rows and the increment row
                 if (r == null || r.row.length == 0) {
                   continue;
@@ -385,51 +566,230 @@ public class HAB<T extends SpecificRecord> extends AvroBaseImpl<T, byte[]> {
     }
   }
 
+  /**
+   * Scan each region in the range concurrently, returning rows as they arrive from any region.
+   * Use this when the order of the rows does not matter, e.g. reindexing.
+   *
+   * @param startRow
+   * @param stopRow
+   * @param options
+   * @param es          runs the region scanners, needs at least parallelism threads available
+   * @param parallelism maximum number of regions scanned at once
+   * @param prefetch    maximum number of rows buffered per region
+   * @return a scanner that should be closed if it is not fully consumed
+   * @throws AvroBaseException
+   */
+  public ParallelScanner<T> parallelScan(byte[] startRow, byte[] stopRow, ScanOptions options, ExecutorService es, int parallelism, int prefetch) throws AvroBaseException {
+    return new ParallelScanner<T>(this, pool, startRow, stopRow, options, es, parallelism, prefetch, false);
+  }
+
+  /**
+   * Scan each region in the range concurrently but return the rows in key order. Regions
+   * beyond the one being consumed can only buffer prefetch rows each.
+   *
+   * @param startRow
+   * @param stopRow
+   * @param options
+   * @param es          runs the region scanners, needs at least parallelism threads available
+   * @param parallelism maximum number of regions scanned at once
+   * @param prefetch    maximum number of rows buffered per region
+   * @return a scanner that should be closed if it is not fully consumed
+   * @throws AvroBaseException
+   */
+  public ParallelScanner<T> orderedParallelScan(byte[] startRow, byte[] stopRow, ScanOptions options, ExecutorService es, int parallelism, int prefetch) throws AvroBaseException {
+    if (saltBuckets != 0) {
+      throw new NotImplementedException("Ordered parallel scans of salted tables, use scan()");
+    }
+    return new ParallelScanner<T>(this, pool, startRow, stopRow, options, es, parallelism, prefetch, true);
+  }
+
+  // Open a scanner per salt bucket and merge them back into logical key order
+
+  private Iterator<Result> mergeBuckets(HTableInterface table, byte[] startRow, byte[] stopRow, ScanOptions options) throws IOException {
+    final PriorityQueue<PeekingIterator<Result>> heads = new PriorityQueue<PeekingIterator<Result>>(saltBuckets, new Comparator<PeekingIterator<Result>>() {
+      @Override
+      public int compare(PeekingIterator<Result> results, PeekingIterator<Result> results1) {
+        byte[] row = results.peek().getRow();
+        byte[] row1 = results1.peek().getRow();
+        return Bytes.compareTo(row, 1, row.length - 1, row1, 1, row1.length - 1);
+      }
+    });
+    for (int bucket = 0; bucket < saltBuckets; bucket++) {
+      byte[][] range = bucketRange(bucket, startRow, stopRow);
+      ResultScanner scanner = table.getScanner(createScan(range[0], range[1], options));
+      PeekingIterator<Result> results = Iterators.peekingIterator(scanner.iterator());
+      if (results.hasNext()) {
+        heads.add(results);
+      }
+    }
+    return new AbstractIterator<Result>() {
+      @Override
+      protected Result computeNext() {
+        PeekingIterator<Result> results = heads.poll();
+        if (results == null) {
+          return endOfData();
+        }
+        Result result = results.next();
+        if (results.hasNext()) {
+          heads.add(results);
+        }
+        return result;
+      }
+    };
+  }
+
+  // The physical range of a logical [startRow, stopRow) within a salt bucket
+
+  byte[][] bucketRange(int bucket, byte[] startRow, byte[] stopRow) {
+    byte[] prefix = new byte[]{(byte) bucket};
+    byte[] start = startRow == null ? prefix : Bytes.add(prefix, startRow);
+    byte[] stop;
+    // An empty stop row is unbounded, as in an unsalted scan
+    if (stopRow != null && stopRow.length > 0) {
+      stop = Bytes.add(prefix, stopRow);
+    } else if (bucket < 255) {
+      stop = new byte[]{(byte) (bucket + 1)};
+    } else {
+      stop = new byte[0];
+    }
+    return new byte[][]{start, stop};
+  }
+
+  // Prefix the row with its salt bucket
+
+  byte[] salt(byte[] row) {
+    if (saltBuckets == 0) return row;
+    byte[] key = new byte[row.length + 1];
+    key[0] = (byte) ((Bytes.hashCode(row) & Integer.MAX_VALUE) % saltBuckets);
+    System.arraycopy(row, 0, key, 1, row.length);
+    return key;
+  }
+
+  // Strip the salt bucket, the sequence row is never salted
+
+  byte[] unsalt(byte[] key) {
+    if (saltBuckets == 0 || key.length == 0) return key;
+    return Arrays.copyOfRange(key, 1, key.length);
+  }
+
+  // Build the HBase scan for a range given the tuning options
+
+  Scan createScan(byte[] startRow, byte[] stopRow, ScanOptions options) {
+    Scan scan = new Scan();
+    switch (options.getProjection()) {
+      case KEYS_ONLY: {
+        // Every row has a version cell, return just the key of the first one we see
+        scan.addColumn(family, VERSION_COLUMN);
+        FilterList filters = new FilterList(FilterList.Operator.MUST_PASS_ALL);
+        filters.addFilter(new FirstKeyOnlyFilter());
+        filters.addFilter(new KeyOnlyFilter());
+        scan.setFilter(filters);
+        break;
+      }
+      case VERSIONS_ONLY:
+        scan.addColumn(family, VERSION_COLUMN);
+        break;
+      case FULL:
+      default:
+        scan.addFamily(family);
+        if (options.getBatch() != 0 && options.getBatch() < ROW_CELLS) {
+          throw new IllegalArgumentException("batch would split rows: " + options.getBatch());
+        }
+        break;
+    }
+    if (options.getCaching() != 0) {
+      scan.setCaching(options.getCaching());
+    }
+    if (options.getBatch() != 0) {
+      scan.setBatch(options.getBatch());
+    }
+    scan.setCacheBlocks(options.isCacheBlocks());
+    if (startRow != null) {
+      scan.setStartRow(startRow);
+    }
+    if (stopRow != null) {
+      scan.setStopRow(stopRow);
+    }
+    return scan;
+  }
+
+  // Given an HBase row result for a projected scan only populate the metadata
+
+  Row<T, byte[]> getRowResult(Result result, byte[] row, ScanOptions.Projection projection) throws AvroBaseException {
+    switch (projection) {
+      case KEYS_ONLY:
+        return result.isEmpty() ? null : new Row<T, byte[]>(null, row);
+      case VERSIONS_ONLY:
+        byte[] versionB = result.getValue(family, VERSION_COLUMN);
+        return versionB == null ? null : new Row<T, byte[]>(null, row, Bytes.toLong(versionB));
+      case FULL:
+      default:
+        return getRowResult(result, row);
+    }
+  }
+
   // Given an HBase row result take it apart and populate the Row wrapper metadata.
 
   private Row<T, byte[]> getRowResult(Result result, byte[] row) throws AvroBaseException {
     // Defaults
-    try {
-
-      byte[] dataBytes = null;
-      int dataOffset = -1;
-      int dataLength = 0;
-
-      long version = -1;
-      Schema schema = null;
-      AvroFormat format = AvroFormat.BINARY;
-
-      KeyValue[] raw = result.raw();
-      for (KeyValue kv : raw) {
-        byte[] buffer = kv.getBuffer();
-        int offset = kv.getValueOffset();
-        int length = kv.getValueLength();
-        switch(buffer[kv.getQualifierOffset()]) {
-          case DATA_COLUMN_BYTE:
-            dataBytes = buffer;
-            dataOffset = offset;
-            dataLength = length;
-            break;
-          case VERSION_COLUMN_BYTE:
-            version = Bytes.toLong(buffer, offset, length);
-            break;
-          case FORMAT_COLUMN_BYTE:
-            format = AvroFormat.values()[Bytes.toInt(buffer, offset, length)];
-            break;
-          case SCHEMA_COLUMN_BYTE:
-            schema = loadSchema(row, buffer, offset, length);
-            break;
-        }
+    byte[] dataBytes = null;
+    int dataOffset = -1;
+    int dataLength = 0;
+
+    long version = -1;
+    Schema schema = null;
+    AvroFormat format = AvroFormat.BINARY;
+    KeyValue packedKv = null;
+
+    KeyValue[] raw = result.raw();
+    for (KeyValue kv : raw) {
+      byte[] buffer = kv.getBuffer();
+      int offset = kv.getValueOffset();
+      int length = kv.getValueLength();
+      switch(buffer[kv.getQualifierOffset()]) {
+        case DATA_COLUMN_BYTE:
+          dataBytes = buffer;
+          dataOffset = offset;
+          dataLength = length;
+          break;
+        case VERSION_COLUMN_BYTE:
+          version = Bytes.toLong(buffer, offset, length);
+          break;
+        case FORMAT_COLUMN_BYTE:
+          format = AvroFormat.values()[Bytes.toInt(buffer, offset, length)];
+          break;
+        case SCHEMA_COLUMN_BYTE:
+          schema = loadSchema(row, buffer, offset, length);
+          break;
+        case PACKED_COLUMN_BYTE:
+          packedKv = kv;
+          break;
       }
+    }
 
-      if (dataBytes != null) {
-        // If not, load it up and return wrapped Row
-        return new Row<T, byte[]>(readValue(dataBytes, schema, format, dataOffset, dataLength), row, version);
+    if (packedKv != null) {
+      byte[] buffer = packedKv.getBuffer();
+      int offset = packedKv.getValueOffset();
+      int length = packedKv.getValueLength();
+      if (length < PACKED_HEADER || buffer[offset] != PACKED_LAYOUT) {
+        throw new AvroBaseException("Unknown packed layout for row: " + $_(row));
+      }
+      // Only use the packed cell if it was written by the latest write of the row
+      if (version == -1 || Bytes.toLong(buffer, offset + 1) == version) {
+        version = Bytes.toLong(buffer, offset + 1);
+        format = AvroFormat.values()[buffer[offset + 9]];
+        int keyLength = Bytes.toShort(buffer, offset + 10);
+        schema = loadSchema(row, buffer, offset + PACKED_HEADER, keyLength);
+        int header = PACKED_HEADER + keyLength;
+        return new Row<T, byte[]>(readValue(buffer, schema, format, offset + header, length - header), row, version);
       }
-      return null;
-    } catch (IOException e) {
-      throw new AvroBaseException(e);
     }
+
+    if (dataBytes != null) {
+      // If not, load it up and return wrapped Row
+      return new Row<T, byte[]>(readValue(dataBytes, schema, format, dataOffset, dataLength), row, version);
+    }
+    return null;
   }
 
   // Pull the version out of the version column. Version 0 means that it does not exist
@@ -451,27 +811,8 @@ public class HAB<T extends SpecificRecord> extends AvroBaseImpl<T, byte[]> {
 
   // Ensure that this schema is present within the configured schema table
 
-  private String storeSchema(Schema schema) throws AvroBaseException {
-    String schemaKey;
-    synchronized (schema) {
-      schemaKey = hashCache.get(schema);
-      if (schemaKey == null) {
-        // Hash the schema, store it
-        String doc = schema.toString();
-        schemaKey = createSchemaKey(schema, doc);
-        Put put = new Put($(schemaKey));
-        put.add(AVRO_FAMILY, SCHEMA_COLUMN, $(doc));
-        HTableInterface schemaTable = pool.getTable(schemaName);
-        try {
-          schemaTable.put(put);
-        } catch (IOException e) {
-          throw new AvroBaseException("Could not store schema " + doc, e);
-        } finally {
-          pool.putTable(schemaTable);
-        }
-      }
-    }
-    return schemaKey;
+  String storeSchema(Schema schema) throws AvroBaseException {
+    return schemas.getId(schema);
   }
 
   // Pull an hbase row, ready to be wrapped by Row
@@ -482,40 +823,64 @@ public class HAB<T extends SpecificRecord> extends AvroBaseImpl<T, byte[]> {
     get.addColumn(columnFamily, SCHEMA_COLUMN);
     get.addColumn(columnFamily, VERSION_COLUMN);
     get.addColumn(columnFamily, FORMAT_COLUMN);
+    get.addColumn(columnFamily, PACKED_COLUMN);
     return table.get(get);
   }
 
   // Load a schema from the current hbase row
 
-  private Schema loadSchema(final byte[] row, final byte[] schemaKey, int offset, int length) throws AvroBaseException, IOException {
+  private Schema loadSchema(final byte[] row, final byte[] schemaKey, int offset, int length) throws AvroBaseException {
     if (schemaKey == null) {
       throw new AvroBaseException("Schema not set for row: " + $_(row));
     }
-    Schema schema = schemaCache.get($_(schemaKey, offset, length));
+    String key = $_(schemaKey, offset, length);
+    Schema schema = schemas.getSchema(key);
     if (schema == null) {
-      HTableInterface schemaTable = pool.getTable(schemaName);
-      try {
-        Get schemaGet = new Get(schemaKey);
-        schemaGet.addColumn(AVRO_FAMILY, SCHEMA_COLUMN);
-        byte[] schemaBytes = schemaTable.get(schemaGet).getValue(AVRO_FAMILY, SCHEMA_COLUMN);
-        if (schemaBytes == null) {
-          throw new AvroBaseException("No schema " + $_(schemaKey) + " found in hbase for row " + $_(row));
-        }
-        schema = loadSchema(schemaBytes, $_(schemaKey));
-      } finally {
-        pool.putTable(schemaTable);
-      }
+      throw new AvroBaseException("No schema " + key + " found in hbase for row " + $_(row));
     }
     return schema;
   }
 
+  // Read and write the schema table for the registry
+
+  private Schema loadSchema(String key) throws AvroBaseException {
+    HTableInterface schemaTable = pool.getTable(schemaName);
+    try {
+      Get schemaGet = new Get($(key));
+      schemaGet.addColumn(AVRO_FAMILY, SCHEMA_COLUMN);
+      byte[] schemaBytes = schemaTable.get(schemaGet).getValue(AVRO_FAMILY, SCHEMA_COLUMN);
+      return schemaBytes == null ? null : SchemaRegistry.parse(key, schemaBytes);
+    } catch (IOException e) {
+      throw new AvroBaseException("Could not load schema " + key, e);
+    } finally {
+      pool.putTable(schemaTable);
+    }
+  }
+
+  private String putSchema(Schema schema) throws AvroBaseException {
+    // Hash the schema, store it
+    String doc = schema.toString();
+    String schemaKey = SchemaRegistry.hash(doc);
+    Put put = new Put($(schemaKey));
+    put.add(AVRO_FAMILY, SCHEMA_COLUMN, $(doc));
+    HTableInterface schemaTable = pool.getTable(schemaName);
+    try {
+      schemaTable.put(put);
+    } catch (IOException e) {
+      throw new AvroBaseException("Could not store schema " + doc, e);
+    } finally {
+      pool.putTable(schemaTable);
+    }
+    return schemaKey;
+  }
+
   private String $_(byte[] schemaKey, int offset, int length) {
     return Bytes.toString(schemaKey, offset, length);
   }
 
   // Get or create the specified table with columnfamily
 
-  private HTableInterface getTable() throws AvroBaseException {
+  HTableInterface getTable() throws AvroBaseException {
     HTableInterface table;
     try {
       table = pool.getTable(tableName);
@@ -525,7 +890,16 @@ public class HAB<T extends SpecificRecord> extends AvroBaseImpl<T, byte[]> {
         HTableDescriptor tableDesc = new HTableDescriptor(tableName);
         tableDesc.addFamily(familyDesc);
         try {
-          admin.createTable(tableDesc);
+          if (saltBuckets > 1) {
+            // A region per bucket
+            byte[][] splits = new byte[saltBuckets - 1][];
+            for (int i = 0; i < splits.length; i++) {
+              splits[i] = new byte[]{(byte) (i + 1)};
+            }
+            admin.createTable(tableDesc, splits);
+          } else {
+            admin.createTable(tableDesc);
+          }
         } catch (IOException e1) {
           throw new AvroBaseException(e1);
         }
@@ -534,9 +908,34 @@ public class HAB<T extends SpecificRecord> extends AvroBaseImpl<T, byte[]> {
       }
       table = pool.getTable(tableName);
     }
+    if (!tableChecked) {
+      try {
+        checkFamily(table);
+      } catch (AvroBaseException e) {
+        pool.putTable(table);
+        throw e;
+      }
+    }
     return table;
   }
 
+  // Add our family to an existing table the first time we use it
+
+  private synchronized void checkFamily(HTableInterface table) throws AvroBaseException {
+    if (tableChecked) return;
+    try {
+      if (table.getTableDescriptor().getFamily(family) == null) {
+        HColumnDescriptor familyDesc = getColumnDesc(family);
+        admin.disableTable(tableName);
+        admin.addColumn(tableName, familyDesc);
+        admin.enableTable(tableName);
+      }
+    } catch (IOException e) {
+      throw new AvroBaseException(e);
+    }
+    tableChecked = true;
+  }
+
   private HColumnDescriptor getColumnDesc(byte[] columnFamily) {
     HColumnDescriptor family = new HColumnDescriptor(columnFamily);
     family.setMaxVersions(1);
@@ -545,6 +944,54 @@ public class HAB<T extends SpecificRecord> extends AvroBaseImpl<T, byte[]> {
     return family;
   }
 
+  // The bulk loader writes cells directly so it needs to share the row layout
+
+  KeyValue[] createKeyValues(byte[] row, String schemaKey, long version, int format, byte[] data, long timestamp) {
+    // Sorted by qualifier as HFiles require
+    if (packed) {
+      return new KeyValue[] {
+          new KeyValue(row, family, PACKED_COLUMN, timestamp, pack(schemaKey, version, format, data)),
+          new KeyValue(row, family, VERSION_COLUMN, timestamp, Bytes.toBytes(version))
+      };
+    }
+    return new KeyValue[] {
+        new KeyValue(row, family, DATA_COLUMN, timestamp, data),
+        new KeyValue(row, family, FORMAT_COLUMN, timestamp, Bytes.toBytes(format)),
+        new KeyValue(row, family, SCHEMA_COLUMN, timestamp, $(schemaKey)),
+        new KeyValue(row, family, VERSION_COLUMN, timestamp, Bytes.toBytes(version))
+    };
+  }
+
+  // Prefix the serialized value with everything needed to read it back
+
+  private byte[] pack(String schemaKey, long version, int format, byte[] data) {
+    byte[] key = $(schemaKey);
+    byte[] cell = new byte[PACKED_HEADER + key.length + data.length];
+    cell[0] = PACKED_LAYOUT;
+    Bytes.putLong(cell, 1, version);
+    cell[9] = (byte) format;
+    Bytes.putShort(cell, 10, (short) key.length);
+    System.arraycopy(key, 0, cell, PACKED_HEADER, key.length);
+    System.arraycopy(data, 0, cell, PACKED_HEADER + key.length, data.length);
+    return cell;
+  }
+
+  byte[] serializeValue(T value) throws AvroBaseException {
+    return serialize(value);
+  }
+
+  AvroFormat getFormat() {
+    return format;
+  }
+
+  byte[] getFamily() {
+    return family;
+  }
+
+  byte[] getTableName() {
+    return tableName;
+  }
+
   protected byte[] $(String string) {
     return Bytes.toBytes(string);
   }
@@ -0,0 +1,407 @@
+package havrobase;
+
+import avrobase.AvroBaseException;
+import com.google.common.base.Function;
+import org.apache.avro.Schema;
+import org.apache.avro.file.DataFileStream;
+import org.apache.avro.specific.SpecificDatumReader;
+import org.apache.avro.specific.SpecificRecord;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.hbase.KeyValue;
+import org.apache.hadoop.hbase.client.HTable;
+import org.apache.hadoop.hbase.io.hfile.Compression;
+import org.apache.hadoop.hbase.io.hfile.HFile;
+import org.apache.hadoop.hbase.mapreduce.LoadIncrementalHFiles;
+import org.apache.hadoop.hbase.regionserver.StoreFile;
+import org.apache.hadoop.hbase.util.Bytes;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.UUID;
+
+/**
+ * Offline bulk ingest for HAB. Rows are encoded into the HAB column layout, sorted externally
+ * in bounded memory and written as HFiles in the directory layout expected by
+ * LoadIncrementalHFiles. Schemas are registered in the schema table of the HAB as they are seen.
+ * <p/>
+ * Typical use is to feed it the output of MysqlAB.exportSchema/exportData, call finish() to
+ * write the HFiles and then load() to hand them to the region servers.
+ * <p/>
+ * User: sam
+ * Date: 6/21/11
+ * Time: 3:40 PM
+ */
+public class HFileBulkLoader<T extends SpecificRecord> {
+  public static final long DEFAULT_SORT_BUFFER = 64 * 1024 * 1024;
+  public static final long DEFAULT_MAX_FILE_SIZE = 1024 * 1024 * 1024;
+
+  // Rough per record overhead on top of the row and data bytes
+  private static final int RECORD_OVERHEAD = 64;
+
+  private final HAB<T> hab;
+  private final FileSystem fs;
+  private final Path outputDir;
+  private final File tmpDir;
+  private final Compression.Algorithm compression;
+  private final long sortBuffer;
+  private final long maxFileSize;
+  private final long timestamp = System.currentTimeMillis();
+
+  // Schema ids in the imported stream to HAB schema keys
+  private final Map<Integer, String> schemaKeys = new HashMap<Integer, String>();
+
+  private final List<Record> buffer = new ArrayList<Record>();
+  private final List<File> runs = new ArrayList<File>();
+  private long buffered;
+  private long duplicates;
+  private boolean finished;
+
+  public HFileBulkLoader(HAB<T> hab, FileSystem fs, Path outputDir, File tmpDir) {
+    this(hab, fs, outputDir, tmpDir, Compression.Algorithm.NONE, DEFAULT_SORT_BUFFER, DEFAULT_MAX_FILE_SIZE);
+  }
+
+  /**
+   * @param hab         the target AvroBase, its table, family and schema table are used
+   * @param fs          where the HFiles are written, usually the cluster filesystem
+   * @param outputDir   directory that will contain a subdirectory for the family
+   * @param tmpDir      local directory for the sorted runs
+   * @param compression compression for the HFiles
+   * @param sortBuffer  approximate number of bytes to sort in memory before spilling a run
+   * @param maxFileSize approximate size at which a new HFile is started
+   */
+  public HFileBulkLoader(HAB<T> hab, FileSystem fs, Path outputDir, File tmpDir, Compression.Algorithm compression, long sortBuffer, long maxFileSize) {
+    this.hab = hab;
+    this.fs = fs;
+    this.outputDir = outputDir;
+    this.tmpDir = tmpDir;
+    this.compression = compression;
+    this.sortBuffer = sortBuffer;
+    this.maxFileSize = maxFileSize;
+  }
+
+  /**
+   * Read schemas in the format written by MysqlAB.writeSchemas and register them with the HAB.
+   * Must be called before importData for streams that reference those schema ids.
+   *
+   * @param dis
+   */
+  public void importSchema(DataInputStream dis) {
+    try {
+      while (dis.readBoolean()) {
+        int id = dis.readInt();
+        byte[] hash = new byte[dis.readInt()];
+        dis.readFully(hash);
+        byte[] json = new byte[dis.readInt()];
+        dis.readFully(json);
+        Schema schema = Schema.parse(new ByteArrayInputStream(json));
+        schemaKeys.put(id, hab.storeSchema(schema));
+      }
+    } catch (IOException e) {
+      throw new AvroBaseException("Failed to read", e);
+    }
+  }
+
+  /**
+   * Read rows in the format written by MysqlAB.exportData. The serialized values are copied as is
+   * along with their format and version.
+   *
+   * @param dis
+   */
+  public void importData(DataInputStream dis) {
+    try {
+      while (dis.readBoolean()) {
+        byte[] row = new byte[dis.readInt()];
+        dis.readFully(row);
+        int schemaId = dis.readInt();
+        long version = dis.readLong();
+        int format = dis.readInt();
+        byte[] bytes = new byte[dis.readInt()];
+        dis.readFully(bytes);
+        String schemaKey = schemaKeys.get(schemaId);
+        if (schemaKey == null) {
+          throw new AvroBaseException("Schema not imported: " + schemaId);
+        }
+        add(new Record(hab.salt(row), schemaKey, version, format, bytes));
+      }
+    } catch (IOException e) {
+      throw new AvroBaseException("Failed to read", e);
+    }
+  }
+
+  /**
+   * Read values from an Avro container file, the key for each row is derived from its value.
+   *
+   * @param is
+   * @param keyFunction
+   */
+  public void importContainer(InputStream is, Function<T, byte[]> keyFunction) {
+    try {
+      DataFileStream<T> stream = new DataFileStream<T>(is, new SpecificDatumReader<T>());
+      try {
+        for (T value : stream) {
+          add(keyFunction.apply(value), value);
+        }
+      } finally {
+        stream.close();
+      }
+    } catch (IOException e) {
+      throw new AvroBaseException("Failed to read", e);
+    }
+  }
+
+  /**
+   * Add a single new row, it will be written with version 1.
+   *
+   * @param row
+   * @param value
+   */
+  public void add(byte[] row, T value) {
+    String schemaKey = hab.storeSchema(value.getSchema());
+    add(new Record(hab.salt(row), schemaKey, 1, hab.getFormat().ordinal(), hab.serializeValue(value)));
+  }
+
+  private void add(Record record) {
+    if (finished) {
+      throw new IllegalStateException("Loader already finished");
+    }
+    buffer.add(record);
+    buffered += record.size();
+    if (buffered >= sortBuffer) {
+      spill();
+    }
+  }
+
+  // Sort the in memory records and write them out as a run
+
+  private void spill() {
+    if (buffer.isEmpty()) return;
+    Collections.sort(buffer, RECORD_COMPARATOR);
+    try {
+      File run = File.createTempFile("hab", ".run", tmpDir);
+      run.deleteOnExit();
+      DataOutputStream dos = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(run), 65536));
+      try {
+        for (Record record : buffer) {
+          record.write(dos);
+        }
+      } finally {
+        dos.close();
+      }
+      runs.add(run);
+    } catch (IOException e) {
+      throw new AvroBaseException("Failed to write sorted run", e);
+    }
+    buffer.clear();
+    buffered = 0;
+  }
+
+  /**
+   * Merge the sorted runs and write the HFiles. When the same row appears more than once
+   * the first occurrence wins.
+   *
+   * @return the HFiles that were written
+   */
+  public List<Path> finish() {
+    if (finished) {
+      throw new IllegalStateException("Loader already finished");
+    }
+    finished = true;
+    spill();
+    List<Path> files = new ArrayList<Path>();
+    PriorityQueue<Run> queue = new PriorityQueue<Run>(Math.max(1, runs.size()));
+    try {
+      for (int i = 0; i < runs.size(); i++) {
+        Run run = new Run(i, runs.get(i));
+        if (run.advance()) {
+          queue.add(run);
+        } else {
+          run.close();
+        }
+      }
+      Path familyDir = new Path(outputDir, Bytes.toString(hab.getFamily()));
+      fs.mkdirs(familyDir);
+      HFile.Writer writer = null;
+      long written = 0;
+      byte[] last = null;
+      try {
+        while (!queue.isEmpty()) {
+          Run run = queue.poll();
+          Record record = run.current;
+          if (last != null && Bytes.equals(last, record.row)) {
+            duplicates++;
+          } else {
+            if (writer == null || written >= maxFileSize) {
+              if (writer != null) close(writer);
+              Path file = new Path(familyDir, UUID.randomUUID().toString().replace("-", ""));
+              writer = new HFile.Writer(fs, file, HFile.DEFAULT_BLOCKSIZE, compression, KeyValue.KEY_COMPARATOR);
+              files.add(file);
+              written = 0;
+            }
+            for (KeyValue kv : hab.createKeyValues(record.row, record.schemaKey, record.version, record.format, record.data, timestamp)) {
+              writer.append(kv);
+            }
+            written += record.size();
+            last = record.row;
+          }
+          if (run.advance()) {
+            queue.add(run);
+          } else {
+            run.close();
+          }
+        }
+      } finally {
+        if (writer != null) close(writer);
+      }
+    } catch (IOException e) {
+      throw new AvroBaseException("Failed to write HFiles", e);
+    } finally {
+      for (Run run : queue) {
+        try {
+          run.close();
+        } catch (IOException e) {
+          // closing anyway
+        }
+      }
+      for (File run : runs) {
+        run.delete();
+      }
+    }
+    return files;
+  }
+
+  private void close(HFile.Writer writer) throws IOException {
+    writer.appendFileInfo(StoreFile.BULKLOAD_TIME_KEY, Bytes.toBytes(System.currentTimeMillis()));
+    writer.appendFileInfo(StoreFile.MAJOR_COMPACTION_KEY, Bytes.toBytes(true));
+    writer.close();
+  }
+
+  /**
+   * Move the finished HFiles into the table of the HAB.
+   *
+   * @param conf
+   */
+  public void load(Configuration conf) {
+    if (!finished) {
+      throw new IllegalStateException("Call finish() before load()");
+    }
+    try {
+      HTable table = new HTable(conf, hab.getTableName());
+      try {
+        new LoadIncrementalHFiles(conf).doBulkLoad(outputDir, table);
+      } finally {
+        table.close();
+      }
+    } catch (Exception e) {
+      throw new AvroBaseException("Failed to load HFiles from " + outputDir, e);
+    }
+  }
+
+  /**
+   * @return number of rows dropped because their key had already been written
+   */
+  public long getDuplicates() {
+    return duplicates;
+  }
+
+  private static final Comparator<Record> RECORD_COMPARATOR = new Comparator<Record>() {
+    @Override
+    public int compare(Record record, Record record1) {
+      return Bytes.compareTo(record.row, record1.row);
+    }
+  };
+
+  // An encoded row waiting to be sorted
+
+  private static class Record {
+    final byte[] row;
+    final String schemaKey;
+    final long version;
+    final int format;
+    final byte[] data;
+
+    Record(byte[] row, String schemaKey, long version, int format, byte[] data) {
+      this.row = row;
+      this.schemaKey = schemaKey;
+      this.version = version;
+      this.format = format;
+      this.data = data;
+    }
+
+    long size() {
+      return row.length + data.length + RECORD_OVERHEAD;
+    }
+
+    void write(DataOutputStream dos) throws IOException {
+      dos.writeInt(row.length);
+      dos.write(row);
+      dos.writeUTF(schemaKey);
+      dos.writeLong(version);
+      dos.writeInt(format);
+      dos.writeInt(data.length);
+      dos.write(data);
+    }
+
+    static Record read(DataInputStream dis) throws IOException {
+      int length;
+      try {
+        length = dis.readInt();
+      } catch (EOFException e) {
+        return null;
+      }
+      byte[] row = new byte[length];
+      dis.readFully(row);
+      String schemaKey = dis.readUTF();
+      long version = dis.readLong();
+      int format = dis.readInt();
+      byte[] data = new byte[dis.readInt()];
+      dis.readFully(data);
+      return new Record(row, schemaKey, version, format, data);
+    }
+  }
+
+  // A sorted run being merged, ties go to the earlier run so the first occurrence wins
+
+  private static class Run implements Comparable<Run> {
+    final int index;
+    final DataInputStream dis;
+    Record current;
+
+    Run(int index, File file) throws IOException {
+      this.index = index;
+      dis = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 65536));
+    }
+
+    boolean advance() throws IOException {
+      current = Record.read(dis);
+      return current != null;
+    }
+
+    void close() throws IOException {
+      dis.close();
+    }
+
+    @Override
+    public int compareTo(Run run) {
+      int compare = Bytes.compareTo(current.row, run.current.row);
+      return compare == 0 ? index - run.index : compare;
+    }
+  }
+}
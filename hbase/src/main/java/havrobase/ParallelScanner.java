@@ -0,0 +1,271 @@
+package havrobase;
+
+import avrobase.AvroBaseException;
+import avrobase.Row;
+import org.apache.avro.specific.SpecificRecord;
+import org.apache.commons.lang.NotImplementedException;
+import org.apache.hadoop.hbase.client.HTable;
+import org.apache.hadoop.hbase.client.HTableInterface;
+import org.apache.hadoop.hbase.client.HTablePool;
+import org.apache.hadoop.hbase.client.Result;
+import org.apache.hadoop.hbase.client.ResultScanner;
+import org.apache.hadoop.hbase.client.Scan;
+import org.apache.hadoop.hbase.util.Bytes;
+import org.apache.hadoop.hbase.util.Pair;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Scans a HAB with one scanner per region running concurrently. At most parallelism regions
+ * are scanned at once and each buffers at most prefetch rows ahead of the consumer. When
+ * ordered, rows come back in key order by draining the regions in sequence, otherwise rows are
+ * returned as soon as any region produces them.
+ * <p/>
+ * Close the scanner if you stop iterating early so the region scanners are released.
+ * <p/>
+ * User: sam
+ * Date: 6/23/11
+ * Time: 2:15 PM
+ */
+public class ParallelScanner<T extends SpecificRecord> implements Iterable<Row<T, byte[]>>, Closeable {
+  private static final Object END = new Object();
+  private static final byte[] EMPTY = new byte[0];
+
+  private final HAB<T> hab;
+  private final HTablePool pool;
+  private final ScanOptions options;
+  private final ExecutorService es;
+  private final int parallelism;
+  private final boolean ordered;
+  private final List<byte[][]> ranges;
+  private final List<BlockingQueue<Object>> queues = new ArrayList<BlockingQueue<Object>>();
+  private final AtomicInteger next = new AtomicInteger(0);
+  private final AtomicBoolean closed = new AtomicBoolean(false);
+  private boolean iterated;
+
+  ParallelScanner(HAB<T> hab, HTablePool pool, byte[] startRow, byte[] stopRow, ScanOptions options,
+                  ExecutorService es, int parallelism, int prefetch, boolean ordered) {
+    if (parallelism < 1) {
+      throw new IllegalArgumentException("parallelism must be positive: " + parallelism);
+    }
+    if (prefetch < 1) {
+      throw new IllegalArgumentException("prefetch must be positive: " + prefetch);
+    }
+    this.hab = hab;
+    this.pool = pool;
+    this.options = options;
+    this.es = es;
+    this.parallelism = parallelism;
+    this.ordered = ordered;
+    HTableInterface table = hab.getTable();
+    try {
+      byte[][] starts;
+      byte[][] ends;
+      if (table instanceof HTable) {
+        Pair<byte[][], byte[][]> keys = ((HTable) table).getStartEndKeys();
+        starts = keys.getFirst();
+        ends = keys.getSecond();
+      } else {
+        // No way to find the regions, fall back to a single scanner
+        starts = new byte[][]{EMPTY};
+        ends = new byte[][]{EMPTY};
+      }
+      if (hab.getSaltBuckets() == 0) {
+        ranges = clip(starts, ends, startRow, stopRow);
+      } else {
+        // The logical range is a separate physical range in every bucket
+        ranges = new ArrayList<byte[][]>();
+        for (int bucket = 0; bucket < hab.getSaltBuckets(); bucket++) {
+          byte[][] range = hab.bucketRange(bucket, startRow, stopRow);
+          ranges.addAll(clip(starts, ends, range[0], range[1]));
+        }
+      }
+    } catch (IOException e) {
+      throw new AvroBaseException("Could not find regions", e);
+    } finally {
+      pool.putTable(table);
+    }
+    if (ordered) {
+      for (int i = 0; i < ranges.size(); i++) {
+        queues.add(new LinkedBlockingQueue<Object>(prefetch));
+      }
+    } else {
+      // Everyone shares one queue bounded by the total prefetch
+      queues.add(new LinkedBlockingQueue<Object>(prefetch * parallelism));
+    }
+  }
+
+  /**
+   * Intersect the region boundaries with the range [startRow, stopRow). Empty or null keys
+   * mean unbounded as they do for HBase.
+   *
+   * @return pairs of start and stop rows in key order
+   */
+  static List<byte[][]> clip(byte[][] starts, byte[][] ends, byte[] startRow, byte[] stopRow) {
+    if (startRow == null) startRow = EMPTY;
+    if (stopRow == null) stopRow = EMPTY;
+    List<byte[][]> ranges = new ArrayList<byte[][]>();
+    for (int i = 0; i < starts.length; i++) {
+      byte[] start = starts[i];
+      byte[] end = ends[i];
+      if (Bytes.compareTo(startRow, start) > 0) {
+        start = startRow;
+      }
+      if (end.length == 0 || (stopRow.length != 0 && Bytes.compareTo(stopRow, end) < 0)) {
+        end = stopRow;
+      }
+      if (end.length == 0 || Bytes.compareTo(start, end) < 0) {
+        ranges.add(new byte[][]{start, end});
+      }
+    }
+    return ranges;
+  }
+
+  /**
+   * @return number of region ranges that will be scanned
+   */
+  public int getRegions() {
+    return ranges.size();
+  }
+
+  // Start scanning the next region if there is one left
+
+  private void launch() {
+    if (closed.get()) return;
+    final int index = next.getAndIncrement();
+    if (index >= ranges.size()) return;
+    final BlockingQueue<Object> queue = ordered ? queues.get(index) : queues.get(0);
+    es.submit(new Runnable() {
+      @Override
+      public void run() {
+        Object last = END;
+        try {
+          scanRegion(ranges.get(index), queue);
+        } catch (Throwable e) {
+          last = e;
+        } finally {
+          enqueue(queue, last);
+          launch();
+        }
+      }
+    });
+  }
+
+  private void scanRegion(byte[][] range, BlockingQueue<Object> queue) throws IOException {
+    Scan scan = hab.createScan(range[0], range[1], options);
+    HTableInterface table = hab.getTable();
+    try {
+      ResultScanner scanner = table.getScanner(scan);
+      try {
+        for (Result result : scanner) {
+          Row<T, byte[]> row = hab.getRowResult(result, hab.unsalt(result.getRow()), options.getProjection());
+          // Skip empty rows and the increment row
+          if (row == null || row.row.length == 0) {
+            continue;
+          }
+          if (!enqueue(queue, row)) {
+            return;
+          }
+        }
+      } finally {
+        scanner.close();
+      }
+    } finally {
+      pool.putTable(table);
+    }
+  }
+
+  // Wait for room in the queue, giving up if the scan is closed
+
+  private boolean enqueue(BlockingQueue<Object> queue, Object o) {
+    try {
+      while (!closed.get()) {
+        if (queue.offer(o, 100, TimeUnit.MILLISECONDS)) {
+          return true;
+        }
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    return false;
+  }
+
+  @Override
+  public synchronized Iterator<Row<T, byte[]>> iterator() {
+    if (iterated) {
+      throw new IllegalStateException("A parallel scan can only be iterated once");
+    }
+    iterated = true;
+    for (int i = 0; i < parallelism; i++) {
+      launch();
+    }
+    return new Iterator<Row<T, byte[]>>() {
+      Row<T, byte[]> r;
+      int current = 0;
+      int finished = 0;
+
+      @Override
+      public boolean hasNext() {
+        if (r != null) return true;
+        while (ordered ? current < queues.size() : finished < ranges.size()) {
+          if (closed.get()) return false;
+          Object o;
+          try {
+            o = queues.get(ordered ? current : 0).poll(100, TimeUnit.MILLISECONDS);
+          } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new AvroBaseException("Interrupted during scan", e);
+          }
+          if (o == null) continue;
+          if (o == END) {
+            current++;
+            finished++;
+          } else if (o instanceof Throwable) {
+            close();
+            throw new AvroBaseException("Region scan failed", (Throwable) o);
+          } else {
+            r = (Row<T, byte[]>) o;
+            return true;
+          }
+        }
+        return false;
+      }
+
+      @Override
+      public Row<T, byte[]> next() {
+        if (hasNext()) {
+          try {
+            return r;
+          } finally {
+            r = null;
+          }
+        }
+        throw new NoSuchElementException();
+      }
+
+      @Override
+      public void remove() {
+        throw new NotImplementedException();
+      }
+    };
+  }
+
+  /**
+   * Stop all the region scanners. Safe to call more than once.
+   */
+  @Override
+  public void close() {
+    closed.set(true);
+  }
+}
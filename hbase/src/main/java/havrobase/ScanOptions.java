@@ -0,0 +1,95 @@
+package havrobase;
+
+/**
+ * Tuning knobs for HAB scans. Can be bound once per AvroBase with the name "scan" or
+ * passed per call to HAB.scan(startRow, stopRow, options).
+ * <p/>
+ * User: sam
+ * Date: 6/20/11
+ * Time: 10:12 AM
+ */
+public class ScanOptions {
+
+  /**
+   * What part of each row the scanner should bring back from the region server.
+   */
+  public enum Projection {
+    // The full row including the deserialized value
+    FULL,
+    // Only the row keys, values and versions are not returned
+    KEYS_ONLY,
+    // Only the row keys and their versions, values are not returned
+    VERSIONS_ONLY
+  }
+
+  /**
+   * Interactive scans, a reasonable amount of caching and the block cache is used.
+   */
+  public static final ScanOptions DEFAULT = new ScanOptions(100, 0, true, Projection.FULL);
+
+  /**
+   * Batch jobs like reindexing and archiving, larger caching and the block cache is left alone.
+   */
+  public static final ScanOptions BATCH = new ScanOptions(1000, 0, false, Projection.FULL);
+
+  public ScanOptions(int caching, boolean cacheBlocks) {
+    this(caching, 0, cacheBlocks, Projection.FULL);
+  }
+
+  public ScanOptions(int caching, boolean cacheBlocks, Projection projection) {
+    this(caching, 0, cacheBlocks, projection);
+  }
+
+  /**
+   * @param caching     number of rows fetched per RPC, 0 to use the client configuration
+   * @param batch       maximum number of cells per Result, 0 for unlimited. Must be large enough
+   *                    to hold an entire row as HAB does not reassemble partial rows.
+   * @param cacheBlocks whether the region server should populate its block cache
+   * @param projection  what to return for each row
+   */
+  public ScanOptions(int caching, int batch, boolean cacheBlocks, Projection projection) {
+    if (caching < 0) {
+      throw new IllegalArgumentException("caching must be non-negative: " + caching);
+    }
+    if (batch < 0) {
+      throw new IllegalArgumentException("batch must be non-negative: " + batch);
+    }
+    if (projection == null) {
+      throw new IllegalArgumentException("projection must be non-null");
+    }
+    this.caching = caching;
+    this.batch = batch;
+    this.cacheBlocks = cacheBlocks;
+    this.projection = projection;
+  }
+
+  public ScanOptions withProjection(Projection projection) {
+    return new ScanOptions(caching, batch, cacheBlocks, projection);
+  }
+
+  public int getCaching() {
+    return caching;
+  }
+
+  public int getBatch() {
+    return batch;
+  }
+
+  public boolean isCacheBlocks() {
+    return cacheBlocks;
+  }
+
+  public Projection getProjection() {
+    return projection;
+  }
+
+  @Override
+  public String toString() {
+    return "[caching=" + caching + ", batch=" + batch + ", cacheBlocks=" + cacheBlocks + ", projection=" + projection + "]";
+  }
+
+  protected final int caching;
+  protected final int batch;
+  protected final boolean cacheBlocks;
+  protected final Projection projection;
+}
@@ -5,6 +5,7 @@ import avrobase.AvroBaseException;
 import avrobase.AvroBaseFactory;
 import avrobase.AvroFormat;
 import avrobase.Row;
+import avrobase.TimestampGenerator;
 import bagcheck.GenderType;
 import bagcheck.User;
 import com.google.common.base.Supplier;
@@ -18,22 +19,28 @@ import org.apache.avro.io.DecoderFactory;
 import org.apache.avro.io.JsonDecoder;
 import org.apache.avro.specific.SpecificDatumReader;
 import org.apache.avro.util.Utf8;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
 import org.apache.hadoop.hbase.HBaseConfiguration;
 import org.apache.hadoop.hbase.MasterNotRunningException;
 import org.apache.hadoop.hbase.ZooKeeperConnectionException;
 import org.apache.hadoop.hbase.client.Delete;
 import org.apache.hadoop.hbase.client.Get;
 import org.apache.hadoop.hbase.client.HBaseAdmin;
+import org.apache.hadoop.hbase.client.HTable;
 import org.apache.hadoop.hbase.client.HTableInterface;
 import org.apache.hadoop.hbase.client.HTablePool;
 import org.apache.hadoop.hbase.client.Put;
 import org.apache.hadoop.hbase.client.Result;
 import org.apache.hadoop.hbase.client.ResultScanner;
 import org.apache.hadoop.hbase.client.Scan;
+import org.apache.hadoop.hbase.io.hfile.Compression;
 import org.apache.hadoop.hbase.util.Bytes;
 import org.junit.BeforeClass;
 import org.junit.Test;
 
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.nio.ByteBuffer;
@@ -43,6 +50,8 @@ import java.util.List;
 import java.util.Map;
 import java.util.NavigableMap;
 import java.util.Random;
+import java.util.Set;
+import java.util.TreeSet;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.Semaphore;
@@ -64,6 +73,7 @@ public class HABTest {
   private static final byte[] COLUMN_FAMILY = Bytes.toBytes("profile");
   private static final byte[] TABLE = Bytes.toBytes("test_user");
   private static final byte[] SCHEMA_TABLE = Bytes.toBytes("test_schema");
+  private static final byte[] SALTED_TABLE = Bytes.toBytes("test_user_salted");
   protected static final Provider<String> NULL_STRING_PROVIDER = new Provider<String>() {
     @Override
     public String get() {
@@ -105,10 +115,26 @@ public class HABTest {
     }
   }
 
+  static class SaltedHABModule implements Module {
+    @Override
+    public void configure(Binder binder) {
+      binder.bind(Schema.class).toInstance(User.SCHEMA$);
+      binder.bind(byte[].class).annotatedWith(Names.named("schema")).toInstance(SCHEMA_TABLE);
+      binder.bind(byte[].class).annotatedWith(Names.named("table")).toInstance(SALTED_TABLE);
+      binder.bind(byte[].class).annotatedWith(Names.named("family")).toInstance(COLUMN_FAMILY);
+      binder.bind(HAB.CreateType.class).toInstance(HAB.CreateType.TIMESTAMP);
+      binder.bind(new TypeLiteral<Supplier<byte[]>>() {}).toProvider(HABModule.NULL_SUPPLIER_PROVIDER);
+      binder.bind(HTablePool.class).toInstance(new HTablePool());
+      binder.bind(HBaseAdmin.class).toInstance(HABModule.admin);
+      binder.bindConstant().annotatedWith(Names.named("saltBuckets")).to(8);
+    }
+  }
+
   @BeforeClass
   public static void setup() {
     deleteTable(SCHEMA_TABLE);
     deleteTable(TABLE);
+    deleteTable(SALTED_TABLE);
   }
 
   private static void deleteTable(byte[] tableName) {
@@ -220,6 +246,171 @@ public class HABTest {
     assertEquals(saved, loaded.value);
   }
 
+  @Test
+  public void testSaveLastWriterWins() throws AvroBaseException {
+    AvroBase<User, byte[]> userHAB = AvroBaseFactory.createAvroBase(new HABModule() {
+      @Override
+      public void configure(Binder binder) {
+        super.configure(binder);
+        binder.bind(HAB.PutType.class).toInstance(HAB.PutType.LAST_WRITER_WINS);
+      }
+    }, HAB.class, AvroFormat.BINARY);
+    User saved = getUser();
+    byte[] row = Bytes.toBytes("lastwriter");
+    userHAB.put(row, saved);
+    Row<User, byte[]> first = userHAB.get(row);
+    assertEquals(saved, first.value);
+    saved.firstName = $("John");
+    userHAB.put(row, saved);
+    Row<User, byte[]> second = userHAB.get(row);
+    assertEquals(saved, second.value);
+    assertTrue(second.version > first.version);
+    // Conditional puts still work against the timestamp version
+    assertFalse(userHAB.put(row, saved, first.version));
+    assertTrue(userHAB.put(row, saved, second.version));
+    userHAB.delete(row);
+  }
+
+  @Test
+  public void testLastWriterWinsClockBehind() throws AvroBaseException {
+    AvroBase<User, byte[]> userHAB = AvroBaseFactory.createAvroBase(new HABModule(), HAB.class, AvroFormat.BINARY);
+    AvroBase<User, byte[]> behindHAB = AvroBaseFactory.createAvroBase(new HABModule() {
+      @Override
+      public void configure(Binder binder) {
+        super.configure(binder);
+        binder.bind(HAB.PutType.class).toInstance(HAB.PutType.LAST_WRITER_WINS);
+        // A node whose clock is far behind the versions already written
+        binder.bind(TimestampGenerator.class).annotatedWith(Names.named("timestamp")).toInstance(new TimestampGenerator() {
+          @Override
+          public long getTimestamp() {
+            return 1;
+          }
+        });
+      }
+    }, HAB.class, AvroFormat.BINARY);
+    User saved = getUser();
+    byte[] row = Bytes.toBytes("clockbehind");
+    userHAB.delete(row);
+    assertTrue(userHAB.put(row, saved, 0));
+    Row<User, byte[]> first = userHAB.get(row);
+    assertTrue(userHAB.put(row, saved, first.version));
+    Row<User, byte[]> second = userHAB.get(row);
+    behindHAB.put(row, saved);
+    Row<User, byte[]> third = userHAB.get(row);
+    assertTrue(third.version > second.version);
+    // A writer holding an earlier version can't win
+    assertFalse(userHAB.put(row, saved, first.version));
+    assertFalse(userHAB.put(row, saved, second.version));
+    assertTrue(userHAB.put(row, saved, third.version));
+    userHAB.delete(row);
+  }
+
+  @Test
+  public void testPacked() throws AvroBaseException {
+    AvroBase<User, byte[]> userHAB = AvroBaseFactory.createAvroBase(new HABModule(), HAB.class, AvroFormat.BINARY);
+    AvroBase<User, byte[]> packedHAB = AvroBaseFactory.createAvroBase(new HABModule() {
+      @Override
+      public void configure(Binder binder) {
+        super.configure(binder);
+        binder.bindConstant().annotatedWith(Names.named("packed")).to(true);
+      }
+    }, HAB.class, AvroFormat.BINARY);
+    User saved = getUser();
+    byte[] row = Bytes.toBytes("packed");
+    userHAB.put(row, saved);
+    // Rows in the old layout are still readable and can be rewritten packed
+    Row<User, byte[]> unpacked = packedHAB.get(row);
+    assertEquals(saved, unpacked.value);
+    saved.firstName = $("Packed");
+    assertTrue(packedHAB.put(row, saved, unpacked.version));
+    Row<User, byte[]> packed = packedHAB.get(row);
+    assertEquals(saved, packed.value);
+    assertEquals(unpacked.version + 1, packed.version);
+    assertEquals(packed, userHAB.get(row));
+    assertFalse(packedHAB.put(row, saved, unpacked.version));
+    // Switching back ignores the stale packed cell
+    saved.firstName = $("Unpacked");
+    assertTrue(userHAB.put(row, saved, packed.version));
+    assertEquals(saved, packedHAB.get(row).value);
+    userHAB.delete(row);
+  }
+
+  @Test
+  public void testBulkLoad() throws AvroBaseException, IOException {
+    HAB<User> userHAB = (HAB<User>) AvroBaseFactory.createAvroBase(new HABModule(), HAB.class, AvroFormat.BINARY);
+    Configuration conf = HBaseConfiguration.create();
+    File tmp = new File(System.getProperty("java.io.tmpdir"));
+    Path output = new Path(new File(tmp, "habbulk" + System.currentTimeMillis()).getAbsolutePath());
+    // Tiny sort buffer to force multiple runs through the merge
+    HFileBulkLoader<User> loader = new HFileBulkLoader<User>(userHAB, FileSystem.getLocal(conf), output, tmp,
+        Compression.Algorithm.NONE, 1024, HFileBulkLoader.DEFAULT_MAX_FILE_SIZE);
+    User user = getUser();
+    for (int i = 99; i >= 0; i--) {
+      loader.add(Bytes.toBytes("bulk" + (i < 10 ? "0" : "") + i), user);
+    }
+    loader.add(Bytes.toBytes("bulk00"), user);
+    List<Path> files = loader.finish();
+    assertEquals(1, files.size());
+    assertEquals(1, loader.getDuplicates());
+    loader.load(conf);
+    Row<User, byte[]> loaded = userHAB.get(Bytes.toBytes("bulk42"));
+    assertEquals(user, loaded.value);
+    assertEquals(1, loaded.version);
+    int total = 0;
+    for (Row<User, byte[]> row : userHAB.scan(Bytes.toBytes("bulk"), Bytes.toBytes("bulk~"))) {
+      total++;
+      userHAB.delete(row.row);
+    }
+    assertEquals(100, total);
+  }
+
+  @Test
+  public void testBufferedWriter() throws AvroBaseException, IOException {
+    HAB<User> userHAB = (HAB<User>) AvroBaseFactory.createAvroBase(new HABModule(), HAB.class, AvroFormat.BINARY);
+    BufferedHABWriter<User> writer = new BufferedHABWriter<User>(userHAB, HBaseConfiguration.create(), BufferedHABWriter.DEFAULT_WRITE_BUFFER, 0);
+    User user = getUser();
+    for (int i = 0; i < 1000; i++) {
+      writer.put(Bytes.toBytes("buffered" + i), user);
+    }
+    assertTrue(writer.flush().isEmpty());
+    writer.close();
+    for (int i = 0; i < 1000; i++) {
+      byte[] row = Bytes.toBytes("buffered" + i);
+      assertEquals(user, userHAB.get(row).value);
+      userHAB.delete(row);
+    }
+  }
+
+  @Test
+  public void testBufferedWriterClockBehind() throws AvroBaseException, IOException {
+    HAB<User> userHAB = (HAB<User>) AvroBaseFactory.createAvroBase(new HABModule(), HAB.class, AvroFormat.BINARY);
+    HAB<User> behindHAB = (HAB<User>) AvroBaseFactory.createAvroBase(new HABModule() {
+      @Override
+      public void configure(Binder binder) {
+        super.configure(binder);
+        binder.bind(TimestampGenerator.class).annotatedWith(Names.named("timestamp")).toInstance(new TimestampGenerator() {
+          @Override
+          public long getTimestamp() {
+            return 1;
+          }
+        });
+      }
+    }, HAB.class, AvroFormat.BINARY);
+    User user = getUser();
+    byte[] row = Bytes.toBytes("bufferedclockbehind");
+    userHAB.delete(row);
+    assertTrue(userHAB.put(row, user, 0));
+    Row<User, byte[]> first = userHAB.get(row);
+    BufferedHABWriter<User> writer = new BufferedHABWriter<User>(behindHAB, HBaseConfiguration.create(), BufferedHABWriter.DEFAULT_WRITE_BUFFER, 0);
+    writer.put(row, user);
+    assertTrue(writer.flush().isEmpty());
+    writer.close();
+    Row<User, byte[]> second = userHAB.get(row);
+    assertTrue(second.version > first.version);
+    assertFalse(userHAB.put(row, user, first.version));
+    userHAB.delete(row);
+  }
+
   @Test
   public void testCreateSequential() throws AvroBaseException {
     deleteTable(SCHEMA_TABLE);
@@ -311,6 +502,119 @@ public class HABTest {
     }
   }
 
+  @Test
+  public void testScanOptions() throws AvroBaseException, IOException {
+    testSaveJsonFormat();
+    HAB<User> userHAB = (HAB<User>) AvroBaseFactory.createAvroBase(new HABModule(), HAB.class, AvroFormat.BINARY);
+    byte[] row = Bytes.toBytes("spullara");
+    Row<User, byte[]> loaded = userHAB.get(row);
+    int total = 0;
+    for (Row<User, byte[]> user : userHAB.scan(row, null, ScanOptions.BATCH)) {
+      if (total++ == 0) assertEquals(loaded, user);
+    }
+    assertTrue(total > 0);
+    for (Row<User, byte[]> user : userHAB.scan(row, null, ScanOptions.BATCH.withProjection(ScanOptions.Projection.VERSIONS_ONLY))) {
+      assertEquals(null, user.value);
+      assertEquals(loaded.version, user.version);
+      break;
+    }
+    for (Row<User, byte[]> user : userHAB.scan(row, null, ScanOptions.BATCH.withProjection(ScanOptions.Projection.KEYS_ONLY))) {
+      assertEquals(null, user.value);
+      assertEquals("spullara", Bytes.toString(user.row));
+      break;
+    }
+  }
+
+  @Test
+  public void testClipRegions() {
+    byte[][] starts = new byte[][]{new byte[0], Bytes.toBytes("g"), Bytes.toBytes("p")};
+    byte[][] ends = new byte[][]{Bytes.toBytes("g"), Bytes.toBytes("p"), new byte[0]};
+    assertEquals(3, ParallelScanner.clip(starts, ends, null, null).size());
+    List<byte[][]> ranges = ParallelScanner.clip(starts, ends, Bytes.toBytes("h"), Bytes.toBytes("q"));
+    assertEquals(2, ranges.size());
+    assertEquals("h", Bytes.toString(ranges.get(0)[0]));
+    assertEquals("p", Bytes.toString(ranges.get(0)[1]));
+    assertEquals("p", Bytes.toString(ranges.get(1)[0]));
+    assertEquals("q", Bytes.toString(ranges.get(1)[1]));
+    assertEquals(1, ParallelScanner.clip(starts, ends, Bytes.toBytes("a"), Bytes.toBytes("b")).size());
+    assertEquals(0, ParallelScanner.clip(starts, ends, Bytes.toBytes("g"), Bytes.toBytes("g")).size());
+  }
+
+  @Test
+  public void testParallelScan() throws AvroBaseException, IOException {
+    testSaveJsonFormat();
+    HAB<User> userHAB = (HAB<User>) AvroBaseFactory.createAvroBase(new HABModule(), HAB.class, AvroFormat.BINARY);
+    ExecutorService es = Executors.newCachedThreadPool();
+    try {
+      int sequential = 0;
+      for (Row<User, byte[]> user : userHAB.scan(null, null)) {
+        sequential++;
+      }
+      int parallel = 0;
+      ParallelScanner<User> scanner = userHAB.parallelScan(null, null, ScanOptions.BATCH, es, 4, 100);
+      for (Row<User, byte[]> user : scanner) {
+        parallel++;
+      }
+      assertEquals(sequential, parallel);
+      byte[] last = null;
+      int ordered = 0;
+      for (Row<User, byte[]> user : userHAB.orderedParallelScan(null, null, ScanOptions.BATCH, es, 4, 100)) {
+        if (last != null) assertTrue(Bytes.compareTo(last, user.row) < 0);
+        last = user.row;
+        ordered++;
+      }
+      assertEquals(sequential, ordered);
+    } finally {
+      es.shutdown();
+    }
+  }
+
+  @Test
+  public void testSalted() throws AvroBaseException, IOException {
+    HAB<User> userHAB = (HAB<User>) AvroBaseFactory.createAvroBase(new SaltedHABModule(), HAB.class, AvroFormat.BINARY);
+    User user = getUser();
+    List<byte[]> rows = new ArrayList<byte[]>();
+    for (int i = 0; i < 100; i++) {
+      rows.add(userHAB.create(user));
+    }
+    for (byte[] row : rows) {
+      Row<User, byte[]> loaded = userHAB.get(row);
+      assertEquals(user, loaded.value);
+      assertEquals(8, loaded.row.length);
+    }
+    // Scans merge the buckets back into key order
+    byte[] last = null;
+    int total = 0;
+    for (Row<User, byte[]> row : userHAB.scan(rows.get(10), rows.get(90))) {
+      if (last != null) assertTrue(Bytes.compareTo(last, row.row) < 0);
+      last = row.row;
+      total++;
+    }
+    assertEquals(80, total);
+    // An empty stop row scans to the end of every bucket
+    Set<byte[]> created = new TreeSet<byte[]>(Bytes.BYTES_COMPARATOR);
+    created.addAll(rows);
+    int expected = 0;
+    for (byte[] row : rows) {
+      if (Bytes.compareTo(row, rows.get(90)) >= 0) expected++;
+    }
+    int found = 0;
+    for (Row<User, byte[]> row : userHAB.scan(rows.get(90), new byte[0])) {
+      if (created.contains(row.row)) found++;
+    }
+    assertEquals(expected, found);
+    HTablePool pool = new HTablePool();
+    HTable table = (HTable) pool.getTable(SALTED_TABLE);
+    try {
+      assertEquals(8, table.getStartKeys().length);
+    } finally {
+      pool.putTable(table);
+    }
+    for (byte[] row : rows) {
+      userHAB.delete(row);
+    }
+  }
+
   @Test
   public void testSchemolution() /* will not be televised */ throws AvroBaseException, IOException {
     testSaveJsonFormat();
@@ -3,6 +3,14 @@ package havrobase;
 import avrobase.TimestampGenerator;
 import org.junit.Test;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertTrue;
 
 /**
@@ -44,4 +52,43 @@ public class TimestampGeneratorTest {
     System.out.println(generator.getTimestamp() - start);
     System.out.println(System.currentTimeMillis() - startms);
   }
+
+  @Test
+  public void testNodeAndStripes() throws InterruptedException {
+    final TimestampGenerator node1 = new TimestampGenerator(1, 4, 2);
+    final TimestampGenerator node2 = new TimestampGenerator(2, 4, 2);
+    final Set<Long> timestamps = Collections.newSetFromMap(new ConcurrentHashMap<Long, Boolean>());
+    final AtomicInteger duplicates = new AtomicInteger(0);
+    final AtomicInteger outOfOrder = new AtomicInteger(0);
+    final List<Throwable> errors = Collections.synchronizedList(new ArrayList<Throwable>());
+    List<Thread> threads = new ArrayList<Thread>();
+    for (int i = 0; i < 8; i++) {
+      final TimestampGenerator generator = i % 2 == 0 ? node1 : node2;
+      Thread thread = new Thread() {
+        public void run() {
+          try {
+            long last = 0;
+            for (int j = 0; j < 100000; j++) {
+              long timestamp = generator.getTimestamp();
+              if (timestamp <= last) outOfOrder.incrementAndGet();
+              last = timestamp;
+              if (!timestamps.add(timestamp)) duplicates.incrementAndGet();
+            }
+          } catch (Throwable t) {
+            errors.add(t);
+          }
+        }
+      };
+      threads.add(thread);
+      thread.start();
+    }
+    for (Thread thread : threads) {
+      thread.join();
+    }
+    // Assert here, a failure inside a worker thread wouldn't fail the test
+    assertEquals(Collections.<Throwable>emptyList(), errors);
+    assertEquals(0, outOfOrder.get());
+    assertEquals(0, duplicates.get());
+    assertEquals(800000, timestamps.size());
+  }
 }
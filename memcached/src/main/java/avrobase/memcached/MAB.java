@@ -3,7 +3,9 @@ package avrobase.memcached;
 import avrobase.AvroBaseException;
 import avrobase.AvroBaseImpl;
 import avrobase.AvroFormat;
+import avrobase.CacheTier;
 import avrobase.Row;
+import avrobase.SchemaRegistry;
 import com.danga.MemCached.MemCachedClient;
 import com.google.inject.Inject;
 import com.google.inject.name.Named;
@@ -11,17 +13,58 @@ import com.schooner.MemCached.MemcachedItem;
 import org.apache.avro.Schema;
 import org.apache.avro.specific.SpecificRecord;
 
+import java.nio.ByteBuffer;
+import java.security.SecureRandom;
+import java.util.Collection;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Random;
+
 /**
  * Memcached implementation used for caching only. No queries.
  * <p/>
+ * Each row is stored under one key as an envelope of the 8 byte id of its schema, an 8 byte
+ * store version and the avro value, so a get is a single round trip. Schema ids are the
+ * leading bytes of the schema's hash and are resolved from a local registry, only going to
+ * memcached for schemas this process hasn't seen. The version of a row is its memcached cas
+ * unique, except as a CacheTier where it is the version the store of record gave the row.
+ * A lease is a bare 8 byte token stored under the row's key, which reads as a miss, and
+ * expires if it is never filled.
+ * <p/>
  * User: sam
  * Date: Jun 23, 2010
  * Time: 12:14:36 PM
  */
-public class MAB<T extends SpecificRecord> extends AvroBaseImpl<T, String> {
+public class MAB<T extends SpecificRecord> extends AvroBaseImpl<T, String> implements CacheTier<T, String> {
+  public static final int LEASE_SECONDS = 60;
+
+  private static final int HEADER_LENGTH = 16;
+  private static final int LEASE_LENGTH = 8;
+
+  // Attempts to replace a cached row that others are also replacing before giving up on it
+  private static final int CACHE_ATTEMPTS = 3;
+
   private String prekey;
   private String schemaPrekey;
   private MemCachedClient client;
+  private final Random random = new SecureRandom();
+
+  private final SchemaRegistry<Long> schemas = new SchemaRegistry<Long>(new SchemaRegistry.Store<Long>() {
+    @Override
+    public Schema load(Long id) throws AvroBaseException {
+      byte[] doc = (byte[]) client.get(schemaPrekey + id);
+      return doc == null ? null : SchemaRegistry.parse(id, doc);
+    }
+
+    @Override
+    public Long store(Schema schema) throws AvroBaseException {
+      String doc = schema.toString();
+      long id = schemaId(doc);
+      client.set(schemaPrekey + id, doc.getBytes(UTF8));
+      return id;
+    }
+  });
 
   @Inject
   public MAB(
@@ -41,15 +84,45 @@ public class MAB<T extends SpecificRecord> extends AvroBaseImpl<T, String> {
   @Override
   public Row<T, String> get(String row) throws AvroBaseException {
     MemcachedItem memcachedItem = client.gets(prekey + row);
-    long version = memcachedItem.getCasUnique();
-    byte[] bytes = (byte[]) memcachedItem.getValue();
-    String schemaKey = new String((byte[]) client.get(prekey + schemaPrekey + row));
-    Schema schema = schemaCache.get(schemaKey);
-    if (schema == null) {
-      byte[] schemab = (byte[]) client.get(schemaPrekey + schemaKey);
-      schema = loadSchema(schemab, schemaKey);
+    if (memcachedItem == null) {
+      return null;
     }
-    return new Row<T, String>(readValue(bytes, schema, format), row, version);
+    Row<T, String> r = readRow(row, (byte[]) memcachedItem.getValue());
+    if (r != null) {
+      r.version = memcachedItem.getCasUnique();
+    }
+    return r;
+  }
+
+  /**
+   * Get many rows in one round trip. Memcached doesn't return cas uniques for multiple keys
+   * so the rows have version 0; get a row on its own before a conditional put.
+   *
+   * @param rows
+   * @return the rows that are cached, in the order they were asked for
+   */
+  public Map<String, Row<T, String>> getAll(Collection<String> rows) throws AvroBaseException {
+    String[] keys = new String[rows.size()];
+    int i = 0;
+    for (String row : rows) {
+      keys[i++] = prekey + row;
+    }
+    Map<String, Object> values = client.getMulti(keys);
+    Map<String, Row<T, String>> found = new LinkedHashMap<String, Row<T, String>>();
+    if (values == null) {
+      return found;
+    }
+    for (String row : rows) {
+      byte[] envelope = (byte[]) values.get(prekey + row);
+      if (envelope != null) {
+        Row<T, String> r = readRow(row, envelope);
+        if (r != null) {
+          r.version = 0;
+          found.put(row, r);
+        }
+      }
+    }
+    return found;
   }
 
   @Override
@@ -59,42 +132,126 @@ public class MAB<T extends SpecificRecord> extends AvroBaseImpl<T, String> {
 
   @Override
   public void put(String row, T value) throws AvroBaseException {
-    Schema schema = value.getSchema();
-    String schemaKey = getSchemaKey(schema);
-    byte[] bytes = serialize(value);
-    client.set(prekey + row, bytes);
-    client.set(prekey + schemaPrekey + row, schemaKey.getBytes());
+    client.set(prekey + row, envelope(value, 0));
   }
 
   @Override
   public boolean put(String row, T value, long version) throws AvroBaseException {
-    Schema schema = value.getSchema();
-    String schemaKey = getSchemaKey(schema);
-    byte[] bytes = serialize(value);
-    boolean b = client.cas(prekey + row, bytes, version);
-    if (b) {
-      client.set(prekey + schemaPrekey + row, schemaKey.getBytes());
+    return client.cas(prekey + row, envelope(value, 0), version);
+  }
+
+  @Override
+  public Row<T, String> getCached(String row) throws AvroBaseException {
+    Object envelope = client.get(prekey + row);
+    return envelope == null ? null : readRow(row, (byte[]) envelope);
+  }
+
+  @Override
+  public void cache(Row<T, String> row) throws AvroBaseException {
+    String key = prekey + row.row;
+    byte[] envelope = envelope(row.value, row.version);
+    for (int i = 0; i < CACHE_ATTEMPTS; i++) {
+      MemcachedItem memcachedItem = client.gets(key);
+      if (memcachedItem == null) {
+        if (client.add(key, envelope)) return;
+      } else {
+        if (isNewer((byte[]) memcachedItem.getValue(), row)) return;
+        if (client.cas(key, envelope, memcachedItem.getCasUnique())) return;
+      }
+    }
+    // Rather than risk leaving an older row behind
+    client.delete(key);
+  }
+
+  @Override
+  public long lease(String row) throws AvroBaseException {
+    String key = prekey + row;
+    long token = 0;
+    while (token == 0) {
+      token = random.nextLong();
+    }
+    // Memcached takes expiry times under 30 days as relative
+    if (client.add(key, ByteBuffer.allocate(LEASE_LENGTH).putLong(token).array(), new Date(LEASE_SECONDS * 1000L))) {
+      return token;
+    }
+    MemcachedItem memcachedItem = client.gets(key);
+    return memcachedItem == null ? 0 : leaseToken((byte[]) memcachedItem.getValue());
+  }
+
+  @Override
+  public void cache(Row<T, String> row, long lease) throws AvroBaseException {
+    String key = prekey + row.row;
+    byte[] envelope = envelope(row.value, row.version);
+    for (int i = 0; i < CACHE_ATTEMPTS; i++) {
+      MemcachedItem memcachedItem = client.gets(key);
+      // Invalidated since the lease was taken
+      if (memcachedItem == null) return;
+      byte[] cached = (byte[]) memcachedItem.getValue();
+      long leased = leaseToken(cached);
+      if (leased != 0) {
+        if (leased != lease) return;
+      } else if (isNewer(cached, row)) {
+        return;
+      }
+      if (client.cas(key, envelope, memcachedItem.getCasUnique())) return;
     }
-    return b;
+    client.delete(key);
+  }
+
+  @Override
+  public void invalidate(String row) throws AvroBaseException {
+    delete(row);
   }
 
   @Override
   public void delete(String row) throws AvroBaseException {
-    client.delete(row);
+    client.delete(prekey + row);
   }
 
-  private String getSchemaKey(Schema schema) {
-    String schemaKey = hashCache.get(schema);
-    if (schemaKey == null) {
-      String doc = schema.toString();
-      schemaKey = createSchemaKey(schema, doc);
-      client.set(schemaPrekey + schemaKey, doc.getBytes(UTF8));
+  // Whether the cached envelope holds the row at the same or a later version
+
+  private static boolean isNewer(byte[] cached, Row<?, String> row) {
+    return cached != null && cached.length >= HEADER_LENGTH && ByteBuffer.wrap(cached).getLong(8) >= row.version;
+  }
+
+  // Token of a lease, 0 if the value isn't one
+
+  private static long leaseToken(byte[] cached) {
+    return cached != null && cached.length == LEASE_LENGTH ? ByteBuffer.wrap(cached).getLong() : 0;
+  }
+
+  // Schema id and store version followed by the serialized value
+
+  private byte[] envelope(T value, long version) throws AvroBaseException {
+    long id = schemas.getId(value.getSchema());
+    byte[] bytes = serialize(value);
+    return ByteBuffer.allocate(HEADER_LENGTH + bytes.length).putLong(id).putLong(version).put(bytes).array();
+  }
+
+  // A row whose schema can no longer be found is treated as a miss, it is only a cache
+
+  private Row<T, String> readRow(String row, byte[] envelope) throws AvroBaseException {
+    if (envelope == null || envelope.length < HEADER_LENGTH) {
+      return null;
+    }
+    ByteBuffer header = ByteBuffer.wrap(envelope);
+    Schema schema = schemas.getSchema(header.getLong());
+    if (schema == null) {
+      return null;
     }
-    return schemaKey;
+    long version = header.getLong();
+    return new Row<T, String>(readValue(envelope, schema, format, HEADER_LENGTH, envelope.length - HEADER_LENGTH), row, version);
+  }
+
+  // Leading bytes of the schema hash
+
+  private static long schemaId(String doc) {
+    String hash = SchemaRegistry.hash(doc);
+    return Long.parseLong(hash.substring(0, 15), 16);
   }
 
   @Override
   public Iterable<Row<T, String>> scan(String startRow, String stopRow) throws AvroBaseException {
     throw new Error("Not implemented");
   }
-}
\ No newline at end of file
+}
@@ -17,9 +17,13 @@ import org.apache.avro.util.Utf8;
 import org.junit.Test;
 
 import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Map;
 
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
 
 /**
@@ -72,6 +76,25 @@ public class MABTest {
     assertFalse(userHAB.put(row, loaded.value, loaded.version));
   }
 
+  @Test
+  public void testGetAll() throws AvroBaseException {
+    AvroBase<User, String> userAB = AvroBaseFactory.createAvroBase(new MABModule(), MAB.class, AvroFormat.BINARY);
+    MAB<User> userMAB = (MAB<User>) userAB;
+    User saved = new User();
+    saved.firstName = $("Sam");
+    saved.lastName = $("Pullara");
+    saved.email = $("spullara@yahoo.com");
+    saved.image = $("");
+    saved.password = ByteBuffer.wrap($("").getBytes());
+    userMAB.put("user1", saved);
+    userMAB.put("user2", saved);
+    userMAB.delete("user3");
+    Map<String, Row<User, String>> found = userMAB.getAll(Arrays.asList("user1", "user2", "user3"));
+    assertEquals(Arrays.asList("user1", "user2"), new ArrayList<String>(found.keySet()));
+    assertEquals(saved, found.get("user2").value);
+    assertNull(userMAB.get("user3"));
+  }
+
   private Utf8 $(String string) {
     return new Utf8(string);
   }
@@ -12,7 +12,21 @@ import com.google.common.primitives.Longs;
 * Time: 12:05 PM
 */
 public class InvertedTimestampKeyStrategy implements KeyStrategy<byte[]> {
-  private static TimestampGenerator tg = new TimestampGenerator();
+  private static final TimestampGenerator DEFAULT_GENERATOR = new TimestampGenerator();
+  private final TimestampGenerator tg;
+
+  public InvertedTimestampKeyStrategy() {
+    this(DEFAULT_GENERATOR);
+  }
+
+  /**
+   * Use a generator with a node id when several servers create keys for the same table.
+   *
+   * @param tg
+   */
+  public InvertedTimestampKeyStrategy(TimestampGenerator tg) {
+    this.tg = tg;
+  }
 
   @Override
   public byte[] toBytes(byte[] key) {
@@ -4,21 +4,20 @@ import avrobase.AvroBaseException;
 import avrobase.AvroBaseImpl;
 import avrobase.AvroFormat;
 import avrobase.Row;
+import avrobase.SchemaRegistry;
 import avrobase.StreamingAvroBase;
 import com.google.inject.Inject;
+import com.google.inject.name.Named;
 import org.apache.avro.Schema;
 import org.apache.avro.specific.SpecificRecord;
-import org.apache.commons.codec.binary.Hex;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import javax.sql.DataSource;
-import java.io.ByteArrayInputStream;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.IOException;
-import java.security.MessageDigest;
-import java.security.NoSuchAlgorithmException;
+import java.nio.ByteBuffer;
 import java.sql.Connection;
 import java.sql.DatabaseMetaData;
 import java.sql.PreparedStatement;
@@ -26,18 +25,9 @@ import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Statement;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.Map;
-import java.util.NoSuchElementException;
-import java.util.Queue;
-import java.util.concurrent.Callable;
-import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
-import java.util.concurrent.Future;
-import java.util.concurrent.Semaphore;
-import java.util.concurrent.atomic.AtomicBoolean;
-import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Mysql backed implementation of Avrobase.
@@ -48,7 +38,8 @@ import java.util.concurrent.atomic.AtomicInteger;
  * TODO: consider column-type-specific support (via keytx)
  */
 public class MysqlAB<T extends SpecificRecord, K> extends AvroBaseImpl<T, K> implements StreamingAvroBase {
-  private static final int MAX_BUFFER_SIZE = 4096;
+  public static final int DEFAULT_SCAN_PAGE_SIZE = 1000;
+  public static final long DEFAULT_SCAN_BUFFER_BYTES = 8 * 1024 * 1024;
   private static final byte[] EMPTY_BYTES = new byte[0];
   protected final ExecutorService es;
   protected final DataSource datasource;
@@ -57,10 +48,50 @@ public class MysqlAB<T extends SpecificRecord, K> extends AvroBaseImpl<T, K> imp
   protected final String mysqlTableName;
   protected final KeyStrategy<K> keytx;
   protected final Logger logger = LoggerFactory.getLogger("MysqlAB");
+  private int scanPageSize = DEFAULT_SCAN_PAGE_SIZE;
+  private long scanBufferBytes = DEFAULT_SCAN_BUFFER_BYTES;
+
+  // Reads go to the replicas when there are some, except for rows this thread wrote recently
+  public static final long DEFAULT_READ_YOUR_WRITES_MILLIS = 60 * 1000;
+  private static final int SESSION_ROWS = 1000;
+  static final long UNKNOWN_VERSION = Long.MAX_VALUE;
+  private ReplicaPool replicas;
+  private long readYourWritesMillis = DEFAULT_READ_YOUR_WRITES_MILLIS;
+  private final ThreadLocal<Map<ByteBuffer, Written>> session = new ThreadLocal<Map<ByteBuffer, Written>>() {
+    @Override
+    protected Map<ByteBuffer, Written> initialValue() {
+      return new LinkedHashMap<ByteBuffer, Written>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<ByteBuffer, Written> eldest) {
+          return size() > SESSION_ROWS;
+        }
+      };
+    }
+  };
+
+  // A row version this thread wrote and when
+  private static class Written {
+    final long version;
+    final long time;
+
+    Written(long version, long time) {
+      this.version = version;
+      this.time = time;
+    }
+  }
 
-  // Caches
-  private Map<Integer, Schema> abbrevSchema = new ConcurrentHashMap<Integer, Schema>();
-  private Map<Schema, Integer> schemaAbbrev = new ConcurrentHashMap<Schema, Integer>();
+  // Schemas by their id in the schema table
+  protected final SchemaRegistry<Integer> schemas = new SchemaRegistry<Integer>(new SchemaRegistry.Store<Integer>() {
+    @Override
+    public Schema load(Integer id) throws AvroBaseException {
+      return loadSchema(id);
+    }
+
+    @Override
+    public Integer store(Schema schema) throws AvroBaseException {
+      return storeSchema(schema);
+    }
+  });
 
   @Inject
   public MysqlAB(
@@ -113,8 +144,7 @@ public class MysqlAB<T extends SpecificRecord, K> extends AvroBaseImpl<T, K> imp
               public Void execute(ResultSet rs) throws AvroBaseException, SQLException {
                 while (rs.next()) {
                   int id = rs.getInt(1);
-                  String hash = new String(rs.getBytes(2));
-                  loadSchema(id, rs.getBytes(3));
+                  schemas.register(id, SchemaRegistry.parse(id, rs.getBytes(3)));
                 }
                 return null;
               }
@@ -130,53 +160,148 @@ public class MysqlAB<T extends SpecificRecord, K> extends AvroBaseImpl<T, K> imp
     }
   }
 
+  /**
+   * Maximum number of rows fetched by each query of a scan.
+   *
+   * @param scanPageSize
+   */
+  @Inject(optional = true)
+  public void setScanPageSize(@Named("scanPageSize") int scanPageSize) {
+    if (scanPageSize < 1) {
+      throw new IllegalArgumentException("scanPageSize must be positive: " + scanPageSize);
+    }
+    this.scanPageSize = scanPageSize;
+  }
+
+  /**
+   * Send gets, scans and exports to these replicas. Writes still go to the primary.
+   *
+   * @param replicas
+   */
+  @Inject(optional = true)
+  public void setReplicas(ReplicaPool replicas) {
+    this.replicas = replicas;
+  }
+
+  /**
+   * How long after a thread writes a row its reads of that row check the replica's version,
+   * which should be longer than the replicas ever lag.
+   *
+   * @param readYourWritesMillis
+   */
+  @Inject(optional = true)
+  public void setReadYourWritesMillis(@Named("readYourWritesMillis") long readYourWritesMillis) {
+    this.readYourWritesMillis = readYourWritesMillis;
+  }
+
+  /**
+   * Forget the rows this thread has written, e.g. at the end of a request, so its reads go
+   * to the replicas again.
+   */
+  public void clearSession() {
+    session.remove();
+  }
+
+  // A replica for reads of the whole table, or null to read from the primary
+
+  ReplicaPool.Lease leaseReplica() {
+    return replicas == null ? null : replicas.acquire();
+  }
+
+  // Remember the version written so that reads of an older version fall back to the primary
+
+  void wrote(byte[] row, long version) {
+    if (replicas != null) {
+      session.get().put(ByteBuffer.wrap(row), new Written(version, System.currentTimeMillis()));
+    }
+  }
+
+  // The version this thread last wrote to the row, if it is recent enough to matter, or 0
+
+  private long written(byte[] row) {
+    Map<ByteBuffer, Written> rows = session.get();
+    ByteBuffer key = ByteBuffer.wrap(row);
+    Written written = rows.get(key);
+    if (written == null) return 0;
+    if (System.currentTimeMillis() - written.time > readYourWritesMillis) {
+      rows.remove(key);
+      return 0;
+    }
+    return written.version;
+  }
+
+  // Whether this thread recently wrote a row in [startRow, stopRow)
+
+  private boolean wroteRange(byte[] startRow, byte[] stopRow) {
+    long now = System.currentTimeMillis();
+    for (Map.Entry<ByteBuffer, Written> entry : session.get().entrySet()) {
+      byte[] row = entry.getKey().array();
+      if (now - entry.getValue().time <= readYourWritesMillis &&
+          (startRow == null || MysqlBatchWriter.compareBytes(row, startRow) >= 0) &&
+          (stopRow == null || MysqlBatchWriter.compareBytes(row, stopRow) < 0)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  protected int getScanPageSize() {
+    return scanPageSize;
+  }
+
+  /**
+   * Bytes of row data a scan may buffer, split between the page being consumed and the
+   * page being prefetched.
+   *
+   * @param scanBufferBytes
+   */
+  @Inject(optional = true)
+  public void setScanBufferBytes(@Named("scanBufferBytes") long scanBufferBytes) {
+    if (scanBufferBytes < 2) {
+      throw new IllegalArgumentException("scanBufferBytes too small: " + scanBufferBytes);
+    }
+    this.scanBufferBytes = scanBufferBytes;
+  }
+
+  // Find or insert the schema in the schema table, the registry makes sure only one thread
+  // stores a given schema at a time
+
   private int storeSchema(final Schema schema) throws AvroBaseException {
-    Integer id;
-    synchronized (schema) {
-      id = schemaAbbrev.get(schema);
-      if (id == null) {
-        // Hash the schema, store it
-        MessageDigest md;
-        try {
-          md = MessageDigest.getInstance("SHA-256");
-        } catch (NoSuchAlgorithmException e) {
-          md = null;
-        }
-        String doc = schema.toString();
-        final String schemaKey;
-        if (md == null) {
-          schemaKey = doc;
-        } else {
-          schemaKey = new String(Hex.encodeHex(md.digest(doc.getBytes())));
-        }
-        id = new Query<Integer>(datasource, "SELECT id FROM " + schemaTable + " WHERE hash=?") {
-          public void setup(PreparedStatement ps) throws AvroBaseException, SQLException {
-            ps.setBytes(1, schemaKey.getBytes());
-          }
+    final String schemaKey = SchemaRegistry.hash(schema.toString());
+    Integer id = new Query<Integer>(datasource, "SELECT id FROM " + schemaTable + " WHERE hash=?") {
+      public void setup(PreparedStatement ps) throws AvroBaseException, SQLException {
+        ps.setBytes(1, schemaKey.getBytes());
+      }
 
-          public Integer execute(ResultSet rs) throws AvroBaseException, SQLException {
-            if (rs.next()) {
-              return rs.getInt(1);
-            } else {
-              return null;
-            }
-          }
-        }.query();
-        if (id == null) {
-          id = new Insert(datasource, "INSERT INTO " + schemaTable + " (hash, json) VALUES (?, ?)") {
-            public void setup(PreparedStatement ps) throws AvroBaseException, SQLException {
-              ps.setBytes(1, schemaKey.getBytes());
-              ps.setBytes(2, schema.toString().getBytes());
-            }
-          }.insert();
+      public Integer execute(ResultSet rs) throws AvroBaseException, SQLException {
+        if (rs.next()) {
+          return rs.getInt(1);
+        } else {
+          return null;
         }
-        abbrevSchema.put(id, schema);
-        schemaAbbrev.put(schema, id);
       }
+    }.query();
+    if (id == null) {
+      id = new Insert(datasource, "INSERT INTO " + schemaTable + " (hash, json) VALUES (?, ?)") {
+        public void setup(PreparedStatement ps) throws AvroBaseException, SQLException {
+          ps.setBytes(1, schemaKey.getBytes());
+          ps.setBytes(2, schema.toString().getBytes());
+        }
+      }.insert();
     }
     return id;
   }
 
+  // Id of the schema in the schema table, stored if it is new
+
+  protected int getSchemaId(Schema schema) throws AvroBaseException {
+    return schemas.getId(schema);
+  }
+
+  byte[] serializeValue(T value) throws AvroBaseException {
+    return serialize(value);
+  }
+
   @Override
   public Row<T, K> get(K row) throws AvroBaseException {
     return get(keytx.toBytes(row));
@@ -211,6 +336,7 @@ public class MysqlAB<T extends SpecificRecord, K> extends AvroBaseImpl<T, K> imp
         ps.setBytes(1, key);
       }
     }.insert();
+    wrote(key, UNKNOWN_VERSION);
     log(key, 0, 0, EMPTY_BYTES, -1);
   }
 
@@ -223,7 +349,7 @@ public class MysqlAB<T extends SpecificRecord, K> extends AvroBaseImpl<T, K> imp
     Connection connection = null;
     try {
       connection = datasource.getConnection();
-      PreparedStatement ps = connection.prepareStatement("SELECT id, hash, json FROM avro_schemas");
+      PreparedStatement ps = connection.prepareStatement("SELECT id, hash, json FROM " + schemaTable);
       ResultSet rs = ps.executeQuery();
       while (rs.next()) {
         int id = rs.getInt(1);
@@ -267,7 +393,18 @@ public class MysqlAB<T extends SpecificRecord, K> extends AvroBaseImpl<T, K> imp
 
   @Override
   public void exportData(final DataOutputStream dos) {
-    new Query<Iterable<Row<T, K>>>(datasource, "SELECT row, schema_id, version, format, avro FROM " + mysqlTableName) {
+    ReplicaPool.Lease lease = leaseReplica();
+    try {
+      exportData(lease == null ? datasource : lease.getDataSource(), dos);
+    } catch (AvroBaseException e) {
+      if (lease != null) lease.release(true);
+      throw e;
+    }
+    if (lease != null) lease.release(false);
+  }
+
+  private void exportData(DataSource datasource, final DataOutputStream dos) {
+    new Query<Iterable<Row<T, K>>>(datasource, "SELECT row, schema_id, version, format, avro FROM " + mysqlTableName + " ORDER BY row") {
 
       @Override
       public void setup(PreparedStatement ps) throws AvroBaseException, SQLException {
@@ -310,56 +447,15 @@ public class MysqlAB<T extends SpecificRecord, K> extends AvroBaseImpl<T, K> imp
     }
   }
 
+  /**
+   * Replace the contents of the table with an export. Use a MysqlImporter directly to tune
+   * the import, watch its progress or resume it.
+   *
+   * @param dis
+   */
   @Override
   public void importData(DataInputStream dis) {
-    int cpus = Runtime.getRuntime().availableProcessors() * 2;
-    ExecutorService es = Executors.newFixedThreadPool(cpus);
-    final Semaphore sema = new Semaphore(cpus);
-    try {
-      new Update(datasource, "DELETE FROM " + mysqlTableName) {
-        public void setup(PreparedStatement ps) throws AvroBaseException, SQLException {
-        }
-      }.insert();
-      while (dis.readBoolean()) {
-        final byte[] row = new byte[dis.readInt()];
-        dis.readFully(row);
-        final int schemaId = dis.readInt();
-        final long version = dis.readLong();
-        final int format = dis.readInt();
-        final byte[] bytes = new byte[dis.readInt()];
-        dis.readFully(bytes);
-        sema.acquireUninterruptibly();
-        es.submit(new Runnable() {
-          @Override
-          public void run() {
-            try {
-              Connection c = null;
-              PreparedStatement ps = null;
-              try {
-                c = datasource.getConnection();
-                String statement = "INSERT INTO " + mysqlTableName + " (row, schema_id, version, format, avro) VALUES (?,?,?,?,?)";
-                ps = c.prepareStatement(statement);
-                ps.setBytes(1, row);
-                ps.setInt(2, schemaId);
-                ps.setLong(3, version);
-                ps.setInt(4, format);
-                ps.setBytes(5, bytes);
-                ps.executeUpdate();
-              } finally {
-                if (ps != null) ps.close();
-                if (c != null) c.close();
-              }
-            } catch (SQLException e) {
-              throw new AvroBaseException("Database problem", e);
-            }
-            sema.release();
-          }
-        });
-      }
-
-    } catch (IOException e) {
-      throw new AvroBaseException("Failed to read", e);
-    }
+    new MysqlImporter<T, K>(this).importData(dis);
   }
 
   @Override
@@ -386,8 +482,7 @@ public class MysqlAB<T extends SpecificRecord, K> extends AvroBaseImpl<T, K> imp
   }
 
   public void clear() {
-    abbrevSchema.clear();
-    schemaAbbrev.clear();
+    schemas.clear();
   }
 
   public abstract static class Update {
@@ -499,7 +594,38 @@ public class MysqlAB<T extends SpecificRecord, K> extends AvroBaseImpl<T, K> imp
     }
   }
 
+  /**
+   * Read from a replica when there are replicas, unless this thread wrote the row recently
+   * and the replica doesn't have that write yet, in which case read from the primary.
+   *
+   * @param row
+   * @return
+   */
   public Row<T, K> get(final byte[] row) throws AvroBaseException {
+    if (replicas == null) {
+      return get(datasource, row);
+    }
+    long written = written(row);
+    ReplicaPool.Lease lease = written == UNKNOWN_VERSION ? null : replicas.acquire();
+    if (lease == null) {
+      return get(datasource, row);
+    }
+    Row<T, K> result;
+    try {
+      result = get(lease.getDataSource(), row);
+      lease.release(false);
+    } catch (AvroBaseException e) {
+      lease.release(true);
+      logger.warn("Replica read failed, reading from the primary", e);
+      return get(datasource, row);
+    }
+    if (written != 0 && (result == null || result.version < written)) {
+      return get(datasource, row);
+    }
+    return result;
+  }
+
+  private Row<T, K> get(DataSource datasource, final byte[] row) throws AvroBaseException {
     return new Query<Row<T, K>>(datasource, "SELECT schema_id, version, format, avro FROM " + mysqlTableName + " WHERE row=?") {
       public void setup(PreparedStatement ps) throws AvroBaseException, SQLException {
         ps.setBytes(1, row);
@@ -524,52 +650,35 @@ public class MysqlAB<T extends SpecificRecord, K> extends AvroBaseImpl<T, K> imp
     }.query();
   }
 
-  protected synchronized Schema getSchema(final int schema_id) throws AvroBaseException {
-    Schema schema = abbrevSchema.get(schema_id);
-    if (schema == null) {
-      schema = new Query<Schema>(datasource, "SELECT id, hash, json FROM " + schemaTable + " WHERE id=?") {
-        public void setup(PreparedStatement ps) throws AvroBaseException, SQLException {
-          ps.setInt(1, schema_id);
-        }
-
-        public Schema execute(ResultSet rs) throws AvroBaseException, SQLException {
-          if (rs.next()) {
-            return loadSchema(schema_id, rs.getBytes(3));
-          } else {
-            return null;
-          }
-        }
-      }.query();
-    }
-    return schema;
+  protected Schema getSchema(final int schema_id) throws AvroBaseException {
+    return schemas.getSchema(schema_id);
   }
 
-  private Schema loadSchema(int id, byte[] value) throws AvroBaseException {
-    Schema schema;
-    try {
-      schema = Schema.parse(new ByteArrayInputStream(value));
-    } catch (IOException e) {
-      throw new AvroBaseException("Could not parse the schema", e);
-    }
-    abbrevSchema.put(id, schema);
-    schemaAbbrev.put(schema, id);
-    return schema;
+  private Schema loadSchema(final int id) throws AvroBaseException {
+    return new Query<Schema>(datasource, "SELECT json FROM " + schemaTable + " WHERE id=?") {
+      public void setup(PreparedStatement ps) throws AvroBaseException, SQLException {
+        ps.setInt(1, id);
+      }
+
+      public Schema execute(ResultSet rs) throws AvroBaseException, SQLException {
+        if (rs.next()) {
+          return SchemaRegistry.parse(id, rs.getBytes(1));
+        } else {
+          return null;
+        }
+      }
+    }.query();
   }
 
   public void put(final byte[] row, final T value) throws AvroBaseException {
-    Schema schema = value.getSchema();
-    Integer schemaId = schemaAbbrev.get(schema);
-    if (schemaId == null) {
-      schemaId = storeSchema(schema);
-    }
-    final Integer finalSchemaId = schemaId;
+    final int schemaId = getSchemaId(value.getSchema());
     final byte[] serialize = serialize(value);
     final int format = storageFormat.ordinal();
     int updated = new Update(datasource, "INSERT INTO " + mysqlTableName + " (row, schema_id, version, format, avro) VALUES (?,?,1,?,?) " +
         "ON DUPLICATE KEY UPDATE schema_id=values(schema_id), version = version + 1, format=values(format), avro=values(avro)") {
       public void setup(PreparedStatement ps) throws AvroBaseException, SQLException {
         ps.setBytes(1, row);
-        ps.setInt(2, finalSchemaId);
+        ps.setInt(2, schemaId);
         ps.setInt(3, format);
         ps.setBytes(4, serialize);
       }
@@ -577,15 +686,12 @@ public class MysqlAB<T extends SpecificRecord, K> extends AvroBaseImpl<T, K> imp
     if (updated == 0) {
       throw new AvroBaseException("Failed to save: " + updated);
     }
+    // The new version isn't known, read the row from the primary for a while
+    wrote(row, UNKNOWN_VERSION);
   }
 
   public boolean put(final byte[] row, final T value, final long version) throws AvroBaseException {
-    Schema schema = value.getSchema();
-    Integer schemaId = schemaAbbrev.get(schema);
-    if (schemaId == null) {
-      schemaId = storeSchema(schema);
-    }
-    final Integer finalSchemaId = schemaId;
+    final int schemaId = getSchemaId(value.getSchema());
     final byte[] serialized = serialize(value);
     final int format = storageFormat.ordinal();
     if (version == 0) {
@@ -594,7 +700,7 @@ public class MysqlAB<T extends SpecificRecord, K> extends AvroBaseImpl<T, K> imp
             "1,?,?)") {
           public void setup(PreparedStatement ps) throws AvroBaseException, SQLException {
             ps.setBytes(1, row);
-            ps.setInt(2, finalSchemaId);
+            ps.setInt(2, schemaId);
             ps.setInt(3, format);
             ps.setBytes(4, serialized);
           }
@@ -609,7 +715,7 @@ public class MysqlAB<T extends SpecificRecord, K> extends AvroBaseImpl<T, K> imp
     } else {
       int updated = new Update(datasource, "UPDATE " + mysqlTableName + " SET schema_id=?, version = version + 1, format=?, avro=? WHERE row=? AND version = ?") {
         public void setup(PreparedStatement ps) throws AvroBaseException, SQLException {
-          ps.setInt(1, finalSchemaId);
+          ps.setInt(1, schemaId);
           ps.setInt(2, format);
           ps.setBytes(3, serialized);
           ps.setBytes(4, row);
@@ -620,6 +726,7 @@ public class MysqlAB<T extends SpecificRecord, K> extends AvroBaseImpl<T, K> imp
         return false;
       }
     }
+    wrote(row, version + 1);
     log(row, schemaId, format, serialized, version + 1);
     return true;
   }
@@ -629,141 +736,47 @@ public class MysqlAB<T extends SpecificRecord, K> extends AvroBaseImpl<T, K> imp
   }
 
   /**
-   * Scanning is pretty complicated when you have server-side cursors and client-side filtering. A client may
-   * ask for a lot of data and only look at the first bit of it and we need to be able to release resources
-   * in the case where the client is no longer interested. We do this by noticing that we are buffering ahead of
-   * client consumption and remembering where we are in the range so that when the client catches up they can
-   * come right back into their range scan. We do an exponential increase in buffer size as we see the client
-   * continuing to eventually consume the data.
+   * Scan the range [startRow, stopRow) in row order a page at a time. Every iterator is a
+   * MysqlScanner that should be closed if it is abandoned before the end of the range.
    *
    * @param startRow
    * @param stopRow
    * @return
    * @throws AvroBaseException
    */
-
   public Iterable<Row<T, K>> scan(final byte[] startRow, final byte[] stopRow) throws AvroBaseException {
-    final AtomicBoolean done = new AtomicBoolean(false);
-    final AtomicBoolean maxBuffer = new AtomicBoolean(false);
-    final Queue<Row<T, K>> queue = new ConcurrentLinkedQueue<Row<T, K>>() {
-      @Override
-      public synchronized boolean isEmpty() {
-        return super.isEmpty() && done.get();
-      }
-    };
-
     return new Iterable<Row<T, K>>() {
-
       @Override
       public Iterator<Row<T, K>> iterator() {
-        final AtomicInteger ai = new AtomicInteger(16);
-        return new Iterator<Row<T, K>>() {
-          // Current iterator entry
-          Row<T, K> tkRow;
-
-          // Remember state of the cursor
-          boolean skip = false;
-          byte[] start = startRow;
-          byte[] stop = stopRow;
-          Future<Void> submit = getSubmit();
-
-          Future<Void> getSubmit() {
-            return es.submit(new Callable<Void>() {
-              public Void call() throws Exception {
-                new Query<Iterable<Row<T, K>>>(datasource, getStatement(start, stop, skip)) {
-                  public void setup(PreparedStatement ps) throws AvroBaseException, SQLException {
-                    ps.setFetchSize(Integer.MIN_VALUE);
-                    int i = 1;
-                    if (start != null) {
-                      ps.setBytes(i++, start);
-                    }
-                    if (stop != null) {
-                      ps.setBytes(i, stop);
-                    }
-                  }
-
-                  public Iterable<Row<T, K>> execute(final ResultSet rs) throws AvroBaseException, SQLException {
-                    maxBuffer.set(false);
-                    while (rs.next()) {
-                      byte[] row = rs.getBytes(1);
-                      int schema_id = rs.getInt(2);
-                      long version = rs.getLong(3);
-                      AvroFormat format = AvroFormat.values()[rs.getByte(4)];
-                      byte[] avro = rs.getBytes(5);
-                      Schema schema = getSchema(schema_id);
-                      if (schema != null) {
-                        Row<T, K> newrow = new Row<T, K>(readValue(avro, schema, format), keytx.fromBytes(row), version);
-                        synchronized (queue) {
-                          queue.add(newrow);
-                          queue.notify();
-                          skip = true;
-                          // Have to be careful as the end user can modify the row
-                          start = new byte[row.length];
-                          System.arraycopy(row, 0, start, 0, row.length);
-                          int buffer = ai.get();
-                          if (queue.size() > buffer) {
-                            if (buffer < MAX_BUFFER_SIZE) {
-                              ai.set(buffer * 2);
-                            }
-                            maxBuffer.set(true);
-                            return null;
-                          }
-                        }
-                        Thread.yield();
-                      } else {
-                        // TODO: logging
-                        logger.error("skipped row because of missing schema: " + keytx.fromBytes(row) + " schema " + schema_id);
-                      }
-                    }
-                    synchronized (queue) {
-                      done.set(true);
-                      queue.notify();
-                    }
-                    return null;
-                  }
-                }.query();
-                return null;
-              }
-            });
-          }
+        return scanner(startRow, stopRow);
+      }
+    };
+  }
 
-          @Override
-          public boolean hasNext() {
-            synchronized (queue) {
-              while (tkRow == null && (tkRow = queue.poll()) == null && !queue.isEmpty()) {
-                if (maxBuffer.get() && !done.get() && queue.size() == 0) {
-                  submit = getSubmit();
-                }
-                try {
-                  queue.wait(1000);
-                } catch (InterruptedException e) {
-                  // interrupted
-                }
-              }
-              queue.notify();
-            }
-            return tkRow != null;
-          }
+  /**
+   * Start a paginated scan of the range [startRow, stopRow).
+   *
+   * @param startRow first row, inclusive, or null for the start of the table
+   * @param stopRow  last row, exclusive, or null for the end of the table
+   * @return an iterator that must be closed if it is not consumed to the end
+   */
+  public MysqlScanner<T, K> scanner(byte[] startRow, byte[] stopRow) {
+    ReplicaPool pool = replicas == null || wroteRange(startRow, stopRow) ? null : replicas;
+    return new MysqlScanner<T, K>(this, pool, startRow, stopRow, scanPageSize, scanBufferBytes);
+  }
 
-          @Override
-          public Row<T, K> next() {
-            if (hasNext() && tkRow != null) {
-              Row<T, K> tmp = tkRow;
-              tkRow = null;
-              return tmp;
-            }
-            throw new NoSuchElementException();
-          }
+  // Decode a row from its stored columns, null if the schema is missing
 
-          @Override
-          public void remove() {
-          }
-        };
-      }
-    };
+  protected Row<T, K> readRow(byte[] row, int schemaId, long version, int format, byte[] avro) throws AvroBaseException {
+    Schema schema = getSchema(schemaId);
+    if (schema == null) {
+      logger.error("skipped row because of missing schema: " + keytx.fromBytes(row) + " schema " + schemaId);
+      return null;
+    }
+    return new Row<T, K>(readValue(avro, schema, AvroFormat.values()[format]), keytx.fromBytes(row), version);
   }
 
-  private String getStatement(byte[] startRow, byte[] stopRow, boolean skip) {
+  String getScanStatement(byte[] startRow, byte[] stopRow, boolean skip) {
     final StringBuilder statement = new StringBuilder("SELECT row, schema_id, version, format, avro FROM ");
     statement.append(mysqlTableName);
     if (startRow != null) {
@@ -0,0 +1,316 @@
+package avrobase.mysql;
+
+import avrobase.AvroBaseException;
+import org.apache.avro.specific.SpecificRecord;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.nio.ByteBuffer;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Group commit for unconditional MysqlAB puts. Writes are queued and a single writer thread
+ * drains everything that has accumulated into multi-row INSERT ... ON DUPLICATE KEY UPDATE
+ * statements on one connection, committed as one transaction. Repeated writes to a row
+ * that has not been written yet are coalesced so only the last value is sent.
+ * <p/>
+ * By default put() waits for the commit of the batch holding its write, so concurrent
+ * writers share commits. In write-behind mode put() returns as soon as the write is queued,
+ * failures are reported by the next flush() barrier. Either way put() blocks when maxBatch
+ * writes are already waiting.
+ * <p/>
+ * User: sam
+ * Date: 6/28/11
+ * Time: 3:20 PM
+ */
+public class MysqlBatchWriter<T extends SpecificRecord, K> implements Closeable {
+  public static final int DEFAULT_MAX_BATCH = 1000;
+
+  // Keep each statement well under the default max_allowed_packet
+  private static final int STATEMENT_ROWS = 500;
+  private static final int STATEMENT_BYTES = 512 * 1024;
+
+  private final Logger logger = LoggerFactory.getLogger("MysqlBatchWriter");
+  private final MysqlAB<T, K> ab;
+  private final boolean writeBehind;
+  private final int maxBatch;
+  private final Thread writer;
+  private final List<Failure<K>> failures = new ArrayList<Failure<K>>();
+
+  // Guarded by this
+  private Batch current = new Batch();
+  private Batch writing;
+  private boolean closed;
+
+  /**
+   * A row that could not be written and why.
+   */
+  public static class Failure<K> {
+    public final K row;
+    public final Throwable cause;
+
+    public Failure(K row, Throwable cause) {
+      this.row = row;
+      this.cause = cause;
+    }
+
+    @Override
+    public String toString() {
+      return "[" + row + ", " + cause + "]";
+    }
+  }
+
+  private static class Write<K> {
+    final K row;
+    final byte[] key;
+    final int schemaId;
+    final byte[] avro;
+
+    Write(K row, byte[] key, int schemaId, byte[] avro) {
+      this.row = row;
+      this.key = key;
+      this.schemaId = schemaId;
+      this.avro = avro;
+    }
+  }
+
+  private class Batch {
+    final Map<ByteBuffer, Write<K>> writes = new LinkedHashMap<ByteBuffer, Write<K>>();
+    boolean done;
+    Throwable failure;
+  }
+
+  public MysqlBatchWriter(MysqlAB<T, K> ab) {
+    this(ab, false, DEFAULT_MAX_BATCH);
+  }
+
+  /**
+   * @param ab          the AvroBase whose table is written to
+   * @param writeBehind return from put() before the write is committed
+   * @param maxBatch    most writes queued before put() blocks
+   */
+  public MysqlBatchWriter(MysqlAB<T, K> ab, boolean writeBehind, int maxBatch) {
+    if (maxBatch < 1) {
+      throw new IllegalArgumentException("maxBatch must be positive: " + maxBatch);
+    }
+    this.ab = ab;
+    this.writeBehind = writeBehind;
+    this.maxBatch = maxBatch;
+    writer = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          Batch batch;
+          while ((batch = take()) != null) {
+            try {
+              write(batch);
+            } catch (Throwable e) {
+              batch.failure = e;
+            }
+            finish(batch);
+          }
+        } catch (InterruptedException e) {
+          logger.error("Writer interrupted, queued writes were not written");
+        }
+      }
+    }, "MysqlBatchWriter");
+    writer.setDaemon(true);
+    writer.start();
+  }
+
+  /**
+   * Queue an unconditional write of the row. Unless this is a write-behind writer, waits
+   * until the write is committed.
+   *
+   * @param row
+   * @param value
+   * @throws AvroBaseException if the batch holding this write fails
+   */
+  public void put(K row, T value) throws AvroBaseException {
+    byte[] key = ab.keytx.toBytes(row);
+    Write<K> write = new Write<K>(row, key, ab.getSchemaId(value.getSchema()), ab.serializeValue(value));
+    ab.wrote(key, MysqlAB.UNKNOWN_VERSION);
+    Batch batch;
+    synchronized (this) {
+      try {
+        while (!closed && current.writes.size() >= maxBatch) {
+          wait();
+        }
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new AvroBaseException("Interrupted waiting to queue write", e);
+      }
+      if (closed) {
+        throw new IllegalStateException("Writer closed");
+      }
+      batch = current;
+      batch.writes.put(ByteBuffer.wrap(key), write);
+      notifyAll();
+      if (writeBehind) return;
+    }
+    await(batch);
+    if (batch.failure != null) {
+      throw new AvroBaseException("Failed to write batch", batch.failure);
+    }
+  }
+
+  /**
+   * Wait until every write queued before this call has been committed or has failed.
+   *
+   * @return the write-behind rows that failed since the last call to flush, empty if
+   *         everything was written
+   */
+  public List<Failure<K>> flush() throws AvroBaseException {
+    Batch batch;
+    synchronized (this) {
+      batch = current.writes.isEmpty() ? writing : current;
+    }
+    if (batch != null) {
+      await(batch);
+    }
+    synchronized (failures) {
+      List<Failure<K>> result = new ArrayList<Failure<K>>(failures);
+      failures.clear();
+      return result;
+    }
+  }
+
+  private synchronized void await(Batch batch) throws AvroBaseException {
+    try {
+      while (!batch.done) {
+        wait();
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new AvroBaseException("Interrupted waiting for commit", e);
+    }
+  }
+
+  // Swap out everything that has accumulated, null once closed and drained
+
+  private synchronized Batch take() throws InterruptedException {
+    while (current.writes.isEmpty()) {
+      if (closed) return null;
+      wait();
+    }
+    writing = current;
+    current = new Batch();
+    notifyAll();
+    return writing;
+  }
+
+  private synchronized void finish(Batch batch) {
+    if (batch.failure != null && writeBehind) {
+      synchronized (failures) {
+        for (Write<K> write : batch.writes.values()) {
+          failures.add(new Failure<K>(write.row, batch.failure));
+        }
+      }
+      logger.error("Failed to write " + batch.writes.size() + " rows", batch.failure);
+    }
+    batch.done = true;
+    writing = null;
+    notifyAll();
+  }
+
+  private void write(Batch batch) throws SQLException {
+    List<Write<K>> writes = new ArrayList<Write<K>>(batch.writes.values());
+    // Lock rows in key order so concurrent batches can't deadlock each other
+    Collections.sort(writes, new Comparator<Write<K>>() {
+      @Override
+      public int compare(Write<K> a, Write<K> b) {
+        return compareBytes(a.key, b.key);
+      }
+    });
+    int format = ab.storageFormat.ordinal();
+    Connection c = ab.datasource.getConnection();
+    try {
+      c.setAutoCommit(false);
+      try {
+        int start = 0;
+        while (start < writes.size()) {
+          int end = start;
+          int bytes = 0;
+          while (end < writes.size() && end - start < STATEMENT_ROWS && (end == start || bytes < STATEMENT_BYTES)) {
+            bytes += writes.get(end).avro.length;
+            end++;
+          }
+          PreparedStatement ps = c.prepareStatement(getStatement(end - start));
+          try {
+            int i = 1;
+            for (Write<K> write : writes.subList(start, end)) {
+              ps.setBytes(i++, write.key);
+              ps.setInt(i++, write.schemaId);
+              ps.setInt(i++, format);
+              ps.setBytes(i++, write.avro);
+            }
+            ps.executeUpdate();
+          } finally {
+            ps.close();
+          }
+          start = end;
+        }
+        c.commit();
+      } catch (SQLException e) {
+        c.rollback();
+        throw e;
+      } finally {
+        c.setAutoCommit(true);
+      }
+    } finally {
+      c.close();
+    }
+  }
+
+  private String getStatement(int rows) {
+    StringBuilder sb = new StringBuilder("INSERT INTO ");
+    sb.append(ab.mysqlTableName).append(" (row, schema_id, version, format, avro) VALUES ");
+    for (int i = 0; i < rows; i++) {
+      if (i != 0) sb.append(",");
+      sb.append("(?,?,1,?,?)");
+    }
+    sb.append(" ON DUPLICATE KEY UPDATE schema_id=values(schema_id), version = version + 1, format=values(format), avro=values(avro)");
+    return sb.toString();
+  }
+
+  // Unsigned comparison, the order of a varbinary primary key
+
+  static int compareBytes(byte[] a, byte[] b) {
+    int length = Math.min(a.length, b.length);
+    for (int i = 0; i < length; i++) {
+      int diff = (a[i] & 0xFF) - (b[i] & 0xFF);
+      if (diff != 0) return diff;
+    }
+    return a.length - b.length;
+  }
+
+  /**
+   * Write everything that is queued and stop the writer thread. Write-behind failures from
+   * the final batch are logged, call flush() first to see them.
+   */
+  @Override
+  public void close() {
+    synchronized (this) {
+      if (closed) return;
+      closed = true;
+      notifyAll();
+    }
+    try {
+      writer.join();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    for (Failure<K> failure : flush()) {
+      logger.error("Failed to write row on close: " + failure);
+    }
+  }
+}
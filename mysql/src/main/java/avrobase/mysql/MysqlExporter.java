@@ -0,0 +1,423 @@
+package avrobase.mysql;
+
+import avrobase.AvroBaseException;
+import org.apache.avro.specific.SpecificRecord;
+import org.apache.commons.codec.DecoderException;
+import org.apache.commons.codec.binary.Hex;
+
+import javax.sql.DataSource;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.math.BigInteger;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Properties;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Parallel export of a MysqlAB table into a directory. The key range is split into chunks at
+ * boundaries sampled from the primary key and each chunk is streamed over its own connection
+ * into a gzipped part file in the same format as exportData. Like exportData, the sampling
+ * and each chunk read from a replica when the table has replicas. A manifest lists the parts with
+ * their key ranges and row counts so that they can be imported in parallel.
+ * <p/>
+ * User: sam
+ * Date: 6/30/11
+ * Time: 4:10 PM
+ */
+public class MysqlExporter<T extends SpecificRecord, K> {
+  public static final String MANIFEST = "manifest.properties";
+  public static final String SCHEMAS = "schemas.gz";
+
+  // Index probes per chunk when choosing boundaries
+  private static final int SAMPLES_PER_CHUNK = 32;
+  private static final int BUFFER = 64 * 1024;
+
+  private final MysqlAB<T, K> ab;
+
+  public MysqlExporter(MysqlAB<T, K> ab) {
+    this.ab = ab;
+  }
+
+  /**
+   * One chunk of the export. Null start or stop rows mean unbounded.
+   */
+  public static class Part {
+    public final String file;
+    public final byte[] startRow;
+    public final byte[] stopRow;
+    public final long rows;
+
+    public Part(String file, byte[] startRow, byte[] stopRow, long rows) {
+      this.file = file;
+      this.startRow = startRow;
+      this.stopRow = stopRow;
+      this.rows = rows;
+    }
+
+    @Override
+    public String toString() {
+      return "[" + file + ", " + rows + "]";
+    }
+  }
+
+  /**
+   * Export the schemas and the table into dir, which is created if needed.
+   *
+   * @param dir         directory for the part files and manifest
+   * @param chunks      number of key ranges the table is split into
+   * @param parallelism number of chunks exported at once, each on its own connection
+   * @return the parts in key order
+   */
+  public List<Part> export(final File dir, int chunks, int parallelism) throws AvroBaseException {
+    if (chunks < 1) {
+      throw new IllegalArgumentException("chunks must be positive: " + chunks);
+    }
+    if (parallelism < 1) {
+      throw new IllegalArgumentException("parallelism must be positive: " + parallelism);
+    }
+    if (!dir.isDirectory() && !dir.mkdirs()) {
+      throw new AvroBaseException("Could not create " + dir);
+    }
+    try {
+      DataOutputStream dos = new DataOutputStream(compress(new File(dir, SCHEMAS)));
+      try {
+        ab.writeSchemas(dos);
+      } finally {
+        dos.close();
+      }
+    } catch (Exception e) {
+      throw new AvroBaseException("Could not export schemas", e);
+    }
+    List<byte[]> boundaries = sampleBoundaries(chunks);
+    ExecutorService es = Executors.newFixedThreadPool(parallelism);
+    try {
+      List<Future<Part>> futures = new ArrayList<Future<Part>>();
+      for (int i = 0; i <= boundaries.size(); i++) {
+        final String file = String.format("part-%05d.gz", i);
+        final byte[] start = i == 0 ? null : boundaries.get(i - 1);
+        final byte[] stop = i == boundaries.size() ? null : boundaries.get(i);
+        futures.add(es.submit(new Callable<Part>() {
+          @Override
+          public Part call() throws Exception {
+            return exportPart(new File(dir, file), start, stop);
+          }
+        }));
+      }
+      List<Part> parts = new ArrayList<Part>();
+      for (Future<Part> future : futures) {
+        parts.add(get(future));
+      }
+      writeManifest(dir, parts);
+      return parts;
+    } finally {
+      es.shutdownNow();
+    }
+  }
+
+  // Pick chunks - 1 distinct keys that split a sample of the keys evenly
+
+  List<byte[]> sampleBoundaries(int chunks) throws AvroBaseException {
+    if (chunks == 1) return Collections.emptyList();
+    ReplicaPool.Lease lease = ab.leaseReplica();
+    List<byte[]> samples;
+    try {
+      samples = sample(lease == null ? ab.datasource : lease.getDataSource(), chunks * SAMPLES_PER_CHUNK);
+    } catch (AvroBaseException e) {
+      if (lease != null) lease.release(true);
+      throw e;
+    }
+    if (lease != null) lease.release(false);
+    Collections.sort(samples, new Comparator<byte[]>() {
+      @Override
+      public int compare(byte[] a, byte[] b) {
+        return MysqlBatchWriter.compareBytes(a, b);
+      }
+    });
+    List<byte[]> boundaries = new ArrayList<byte[]>();
+    for (int i = 1; i < chunks; i++) {
+      if (samples.isEmpty()) break;
+      byte[] boundary = samples.get((int) ((long) i * samples.size() / chunks));
+      if (boundaries.isEmpty() || MysqlBatchWriter.compareBytes(boundaries.get(boundaries.size() - 1), boundary) < 0) {
+        boundaries.add(boundary);
+      }
+    }
+    return boundaries;
+  }
+
+  // Seek the primary key index at random points between the first and last keys, so the
+  // sample costs one index lookup per probe rather than a scan of the table. Chunks come
+  // out even when the keys are spread evenly over their range, like sequential or hashed
+  // keys.
+
+  private List<byte[]> sample(DataSource datasource, int probes) throws AvroBaseException {
+    List<byte[]> samples = new ArrayList<byte[]>();
+    try {
+      Connection connection = datasource.getConnection();
+      try {
+        byte[] first = edge(connection, "ASC");
+        if (first == null) return samples;
+        byte[] last = edge(connection, "DESC");
+        int width = Math.max(first.length, last.length);
+        BigInteger low = new BigInteger(1, Arrays.copyOf(first, width));
+        BigInteger range = new BigInteger(1, Arrays.copyOf(last, width)).subtract(low);
+        Random random = new Random();
+        PreparedStatement ps = connection.prepareStatement("SELECT row FROM " + ab.mysqlTableName + " WHERE row >= ? ORDER BY row LIMIT 1");
+        try {
+          for (int i = 0; i < probes; i++) {
+            BigInteger offset = new BigInteger(range.bitLength() + 8, random).mod(range.add(BigInteger.ONE));
+            ps.setBytes(1, toBytes(low.add(offset), width));
+            ResultSet rs = ps.executeQuery();
+            if (rs.next()) {
+              samples.add(rs.getBytes(1));
+            }
+            rs.close();
+          }
+        } finally {
+          ps.close();
+        }
+      } finally {
+        connection.close();
+      }
+    } catch (SQLException e) {
+      throw new AvroBaseException("Could not sample boundaries", e);
+    }
+    return samples;
+  }
+
+  private byte[] edge(Connection connection, String order) throws SQLException {
+    PreparedStatement ps = connection.prepareStatement("SELECT row FROM " + ab.mysqlTableName + " ORDER BY row " + order + " LIMIT 1");
+    try {
+      ResultSet rs = ps.executeQuery();
+      byte[] row = rs.next() ? rs.getBytes(1) : null;
+      rs.close();
+      return row;
+    } finally {
+      ps.close();
+    }
+  }
+
+  // Big endian bytes of a non-negative number less than 2^(8 * width), zero padded to width
+
+  private static byte[] toBytes(BigInteger value, int width) {
+    byte[] bytes = value.toByteArray();
+    byte[] key = new byte[width];
+    int length = Math.min(bytes.length, width);
+    System.arraycopy(bytes, bytes.length - length, key, width - length, length);
+    return key;
+  }
+
+  private Part exportPart(File file, final byte[] start, final byte[] stop) throws IOException {
+    ReplicaPool.Lease lease = ab.leaseReplica();
+    Part part;
+    try {
+      part = exportPart(lease == null ? ab.datasource : lease.getDataSource(), file, start, stop);
+    } catch (AvroBaseException e) {
+      if (lease != null) lease.release(true);
+      throw e;
+    } catch (IOException e) {
+      if (lease != null) lease.release(true);
+      throw e;
+    }
+    if (lease != null) lease.release(false);
+    return part;
+  }
+
+  private Part exportPart(DataSource datasource, File file, final byte[] start, final byte[] stop) throws IOException {
+    final DataOutputStream dos = new DataOutputStream(compress(file));
+    try {
+      StringBuilder sb = new StringBuilder("SELECT row, schema_id, version, format, avro FROM ");
+      sb.append(ab.mysqlTableName);
+      if (start != null) sb.append(" WHERE row >= ?");
+      if (stop != null) sb.append(start == null ? " WHERE" : " AND").append(" row < ?");
+      sb.append(" ORDER BY row");
+      long rows = new MysqlAB.Query<Long>(datasource, sb.toString()) {
+        @Override
+        public void setup(PreparedStatement ps) throws AvroBaseException, SQLException {
+          ps.setFetchSize(Integer.MIN_VALUE);
+          int i = 1;
+          if (start != null) ps.setBytes(i++, start);
+          if (stop != null) ps.setBytes(i, stop);
+        }
+
+        @Override
+        public Long execute(ResultSet rs) throws AvroBaseException, SQLException {
+          long count = 0;
+          try {
+            while (rs.next()) {
+              dos.writeBoolean(true);
+              ab.writeRow(dos, rs.getBytes(1), rs.getInt(2), rs.getLong(3), rs.getInt(4), rs.getBytes(5));
+              count++;
+            }
+            dos.writeBoolean(false);
+          } catch (IOException e) {
+            throw new AvroBaseException("Could not write", e);
+          }
+          return count;
+        }
+      }.query();
+      return new Part(file.getName(), start, stop, rows);
+    } finally {
+      dos.close();
+    }
+  }
+
+  private void writeManifest(File dir, List<Part> parts) throws AvroBaseException {
+    Properties manifest = new Properties();
+    manifest.setProperty("table", ab.mysqlTableName);
+    manifest.setProperty("compression", "gzip");
+    manifest.setProperty("schemas", SCHEMAS);
+    manifest.setProperty("parts", String.valueOf(parts.size()));
+    for (int i = 0; i < parts.size(); i++) {
+      Part part = parts.get(i);
+      manifest.setProperty("part." + i + ".file", part.file);
+      manifest.setProperty("part." + i + ".rows", String.valueOf(part.rows));
+      if (part.startRow != null) manifest.setProperty("part." + i + ".start", new String(Hex.encodeHex(part.startRow)));
+      if (part.stopRow != null) manifest.setProperty("part." + i + ".stop", new String(Hex.encodeHex(part.stopRow)));
+    }
+    try {
+      OutputStream os = new FileOutputStream(new File(dir, MANIFEST));
+      try {
+        manifest.store(os, "MysqlAB export");
+      } finally {
+        os.close();
+      }
+    } catch (IOException e) {
+      throw new AvroBaseException("Could not write manifest", e);
+    }
+  }
+
+  /**
+   * Read the parts listed in the manifest of an export directory.
+   *
+   * @param dir
+   * @return the parts in key order
+   */
+  public static List<Part> readManifest(File dir) throws AvroBaseException {
+    Properties manifest = new Properties();
+    try {
+      InputStream is = new FileInputStream(new File(dir, MANIFEST));
+      try {
+        manifest.load(is);
+      } finally {
+        is.close();
+      }
+      int count = Integer.parseInt(manifest.getProperty("parts"));
+      List<Part> parts = new ArrayList<Part>();
+      for (int i = 0; i < count; i++) {
+        String start = manifest.getProperty("part." + i + ".start");
+        String stop = manifest.getProperty("part." + i + ".stop");
+        parts.add(new Part(manifest.getProperty("part." + i + ".file"),
+            start == null ? null : Hex.decodeHex(start.toCharArray()),
+            stop == null ? null : Hex.decodeHex(stop.toCharArray()),
+            Long.parseLong(manifest.getProperty("part." + i + ".rows"))));
+      }
+      return parts;
+    } catch (IOException e) {
+      throw new AvroBaseException("Could not read manifest", e);
+    } catch (DecoderException e) {
+      throw new AvroBaseException("Corrupt manifest", e);
+    }
+  }
+
+  /**
+   * Replace the schemas and contents of the table with an export directory, importing the
+   * parts in parallel. Each part is imported by its own MysqlImporter.
+   *
+   * @param dir         directory written by export
+   * @param parallelism number of parts imported at once
+   * @return number of rows imported
+   */
+  public long importParts(final File dir, int parallelism) throws AvroBaseException {
+    if (parallelism < 1) {
+      throw new IllegalArgumentException("parallelism must be positive: " + parallelism);
+    }
+    List<Part> parts = readManifest(dir);
+    try {
+      DataInputStream dis = new DataInputStream(decompress(new File(dir, SCHEMAS)));
+      try {
+        ab.importSchema(dis);
+      } finally {
+        dis.close();
+      }
+    } catch (IOException e) {
+      throw new AvroBaseException("Could not import schemas", e);
+    }
+    new MysqlAB.Update(ab.datasource, "DELETE FROM " + ab.mysqlTableName) {
+      public void setup(PreparedStatement ps) throws AvroBaseException, SQLException {
+      }
+    }.insert();
+    ExecutorService es = Executors.newFixedThreadPool(parallelism);
+    try {
+      List<Future<Long>> futures = new ArrayList<Future<Long>>();
+      for (final Part part : parts) {
+        futures.add(es.submit(new Callable<Long>() {
+          @Override
+          public Long call() throws Exception {
+            MysqlImporter<T, K> importer = new MysqlImporter<T, K>(ab);
+            importer.setConnections(1);
+            importer.setClear(false);
+            DataInputStream dis = new DataInputStream(decompress(new File(dir, part.file)));
+            try {
+              return importer.importData(dis);
+            } finally {
+              dis.close();
+            }
+          }
+        }));
+      }
+      long rows = 0;
+      for (Future<Long> future : futures) {
+        rows += get(future);
+      }
+      return rows;
+    } finally {
+      es.shutdownNow();
+    }
+  }
+
+  private static <V> V get(Future<V> future) throws AvroBaseException {
+    try {
+      return future.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new AvroBaseException("Interrupted", e);
+    } catch (ExecutionException e) {
+      Throwable cause = e.getCause();
+      if (cause instanceof AvroBaseException) {
+        throw (AvroBaseException) cause;
+      }
+      throw new AvroBaseException("Part failed", cause);
+    }
+  }
+
+  private static OutputStream compress(File file) throws IOException {
+    return new BufferedOutputStream(new GZIPOutputStream(new FileOutputStream(file), BUFFER), BUFFER);
+  }
+
+  private static InputStream decompress(File file) throws IOException {
+    return new BufferedInputStream(new GZIPInputStream(new FileInputStream(file), BUFFER), BUFFER);
+  }
+}
@@ -0,0 +1,368 @@
+package avrobase.mysql;
+
+import avrobase.AvroBaseException;
+import org.apache.avro.specific.SpecificRecord;
+import org.apache.commons.codec.binary.Hex;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Loads the output of MysqlAB.exportData into a MysqlAB table. The stream is read on the
+ * calling thread and cut into batches that a fixed set of worker threads, each holding one
+ * connection for the whole import, write as multi-row INSERTs committed one batch at a time.
+ * importData returns only when every batch has been committed or the import has failed.
+ * <p/>
+ * Batches can commit out of order, so progress is reported as the last row of the stream
+ * before which everything has been committed. Passing that row to setResumeAfter restarts
+ * a failed import from there; rows are upserted so rewriting a few is harmless.
+ * <p/>
+ * User: sam
+ * Date: 6/29/11
+ * Time: 9:45 AM
+ */
+public class MysqlImporter<T extends SpecificRecord, K> {
+  public static final int DEFAULT_CONNECTIONS = 4;
+  public static final int DEFAULT_BATCH_ROWS = 1000;
+
+  // Keep each statement well under the default max_allowed_packet
+  private static final int BATCH_BYTES = 512 * 1024;
+  private static final Object END = new Object();
+
+  private final Logger logger = LoggerFactory.getLogger("MysqlImporter");
+  private final MysqlAB<T, K> ab;
+  private int connections = DEFAULT_CONNECTIONS;
+  private int batchRows = DEFAULT_BATCH_ROWS;
+  private boolean disableKeys;
+  private boolean clear = true;
+  private byte[] resumeAfter;
+  private Progress progress;
+
+  // Import state
+  private final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+  private final Map<Long, Batch> done = new HashMap<Long, Batch>();
+  private boolean started;
+  private long nextCommit;
+  private long rows;
+  private byte[] lastRow;
+
+  /**
+   * Notified each time the committed prefix of the stream grows.
+   */
+  public interface Progress {
+    /**
+     * @param rows    rows committed so far, not counting rows skipped when resuming
+     * @param lastRow every row of the stream up to and including this one is committed
+     */
+    void progress(long rows, byte[] lastRow);
+  }
+
+  private static class Record {
+    final byte[] row;
+    final int schemaId;
+    final long version;
+    final int format;
+    final byte[] avro;
+
+    Record(byte[] row, int schemaId, long version, int format, byte[] avro) {
+      this.row = row;
+      this.schemaId = schemaId;
+      this.version = version;
+      this.format = format;
+      this.avro = avro;
+    }
+  }
+
+  private static class Batch {
+    final long seq;
+    final List<Record> records = new ArrayList<Record>();
+    int bytes;
+
+    Batch(long seq) {
+      this.seq = seq;
+    }
+
+    int size() {
+      return records.size();
+    }
+
+    byte[] lastRow() {
+      return records.get(records.size() - 1).row;
+    }
+  }
+
+  public MysqlImporter(MysqlAB<T, K> ab) {
+    this.ab = ab;
+  }
+
+  /**
+   * @param connections number of worker threads and connections writing batches
+   */
+  public void setConnections(int connections) {
+    if (connections < 1) {
+      throw new IllegalArgumentException("connections must be positive: " + connections);
+    }
+    this.connections = connections;
+  }
+
+  /**
+   * @param batchRows most rows in each INSERT and transaction
+   */
+  public void setBatchRows(int batchRows) {
+    if (batchRows < 1) {
+      throw new IllegalArgumentException("batchRows must be positive: " + batchRows);
+    }
+    this.batchRows = batchRows;
+  }
+
+  /**
+   * Turn off unique and foreign key checks in the worker sessions while importing. The
+   * table is InnoDB with only a primary key, which is always checked, so this only saves
+   * work on indexes added to the table outside of MysqlAB. Only use this on a table that
+   * nothing else is writing to.
+   *
+   * @param disableKeys
+   */
+  public void setDisableKeys(boolean disableKeys) {
+    this.disableKeys = disableKeys;
+  }
+
+  /**
+   * @param clear delete the contents of the table before importing, on by default
+   */
+  public void setClear(boolean clear) {
+    this.clear = clear;
+  }
+
+  /**
+   * Resume an import, skipping rows up to and including this one. The stream must be in
+   * row order, which is the order exportData writes in, and the table is not cleared.
+   *
+   * @param resumeAfter last row reported committed by the failed import
+   */
+  public void setResumeAfter(byte[] resumeAfter) {
+    this.resumeAfter = resumeAfter;
+  }
+
+  public void setProgress(Progress progress) {
+    this.progress = progress;
+  }
+
+  /**
+   * Import the data section of an export. Unless resuming, the table is cleared first. An
+   * importer can only be used once.
+   *
+   * @param dis
+   * @return number of rows committed
+   * @throws AvroBaseException if any batch fails, after all other batches have finished
+   */
+  public long importData(DataInputStream dis) throws AvroBaseException {
+    synchronized (this) {
+      if (started) {
+        throw new IllegalStateException("An importer can only be used once");
+      }
+      started = true;
+    }
+    if (clear && resumeAfter == null) {
+      new MysqlAB.Update(ab.datasource, "DELETE FROM " + ab.mysqlTableName) {
+        public void setup(PreparedStatement ps) throws AvroBaseException, SQLException {
+        }
+      }.insert();
+    }
+    final BlockingQueue<Object> queue = new ArrayBlockingQueue<Object>(connections * 2);
+    List<Thread> workers = new ArrayList<Thread>();
+    for (int i = 0; i < connections; i++) {
+      Thread worker = new Thread(new Runnable() {
+        @Override
+        public void run() {
+          work(queue);
+        }
+      }, "MysqlImporter-" + i);
+      worker.setDaemon(true);
+      worker.start();
+      workers.add(worker);
+    }
+    try {
+      read(dis, queue);
+    } catch (IOException e) {
+      failure.compareAndSet(null, e);
+    } catch (InterruptedException e) {
+      failure.compareAndSet(null, e);
+      Thread.currentThread().interrupt();
+    } finally {
+      try {
+        for (int i = 0; i < connections; i++) {
+          enqueue(queue, END);
+        }
+        for (Thread worker : workers) {
+          worker.join();
+        }
+      } catch (InterruptedException e) {
+        failure.compareAndSet(null, e);
+        for (Thread worker : workers) {
+          worker.interrupt();
+        }
+        Thread.currentThread().interrupt();
+      }
+    }
+    Throwable cause = failure.get();
+    if (cause != null) {
+      throw new AvroBaseException("Import failed, committed through row " +
+          (lastRow == null ? "none" : new String(Hex.encodeHex(lastRow))), cause);
+    }
+    return rows;
+  }
+
+  private void read(DataInputStream dis, BlockingQueue<Object> queue) throws IOException, InterruptedException {
+    long seq = 0;
+    Batch batch = new Batch(seq++);
+    while (dis.readBoolean()) {
+      byte[] row = new byte[dis.readInt()];
+      dis.readFully(row);
+      int schemaId = dis.readInt();
+      long version = dis.readLong();
+      int format = dis.readInt();
+      byte[] avro = new byte[dis.readInt()];
+      dis.readFully(avro);
+      if (resumeAfter != null && MysqlBatchWriter.compareBytes(row, resumeAfter) <= 0) {
+        continue;
+      }
+      batch.records.add(new Record(row, schemaId, version, format, avro));
+      batch.bytes += row.length + avro.length;
+      if (batch.size() >= batchRows || batch.bytes >= BATCH_BYTES) {
+        if (failure.get() != null) return;
+        enqueue(queue, batch);
+        batch = new Batch(seq++);
+      }
+    }
+    if (batch.size() > 0 && failure.get() == null) {
+      enqueue(queue, batch);
+    }
+  }
+
+  // Wait for room, dropping the queued batches once the import has failed
+
+  private void enqueue(BlockingQueue<Object> queue, Object o) throws InterruptedException {
+    while (!queue.offer(o, 100, TimeUnit.MILLISECONDS)) {
+      if (failure.get() != null) {
+        queue.clear();
+      }
+    }
+  }
+
+  private void work(BlockingQueue<Object> queue) {
+    Connection c = null;
+    PreparedStatement full = null;
+    try {
+      c = ab.datasource.getConnection();
+      c.setAutoCommit(false);
+      if (disableKeys) {
+        Statement s = c.createStatement();
+        s.execute("SET unique_checks=0");
+        s.execute("SET foreign_key_checks=0");
+        s.close();
+      }
+      full = c.prepareStatement(getStatement(batchRows));
+      Object o;
+      while ((o = queue.take()) != END) {
+        Batch batch = (Batch) o;
+        if (failure.get() != null) continue;
+        if (batch.size() == batchRows) {
+          insert(full, batch);
+        } else {
+          PreparedStatement ps = c.prepareStatement(getStatement(batch.size()));
+          try {
+            insert(ps, batch);
+          } finally {
+            ps.close();
+          }
+        }
+        c.commit();
+        committed(batch);
+      }
+    } catch (Throwable e) {
+      failure.compareAndSet(null, e);
+      logger.error("Import worker failed", e);
+      if (c != null) {
+        try {
+          c.rollback();
+        } catch (SQLException e1) {
+          // closing anyway
+        }
+      }
+    } finally {
+      try {
+        if (full != null) full.close();
+        if (c != null) {
+          try {
+            if (disableKeys) {
+              // The connection goes back to the pool, so it must check keys again
+              Statement s = c.createStatement();
+              s.execute("SET unique_checks=1, foreign_key_checks=1");
+              s.close();
+            }
+            c.setAutoCommit(true);
+          } finally {
+            c.close();
+          }
+        }
+      } catch (SQLException e) {
+        logger.error("Failed to close import connection", e);
+      }
+    }
+  }
+
+  private void insert(PreparedStatement ps, Batch batch) throws SQLException {
+    int i = 1;
+    for (Record record : batch.records) {
+      ps.setBytes(i++, record.row);
+      ps.setInt(i++, record.schemaId);
+      ps.setLong(i++, record.version);
+      ps.setInt(i++, record.format);
+      ps.setBytes(i++, record.avro);
+    }
+    ps.executeUpdate();
+  }
+
+  // Advance the committed prefix of the stream as far as it is contiguous
+
+  private synchronized void committed(Batch batch) {
+    done.put(batch.seq, batch);
+    Batch next;
+    boolean advanced = false;
+    while ((next = done.remove(nextCommit)) != null) {
+      rows += next.size();
+      lastRow = next.lastRow();
+      nextCommit++;
+      advanced = true;
+    }
+    if (advanced && progress != null) {
+      progress.progress(rows, lastRow);
+    }
+  }
+
+  private String getStatement(int size) {
+    StringBuilder sb = new StringBuilder("INSERT INTO ");
+    sb.append(ab.mysqlTableName).append(" (row, schema_id, version, format, avro) VALUES ");
+    for (int i = 0; i < size; i++) {
+      if (i != 0) sb.append(",");
+      sb.append("(?,?,?,?,?)");
+    }
+    sb.append(" ON DUPLICATE KEY UPDATE schema_id=values(schema_id), version=values(version), format=values(format), avro=values(avro)");
+    return sb.toString();
+  }
+}
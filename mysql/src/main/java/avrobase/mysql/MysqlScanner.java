@@ -0,0 +1,223 @@
+package avrobase.mysql;
+
+import avrobase.AvroBaseException;
+import avrobase.Row;
+import org.apache.avro.specific.SpecificRecord;
+
+import javax.sql.DataSource;
+import java.io.Closeable;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Range scan over a MysqlAB table using keyset pagination. Each page is a short query,
+ * WHERE row > last ORDER BY row LIMIT n, that holds a connection only while it runs. The
+ * next page is fetched in the background while the current one is consumed, so at most two
+ * pages are ever buffered and each page is cut off once it holds half of the byte budget.
+ * Prefetches run on threads of their own rather than the MysqlAB's executor, which other
+ * lookups share, so a busy executor can't stall a scan or deadlock one running on it.
+ * <p/>
+ * With replicas each page query leases its own replica, so a scan holds no replica between
+ * pages and every query is sampled for latency on its own.
+ * <p/>
+ * Close the scanner if you stop iterating early so that the pending fetch is cancelled.
+ * <p/>
+ * User: sam
+ * Date: 6/27/11
+ * Time: 10:40 AM
+ */
+public class MysqlScanner<T extends SpecificRecord, K> implements Iterator<Row<T, K>>, Closeable {
+  // At most one fetch is pending per scanner, idle threads exit after a minute
+  private static final ExecutorService prefetcher = Executors.newCachedThreadPool(new ThreadFactory() {
+    @Override
+    public Thread newThread(Runnable runnable) {
+      Thread thread = new Thread(runnable, "MysqlScanner");
+      thread.setDaemon(true);
+      return thread;
+    }
+  });
+
+  private final MysqlAB<T, K> ab;
+  private final ReplicaPool replicas;
+  private final byte[] stopRow;
+  private final int pageSize;
+  private final long pageBytes;
+
+  private Page current;
+  private int index;
+  private Future<Page> pending;
+  private volatile boolean closed;
+
+  // One page of decoded rows and where the next page starts
+  private class Page {
+    final List<Row<T, K>> rows = new ArrayList<Row<T, K>>();
+    byte[] lastRow;
+    long bytes;
+    boolean last;
+  }
+
+  MysqlScanner(MysqlAB<T, K> ab, ReplicaPool replicas, byte[] startRow, byte[] stopRow, int pageSize, long bufferBytes) {
+    if (pageSize < 1) {
+      throw new IllegalArgumentException("pageSize must be positive: " + pageSize);
+    }
+    if (bufferBytes < 2) {
+      throw new IllegalArgumentException("bufferBytes too small: " + bufferBytes);
+    }
+    this.ab = ab;
+    this.replicas = replicas;
+    this.stopRow = stopRow;
+    this.pageSize = pageSize;
+    this.pageBytes = bufferBytes / 2;
+    pending = fetch(startRow, false, pageSize);
+  }
+
+  // Fetch the page after start in the background, from a replica leased for just this query
+
+  private Future<Page> fetch(final byte[] start, final boolean skip, final int limit) {
+    return prefetcher.submit(new Callable<Page>() {
+      @Override
+      public Page call() throws Exception {
+        ReplicaPool.Lease lease = replicas == null ? null : replicas.acquire();
+        if (lease == null) {
+          return query(ab.datasource, start, skip, limit);
+        }
+        Page page;
+        try {
+          page = query(lease.getDataSource(), start, skip, limit);
+        } catch (RuntimeException e) {
+          lease.release(true);
+          throw e;
+        }
+        lease.release(false);
+        return page;
+      }
+    });
+  }
+
+  // One page of the range after start
+
+  private Page query(DataSource datasource, final byte[] start, final boolean skip, final int limit) throws AvroBaseException {
+    return new MysqlAB.Query<Page>(datasource, ab.getScanStatement(start, stopRow, skip) + " LIMIT ?") {
+      @Override
+      public void setup(PreparedStatement ps) throws AvroBaseException, SQLException {
+        int i = 1;
+        if (start != null) {
+          ps.setBytes(i++, start);
+        }
+        if (stopRow != null) {
+          ps.setBytes(i++, stopRow);
+        }
+        ps.setInt(i, limit);
+      }
+
+      @Override
+      public Page execute(ResultSet rs) throws AvroBaseException, SQLException {
+        Page page = new Page();
+        int count = 0;
+        while (rs.next()) {
+          if (closed) break;
+          byte[] row = rs.getBytes(1);
+          byte[] avro = rs.getBytes(5);
+          Row<T, K> decoded = ab.readRow(row, rs.getInt(2), rs.getLong(3), rs.getByte(4), avro);
+          if (decoded != null) {
+            page.rows.add(decoded);
+          }
+          page.lastRow = row;
+          page.bytes += row.length + avro.length;
+          count++;
+          if (page.bytes >= pageBytes) break;
+        }
+        // A short page is the end of the range, a page cut off by size is not
+        page.last = count < limit && page.bytes < pageBytes;
+        return page;
+      }
+    }.query();
+  }
+
+  // Take the prefetched page and start fetching the one after it
+
+  private Page nextPage() {
+    Page page;
+    try {
+      page = pending.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new AvroBaseException("Interrupted during scan", e);
+    } catch (ExecutionException e) {
+      close();
+      Throwable cause = e.getCause();
+      if (cause instanceof AvroBaseException) {
+        throw (AvroBaseException) cause;
+      }
+      throw new AvroBaseException("Scan failed", cause);
+    }
+    if (page.last || closed) {
+      pending = null;
+    } else {
+      // Size the next page so that it should fit in the byte budget
+      int limit = pageSize;
+      if (page.bytes > 0) {
+        long average = Math.max(1, page.bytes / Math.max(1, page.rows.size()));
+        limit = (int) Math.max(1, Math.min(pageSize, pageBytes / average + 1));
+      }
+      pending = fetch(page.lastRow, true, limit);
+    }
+    return page;
+  }
+
+  @Override
+  public boolean hasNext() {
+    while (!closed) {
+      if (current != null && index < current.rows.size()) {
+        return true;
+      }
+      if (current != null && pending == null) {
+        close();
+        return false;
+      }
+      current = nextPage();
+      index = 0;
+    }
+    return false;
+  }
+
+  @Override
+  public Row<T, K> next() {
+    if (hasNext()) {
+      Row<T, K> row = current.rows.get(index);
+      current.rows.set(index++, null);
+      return row;
+    }
+    throw new NoSuchElementException();
+  }
+
+  @Override
+  public void remove() {
+    throw new UnsupportedOperationException();
+  }
+
+  /**
+   * Stop the scan and cancel the prefetch. Safe to call more than once.
+   */
+  @Override
+  public void close() {
+    closed = true;
+    Future<Page> future = pending;
+    if (future != null) {
+      future.cancel(true);
+      pending = null;
+    }
+    current = null;
+  }
+}
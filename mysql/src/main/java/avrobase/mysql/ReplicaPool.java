@@ -0,0 +1,118 @@
+package avrobase.mysql;
+
+import javax.sql.DataSource;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Read replicas of a MysqlAB table. Each read leases a replica chosen by comparing two at
+ * random and taking the one with less expected wait, its reads in flight times its recent
+ * latency, which keeps load even without coordinating. A replica that fails is skipped until
+ * its retry time has passed.
+ * <p/>
+ * User: sam
+ * Date: 7/7/11
+ * Time: 9:15 AM
+ */
+public class ReplicaPool {
+  public static final long DEFAULT_RETRY_MILLIS = 5000;
+
+  // Weight of the latest read in the moving average latency, which starts at a millisecond
+  private static final double LATENCY_WEIGHT = 0.2;
+  private static final double INITIAL_LATENCY = 1000000;
+
+  private final List<Replica> replicas = new ArrayList<Replica>();
+  private final Random random = new Random();
+  private long retryMillis = DEFAULT_RETRY_MILLIS;
+
+  private static class Replica {
+    final DataSource datasource;
+    final AtomicInteger inFlight = new AtomicInteger(0);
+    volatile double latency = INITIAL_LATENCY;
+    volatile long downUntil;
+
+    Replica(DataSource datasource) {
+      this.datasource = datasource;
+    }
+
+    double load() {
+      return (inFlight.get() + 1) * latency;
+    }
+  }
+
+  /**
+   * A replica in use by one read. Release it exactly once when the read is done.
+   */
+  public class Lease {
+    private final Replica replica;
+    private final long start = System.nanoTime();
+    private final AtomicBoolean released = new AtomicBoolean();
+
+    private Lease(Replica replica) {
+      this.replica = replica;
+    }
+
+    public DataSource getDataSource() {
+      return replica.datasource;
+    }
+
+    /**
+     * @param failed if the read failed, in which case the replica is skipped for a while
+     */
+    public void release(boolean failed) {
+      if (!released.compareAndSet(false, true)) return;
+      replica.inFlight.decrementAndGet();
+      if (failed) {
+        replica.downUntil = System.currentTimeMillis() + retryMillis;
+      } else {
+        long elapsed = System.nanoTime() - start;
+        replica.latency += LATENCY_WEIGHT * (elapsed - replica.latency);
+      }
+    }
+  }
+
+  public ReplicaPool(List<DataSource> datasources) {
+    if (datasources.isEmpty()) {
+      throw new IllegalArgumentException("No replicas");
+    }
+    for (DataSource datasource : datasources) {
+      replicas.add(new Replica(datasource));
+    }
+  }
+
+  /**
+   * @param retryMillis how long a failed replica is skipped
+   */
+  public void setRetryMillis(long retryMillis) {
+    this.retryMillis = retryMillis;
+  }
+
+  /**
+   * @return a lease on the least loaded of two replicas picked at random, or null if all of
+   *         the replicas have failed recently
+   */
+  public Lease acquire() {
+    long now = System.currentTimeMillis();
+    List<Replica> up = new ArrayList<Replica>(replicas.size());
+    for (Replica replica : replicas) {
+      if (replica.downUntil <= now) {
+        up.add(replica);
+      }
+    }
+    if (up.isEmpty()) {
+      return null;
+    }
+    Replica chosen = up.get(random.nextInt(up.size()));
+    if (up.size() > 1) {
+      Replica other = up.get(random.nextInt(up.size()));
+      if (other.load() < chosen.load()) {
+        chosen = other;
+      }
+    }
+    chosen.inFlight.incrementAndGet();
+    return new Lease(chosen);
+  }
+}
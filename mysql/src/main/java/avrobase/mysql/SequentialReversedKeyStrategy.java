@@ -1,6 +1,8 @@
 package avrobase.mysql;
 
 import avrobase.AvroBaseException;
+import avrobase.SequenceAllocator;
+import avrobase.SequenceStore;
 import avrobase.mysql.KeyStrategy;
 import avrobase.mysql.MysqlAB;
 import com.google.common.base.Charsets;
@@ -15,7 +17,10 @@ import java.sql.Statement;
 
 /**
  * Uses auto_increment in MySQL to maintain the sequential values and then
- * textually reverses them for distribution.
+ * textually reverses them for distribution. Ids are leased in blocks by bumping
+ * the highest row of the ids table with a single UPDATE so most keys are
+ * generated without touching the database. All servers creating keys for a table
+ * need to use the same version of this strategy.
  * <p/>
  * User: sam
  * Date: 11/1/10
@@ -24,8 +29,19 @@ import java.sql.Statement;
 public class SequentialReversedKeyStrategy implements KeyStrategy<byte[]> {
   private final DataSource ds;
   private String tableName;
+  private final SequenceAllocator sequence;
 
   public SequentialReversedKeyStrategy(DataSource ds, String table, String family) {
+    this(ds, table, family, SequenceAllocator.DEFAULT_MAX_BLOCK);
+  }
+
+  /**
+   * @param ds
+   * @param table
+   * @param family
+   * @param maxBlock maximum number of ids leased at once, 1 to go to the database for every key
+   */
+  public SequentialReversedKeyStrategy(DataSource ds, String table, String family, long maxBlock) {
     this.ds = ds;
     tableName = table + "__" + family + "_" + "ids";
     Connection connection = null;
@@ -42,6 +58,16 @@ public class SequentialReversedKeyStrategy implements KeyStrategy<byte[]> {
         }
         tables.close();
       }
+      {
+        // The highest row holds the last leased id, seed it past anything auto_increment handed out
+        Statement statement = connection.createStatement();
+        ResultSet rs = statement.executeQuery("SELECT COUNT(*) FROM " + tableName);
+        if (rs.next() && rs.getLong(1) == 0) {
+          statement.executeUpdate("INSERT INTO " + tableName + " () VALUES ()");
+        }
+        rs.close();
+        statement.close();
+      }
     } catch (Exception e) {
       throw new AvroBaseException("Could not create table: " + tableName, e);
     } finally {
@@ -51,6 +77,43 @@ public class SequentialReversedKeyStrategy implements KeyStrategy<byte[]> {
         throw new AvroBaseException("Could not close connection", e);
       }
     }
+    sequence = new SequenceAllocator(new SequenceStore() {
+      @Override
+      public long increment(long amount) throws AvroBaseException {
+        return lease(amount);
+      }
+    }, 1, maxBlock);
+  }
+
+  // Atomically bump the counter row and read back the new value on the same connection
+
+  private long lease(long amount) throws AvroBaseException {
+    Connection c = null;
+    PreparedStatement update = null;
+    PreparedStatement select = null;
+    try {
+      c = ds.getConnection();
+      update = c.prepareStatement("UPDATE " + tableName + " SET id = LAST_INSERT_ID(id + ?) ORDER BY id DESC LIMIT 1");
+      update.setLong(1, amount);
+      int updated = update.executeUpdate();
+      if (updated != 1) throw new AvroBaseException("Could not get new key: " + updated + " rows updated");
+      select = c.prepareStatement("SELECT LAST_INSERT_ID()");
+      ResultSet resultSet = select.executeQuery();
+      if (resultSet.next()) {
+        return resultSet.getLong(1);
+      }
+      throw new AvroBaseException("Failed to find last insert id");
+    } catch (SQLException e) {
+      throw new AvroBaseException("Failed to get key", e);
+    } finally {
+      try {
+        if (select != null) select.close();
+        if (update != null) update.close();
+        if (c != null) c.close();
+      } catch (SQLException e) {
+        // ignore
+      }
+    }
   }
 
   @Override
@@ -75,40 +138,15 @@ public class SequentialReversedKeyStrategy implements KeyStrategy<byte[]> {
 
   @Override
   public byte[] newKey() {
-    Connection c = null;
-    try {
-      c = ds.getConnection();
-      PreparedStatement insertRow = c.prepareStatement("INSERT INTO " + tableName + " () VALUES ()");
-      int insert = insertRow.executeUpdate();
-      if (insert != 1) throw new AvroBaseException("Could not get new key: " + insert + " rows updated");
-      insertRow.close();
-      PreparedStatement getRow = c.prepareStatement("SELECT LAST_INSERT_ID()");
-      ResultSet resultSet = getRow.executeQuery();
-      if (resultSet.next()) {
-        Long query = resultSet.getLong(1);
-        int deleted = c.prepareStatement("DELETE FROM " + tableName + " WHERE id = LAST_INSERT_ID()").executeUpdate();
-        if (deleted != 1) throw new AvroBaseException("Failed to delete row");
-        byte[] row = String.valueOf(query).getBytes();
-        int length = row.length;
-        for (int i = 0; i < length / 2; i++) {
-          byte tmp = row[i];
-          row[i] = row[length - i - 1];
-          row[length - i - 1] = tmp;
-        }
-        return row;
-      }
-      throw new AvroBaseException("Failed to find last insert id");
-    } catch (Exception e) {
-      throw new AvroBaseException("Failed to get key", e);
-    } finally {
-      try {
-        c.close();
-      } catch (SQLException e) {
-        // ignore
-      }
-    }
+    return SequenceAllocator.reversed(sequence.next());
   }
 
+  /**
+   * Make sure that new keys come after this one. Only ever raises the counter, and drops the
+   * ids this strategy has already leased so the next key comes from a fresh block.
+   *
+   * @param row a key produced by this strategy
+   */
   public void setLast(byte[] row) {
     int length = row.length;
     for (int i = 0; i < length / 2; i++) {
@@ -116,11 +154,12 @@ public class SequentialReversedKeyStrategy implements KeyStrategy<byte[]> {
       row[i] = row[length - i - 1];
       row[length - i - 1] = tmp;
     }
-    final long last = Long.parseLong(new String(row, Charsets.UTF_8)) + 1;
-    int insert = new MysqlAB.Update(ds, "ALTER TABLE " + tableName + " AUTO_INCREMENT = ?") {
+    final long last = Long.parseLong(new String(row, Charsets.UTF_8));
+    new MysqlAB.Update(ds, "UPDATE " + tableName + " SET id = GREATEST(id, ?) ORDER BY id DESC LIMIT 1") {
       public void setup(PreparedStatement ps) throws AvroBaseException, SQLException {
         ps.setLong(1, last);
       }
     }.insert();
+    sequence.discard();
   }
 }
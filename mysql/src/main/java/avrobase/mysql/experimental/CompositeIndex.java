@@ -0,0 +1,38 @@
+package avrobase.mysql.experimental;
+
+import org.apache.avro.specific.SpecificRecord;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * An index over several index or relation columns, created along with the table.
+ * @param <T> object type
+ */
+public class CompositeIndex<T extends SpecificRecord> {
+  private final String name;
+  private final boolean unique;
+  private final List<IndexColumn<T, ?>> columns;
+
+  public CompositeIndex(String name, boolean unique, IndexColumn<T, ?>... columns) {
+    if (columns.length == 0) {
+      throw new IllegalArgumentException("No columns for index " + name);
+    }
+    this.name = name;
+    this.unique = unique;
+    this.columns = Collections.unmodifiableList(Arrays.asList(columns));
+  }
+
+  public String getName() {
+    return name;
+  }
+
+  public boolean isUnique() {
+    return unique;
+  }
+
+  public List<IndexColumn<T, ?>> getColumns() {
+    return columns;
+  }
+}
@@ -0,0 +1,227 @@
+package avrobase.mysql.experimental;
+
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Compiles a CompositeQuery into a single statement on an IndexedMysqlAB table, using the
+ * index estimated to read the fewest rows for an AND. Statements only depend on the shape of
+ * the query, so the table caches them by shape(); the values are bound with params().
+ */
+class CompositePlanner {
+  // MySQL also assumes a range reads about a third of an index
+  private static final double RANGE_FRACTION = 0.3;
+
+  private final String table;
+  private final Set<String> columnNames;
+
+  /**
+   * Index statistics of a table, loaded from information_schema.
+   */
+  static class IndexStats {
+    final Map<String, List<String>> columns = new HashMap<String, List<String>>();
+    final Map<String, List<Long>> cardinality = new HashMap<String, List<Long>>();
+    final Set<String> unique = new HashSet<String>();
+    long rows;
+    long loaded;
+
+    /**
+     * Add the next column of an index, in index order.
+     *
+     * @param index
+     * @param unique
+     * @param column
+     * @param cardinality distinct values of the columns of the index up to this one
+     */
+    void add(String index, boolean unique, String column, long cardinality) {
+      if (!columns.containsKey(index)) {
+        columns.put(index, new ArrayList<String>());
+        this.cardinality.put(index, new ArrayList<Long>());
+      }
+      if (unique) {
+        this.unique.add(index);
+      }
+      columns.get(index).add(column);
+      this.cardinality.get(index).add(cardinality);
+    }
+  }
+
+  CompositePlanner(String table, Set<String> columnNames) {
+    this.table = table;
+    this.columnNames = columnNames;
+  }
+
+  /**
+   * @param query
+   * @param keysOnly
+   * @return key of the statement for the query among those of other queries
+   * @throws IllegalArgumentException if a term of the query sets a limit, order or continuation
+   */
+  String shape(CompositeQuery query, boolean keysOnly) {
+    final StringBuilder shape = new StringBuilder(keysOnly ? "K" : "R");
+    shape.append(query.isDescending() ? 'D' : 'A');
+    shape.append(query.getContinuation() != null ? 'C' : '-');
+    shape.append(query.getLimit() > 0 ? 'L' : '-');
+    shape(shape, query, false);
+    return shape.toString();
+  }
+
+  // Only the predicates of nested terms are compiled, so reject anything else they set
+  // rather than silently dropping it
+
+  private void shape(StringBuilder shape, IndexCondition condition, boolean nested) {
+    if (condition instanceof IndexQuery) {
+      final IndexQuery<?> term = (IndexQuery<?>) condition;
+      if (term.isDescending() || term.getLimit() > 0 || term.getContinuation() != null) {
+        throw new IllegalArgumentException("Order, limit and continuation of a composite query are set on the query, not on term: " +
+            term.getColumn().getColumnName());
+      }
+      shape.append(term.getColumn().getColumnName()).append(' ').append(term.getOperator().name());
+    } else {
+      final CompositeQuery composite = (CompositeQuery) condition;
+      if (nested && (composite.isDescending() || composite.getLimit() > 0 || composite.getContinuation() != null)) {
+        throw new IllegalArgumentException("Order, limit and continuation of a composite query are set on the outermost query only");
+      }
+      shape.append(composite.getOperator().name()).append('(');
+      for (IndexCondition term : composite.getTerms()) {
+        shape(shape, term, true);
+        shape.append(',');
+      }
+      shape.append(')');
+    }
+  }
+
+  /**
+   * @param query
+   * @param keysOnly select only the id, twice so that the cursor finds it as its order column
+   * @param stats    of the table's indexes
+   * @return statement selecting id, id and, unless keysOnly, schema_id, version, avro
+   */
+  String plan(CompositeQuery query, boolean keysOnly, IndexStats stats) {
+    final String direction = query.isDescending() ? " DESC" : " ASC";
+    final StringBuilder sb = new StringBuilder("SELECT id, id");
+    if (!keysOnly) {
+      sb.append(", schema_id, version, avro");
+    }
+    sb.append(" FROM ").append(table);
+    final String index = query.getOperator() == CompositeQuery.Operator.AND ? chooseIndex(query.getTerms(), stats) : null;
+    if (index != null) {
+      sb.append(" USE INDEX (").append(index).append(')');
+    }
+    sb.append(" WHERE ");
+    where(sb, query);
+    if (query.getContinuation() != null) {
+      sb.append(" AND id").append(query.isDescending() ? " < ?" : " > ?");
+    }
+    sb.append(" ORDER BY id").append(direction);
+    if (query.getLimit() > 0) {
+      sb.append(" LIMIT ?");
+    }
+    return sb.toString();
+  }
+
+  private void where(StringBuilder sb, IndexCondition condition) {
+    if (condition instanceof IndexQuery) {
+      final IndexQuery<?> term = (IndexQuery<?>) condition;
+      final String column = term.getColumn().getColumnName();
+      if (!columnNames.contains(column)) {
+        throw new IllegalArgumentException("Not an index column of " + table + ": " + column);
+      }
+      sb.append(column).append(' ').append(term.getOperator().getSql()).append(" ?");
+      if (term.getOperator() == IndexQuery.Operator.BETWEEN) {
+        sb.append(" AND ?");
+      }
+    } else {
+      final CompositeQuery composite = (CompositeQuery) condition;
+      final String operator = composite.getOperator() == CompositeQuery.Operator.AND ? " AND " : " OR ";
+      sb.append('(');
+      boolean first = true;
+      for (IndexCondition term : composite.getTerms()) {
+        if (!first) sb.append(operator);
+        where(sb, term);
+        first = false;
+      }
+      sb.append(')');
+    }
+  }
+
+  /**
+   * @param query
+   * @return the values of the query in the order the statement from plan() binds them
+   */
+  List<IndexCursor.Param> params(CompositeQuery query) {
+    final List<IndexCursor.Param> params = new ArrayList<IndexCursor.Param>();
+    bind(params, query);
+    if (query.getContinuation() != null) {
+      params.add(new IndexCursor.Param(IndexCursor.continuationId(query.getContinuation()), Types.BIGINT));
+    }
+    if (query.getLimit() > 0) {
+      params.add(new IndexCursor.Param(query.getLimit(), Types.INTEGER));
+    }
+    return params;
+  }
+
+  private void bind(List<IndexCursor.Param> params, IndexCondition condition) {
+    if (condition instanceof IndexQuery) {
+      final IndexQuery<?> term = (IndexQuery<?>) condition;
+      final int sqlType = term.getColumn().getColumnSqlType();
+      params.add(new IndexCursor.Param(term.getValue(), sqlType));
+      if (term.getOperator() == IndexQuery.Operator.BETWEEN) {
+        params.add(new IndexCursor.Param(term.getHigh(), sqlType));
+      }
+    } else {
+      for (IndexCondition term : ((CompositeQuery) condition).getTerms()) {
+        bind(params, term);
+      }
+    }
+  }
+
+  /**
+   * Estimate the rows each index would read for the terms of an AND from the equality terms
+   * on a prefix of its columns and a range term on the next one.
+   *
+   * @param terms
+   * @param stats
+   * @return the index that reads the fewest rows, null if none can be used
+   */
+  String chooseIndex(List<IndexCondition> terms, IndexStats stats) {
+    final Set<String> equal = new HashSet<String>();
+    final Set<String> ranged = new HashSet<String>();
+    for (IndexCondition condition : terms) {
+      if (condition instanceof IndexQuery) {
+        final IndexQuery<?> term = (IndexQuery<?>) condition;
+        (term.getOperator() == IndexQuery.Operator.EQ ? equal : ranged).add(term.getColumn().getColumnName());
+      }
+    }
+    String best = null;
+    double bestRows = Double.MAX_VALUE;
+    for (Map.Entry<String, List<String>> index : stats.columns.entrySet()) {
+      final List<String> columns = index.getValue();
+      final List<Long> cardinality = stats.cardinality.get(index.getKey());
+      int prefix = 0;
+      while (prefix < columns.size() && equal.contains(columns.get(prefix))) prefix++;
+      double rows;
+      if (prefix == 0) {
+        if (!ranged.contains(columns.get(0))) continue;
+        rows = stats.rows * RANGE_FRACTION;
+      } else if (prefix == columns.size() && stats.unique.contains(index.getKey())) {
+        rows = 1;
+      } else {
+        rows = (double) stats.rows / Math.max(1, cardinality.get(prefix - 1));
+        if (prefix < columns.size() && ranged.contains(columns.get(prefix))) {
+          rows *= RANGE_FRACTION;
+        }
+      }
+      if (rows < bestRows) {
+        best = index.getKey();
+        bestRows = rows;
+      }
+    }
+    return best;
+  }
+}
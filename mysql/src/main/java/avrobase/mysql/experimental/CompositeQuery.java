@@ -0,0 +1,93 @@
+package avrobase.mysql.experimental;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * AND or OR of index conditions, compiled by IndexedMysqlAB into a single statement. Only
+ * the predicates of the terms are used, so an order, limit or continuation set on a term
+ * rather than on the outermost query is rejected with an IllegalArgumentException. Results
+ * come back in id order, limited to a page when a limit is set, and the next page is
+ * requested by passing the previous page's continuation token to after().
+ */
+public class CompositeQuery implements IndexCondition {
+  public enum Operator {
+    AND, OR
+  }
+
+  private final Operator operator;
+  private final List<IndexCondition> terms;
+  private boolean descending;
+  private int limit;
+  private String continuation;
+
+  private CompositeQuery(Operator operator, IndexCondition... terms) {
+    if (terms.length == 0) {
+      throw new IllegalArgumentException("No terms for " + operator);
+    }
+    this.operator = operator;
+    this.terms = Collections.unmodifiableList(Arrays.asList(terms));
+  }
+
+  public static CompositeQuery and(IndexCondition... terms) {
+    return new CompositeQuery(Operator.AND, terms);
+  }
+
+  public static CompositeQuery or(IndexCondition... terms) {
+    return new CompositeQuery(Operator.OR, terms);
+  }
+
+  /**
+   * Return results in descending id order rather than ascending.
+   *
+   * @return this query
+   */
+  public CompositeQuery descending() {
+    this.descending = true;
+    return this;
+  }
+
+  /**
+   * @param limit most results returned, 0 for all of them
+   * @return this query
+   */
+  public CompositeQuery limit(int limit) {
+    if (limit < 0) {
+      throw new IllegalArgumentException("limit must not be negative: " + limit);
+    }
+    this.limit = limit;
+    return this;
+  }
+
+  /**
+   * Continue after the last result of a previous page of the same query.
+   *
+   * @param continuation token from IndexCursor.getContinuation()
+   * @return this query
+   */
+  public CompositeQuery after(String continuation) {
+    this.continuation = continuation;
+    return this;
+  }
+
+  public Operator getOperator() {
+    return operator;
+  }
+
+  public List<IndexCondition> getTerms() {
+    return terms;
+  }
+
+  public boolean isDescending() {
+    return descending;
+  }
+
+  public int getLimit() {
+    return limit;
+  }
+
+  public String getContinuation() {
+    return continuation;
+  }
+}
@@ -0,0 +1,8 @@
+package avrobase.mysql.experimental;
+
+/**
+ * A condition on the index columns of an IndexedMysqlAB table, either a single IndexQuery
+ * or a CompositeQuery of other conditions.
+ */
+public interface IndexCondition {
+}
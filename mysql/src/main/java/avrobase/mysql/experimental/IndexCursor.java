@@ -0,0 +1,231 @@
+package avrobase.mysql.experimental;
+
+import avrobase.AvroBaseException;
+import org.apache.commons.codec.DecoderException;
+import org.apache.commons.codec.binary.Hex;
+
+import javax.sql.DataSource;
+import java.io.Closeable;
+import java.io.UnsupportedEncodingException;
+import java.math.BigDecimal;
+import java.sql.Connection;
+import java.sql.Date;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Time;
+import java.sql.Timestamp;
+import java.sql.Types;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+/**
+ * Streams the results of an index query from a server side cursor, holding a connection
+ * until the results are exhausted or the cursor is closed. The statement must select the
+ * id and the column it is ordered by first so that the cursor can produce a continuation
+ * token for the last result it returned.
+ * <p/>
+ * A token is the id and the hex of the index value: the raw bytes of binary columns and the
+ * canonical text of anything else, so that it decodes back to the type the column returned.
+ *
+ * @param <E> result type
+ */
+public abstract class IndexCursor<E> implements Iterator<E>, Closeable {
+  private final int limit;
+  private Connection connection;
+  private PreparedStatement ps;
+  private ResultSet rs;
+  private E next;
+  private boolean done;
+  private int count;
+  private long lastId;
+  private Object lastValue;
+
+  /**
+   * A statement parameter and its SQL type.
+   */
+  static class Param {
+    final Object value;
+    final int sqlType;
+
+    Param(Object value, int sqlType) {
+      this.value = value;
+      this.sqlType = sqlType;
+    }
+  }
+
+  IndexCursor(DataSource datasource, String statement, List<Param> params, int limit) throws AvroBaseException {
+    this.limit = limit;
+    try {
+      connection = datasource.getConnection();
+      ps = connection.prepareStatement(statement, ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
+      ps.setFetchSize(Integer.MIN_VALUE);
+      int i = 1;
+      for (Param param : params) {
+        ps.setObject(i++, param.value, param.sqlType);
+      }
+      rs = ps.executeQuery();
+    } catch (SQLException e) {
+      close();
+      throw new AvroBaseException("Database problem", e);
+    }
+  }
+
+  abstract E read(ResultSet rs) throws AvroBaseException, SQLException;
+
+  @Override
+  public boolean hasNext() {
+    if (next == null && !done) {
+      try {
+        if (rs.next()) {
+          lastId = rs.getLong(1);
+          lastValue = rs.getObject(2);
+          next = read(rs);
+          count++;
+        } else {
+          close();
+        }
+      } catch (SQLException e) {
+        close();
+        throw new AvroBaseException("Database problem", e);
+      }
+    }
+    return next != null;
+  }
+
+  @Override
+  public E next() {
+    if (!hasNext()) {
+      throw new NoSuchElementException();
+    }
+    E e = next;
+    next = null;
+    return e;
+  }
+
+  @Override
+  public void remove() {
+    throw new UnsupportedOperationException();
+  }
+
+  /**
+   * @return token that continues the query after the last result returned, or null if the
+   *         cursor ran out of results before reaching the limit and there are no more
+   */
+  public String getContinuation() {
+    if (count == 0 || (done && (limit == 0 || count < limit))) {
+      return null;
+    }
+    return continuation(lastId, lastValue);
+  }
+
+  @Override
+  public void close() {
+    done = true;
+    IndexedMysqlAB.close(rs);
+    IndexedMysqlAB.close(ps);
+    IndexedMysqlAB.close(connection);
+    rs = null;
+    ps = null;
+    connection = null;
+  }
+
+  /**
+   * @param id    of the last row of a page
+   * @param value of the index column of the last row of a page, as the driver returned it
+   * @return token that continues after that row
+   */
+  static String continuation(long id, Object value) {
+    final byte[] bytes;
+    if (value instanceof byte[]) {
+      bytes = (byte[]) value;
+    } else {
+      try {
+        bytes = text(value).getBytes("UTF-8");
+      } catch (UnsupportedEncodingException e) {
+        throw new AssertionError(e);
+      }
+    }
+    return id + ":" + new String(Hex.encodeHex(bytes));
+  }
+
+  // Text that the matching valueOf parses back exactly, BigDecimal.toString may use exponents
+
+  private static String text(Object value) {
+    if (value instanceof BigDecimal) {
+      return ((BigDecimal) value).toPlainString();
+    }
+    return String.valueOf(value);
+  }
+
+  /**
+   * @param continuation
+   * @return id of the last row of the page the token continues
+   */
+  static long continuationId(String continuation) {
+    int colon = continuation.indexOf(':');
+    try {
+      return Long.parseLong(continuation.substring(0, colon == -1 ? continuation.length() : colon));
+    } catch (NumberFormatException e) {
+      throw new IllegalArgumentException("Invalid continuation: " + continuation, e);
+    }
+  }
+
+  /**
+   * @param continuation
+   * @param sqlType      of the index column
+   * @return index value of the last row of the page the token continues, as the Java type
+   *         the driver returns for the column
+   */
+  static Object continuationValue(String continuation, int sqlType) {
+    int colon = continuation.indexOf(':');
+    if (colon == -1) {
+      throw new IllegalArgumentException("Invalid continuation: " + continuation);
+    }
+    try {
+      byte[] bytes = Hex.decodeHex(continuation.substring(colon + 1).toCharArray());
+      switch (sqlType) {
+        case Types.BINARY:
+        case Types.VARBINARY:
+        case Types.LONGVARBINARY:
+        case Types.BLOB:
+          return bytes;
+      }
+      String text = new String(bytes, "UTF-8");
+      switch (sqlType) {
+        case Types.TIMESTAMP:
+          return Timestamp.valueOf(text);
+        case Types.DATE:
+          return Date.valueOf(text);
+        case Types.TIME:
+          return Time.valueOf(text);
+        case Types.DECIMAL:
+        case Types.NUMERIC:
+          return new BigDecimal(text);
+        case Types.BIGINT:
+          return Long.valueOf(text);
+        case Types.TINYINT:
+        case Types.SMALLINT:
+        case Types.INTEGER:
+          return Integer.valueOf(text);
+        case Types.REAL:
+          return Float.valueOf(text);
+        case Types.FLOAT:
+        case Types.DOUBLE:
+          return Double.valueOf(text);
+        case Types.BIT:
+        case Types.BOOLEAN:
+          return Boolean.valueOf(text);
+        default:
+          return text;
+      }
+    } catch (DecoderException e) {
+      throw new IllegalArgumentException("Invalid continuation: " + continuation, e);
+    } catch (IllegalArgumentException e) {
+      throw new IllegalArgumentException("Invalid continuation: " + continuation, e);
+    } catch (UnsupportedEncodingException e) {
+      throw new AssertionError(e);
+    }
+  }
+}
@@ -1,19 +1,134 @@
 package avrobase.mysql.experimental;
 
-public class IndexQuery<V> {
+/**
+ * A query on an index column. The plain constructor matches the value exactly; the static
+ * factories cover ranges. Results come back in index order, limited to a page when a limit
+ * is set, and the next page is requested by passing the previous page's continuation token
+ * to after(). Combined into a CompositeQuery only the predicate is used.
+ *
+ * @param <V> index value type
+ */
+public class IndexQuery<V> implements IndexCondition {
+  public enum Operator {
+    EQ("="), LT("<"), LE("<="), GT(">"), GE(">="), BETWEEN("BETWEEN");
+
+    private final String sql;
+
+    Operator(String sql) {
+      this.sql = sql;
+    }
+
+    public String getSql() {
+      return sql;
+    }
+  }
+
   private final IndexColumn column;
+  private final Operator operator;
   private final V value;
+  private final V high;
+  private boolean descending;
+  private int limit;
+  private String continuation;
 
   public IndexQuery(IndexColumn column, V value) {
+    this(column, Operator.EQ, value, null);
+  }
+
+  private IndexQuery(IndexColumn column, Operator operator, V value, V high) {
     this.column = column;
+    this.operator = operator;
     this.value = value;
+    this.high = high;
+  }
+
+  public static <V> IndexQuery<V> lt(IndexColumn column, V value) {
+    return new IndexQuery<V>(column, Operator.LT, value, null);
+  }
+
+  public static <V> IndexQuery<V> le(IndexColumn column, V value) {
+    return new IndexQuery<V>(column, Operator.LE, value, null);
+  }
+
+  public static <V> IndexQuery<V> gt(IndexColumn column, V value) {
+    return new IndexQuery<V>(column, Operator.GT, value, null);
+  }
+
+  public static <V> IndexQuery<V> ge(IndexColumn column, V value) {
+    return new IndexQuery<V>(column, Operator.GE, value, null);
+  }
+
+  /**
+   * @param column
+   * @param low    inclusive
+   * @param high   inclusive
+   * @return
+   */
+  public static <V> IndexQuery<V> between(IndexColumn column, V low, V high) {
+    return new IndexQuery<V>(column, Operator.BETWEEN, low, high);
+  }
+
+  /**
+   * Return results in descending index order rather than ascending.
+   *
+   * @return this query
+   */
+  public IndexQuery<V> descending() {
+    this.descending = true;
+    return this;
+  }
+
+  /**
+   * @param limit most results returned, 0 for all of them
+   * @return this query
+   */
+  public IndexQuery<V> limit(int limit) {
+    if (limit < 0) {
+      throw new IllegalArgumentException("limit must not be negative: " + limit);
+    }
+    this.limit = limit;
+    return this;
+  }
+
+  /**
+   * Continue after the last result of a previous page of the same query.
+   *
+   * @param continuation token from IndexCursor.getContinuation()
+   * @return this query
+   */
+  public IndexQuery<V> after(String continuation) {
+    this.continuation = continuation;
+    return this;
   }
 
   public IndexColumn getColumn() {
     return column;
   }
 
+  public Operator getOperator() {
+    return operator;
+  }
+
   public V getValue() {
     return value;
   }
+
+  /**
+   * @return upper bound of a BETWEEN query
+   */
+  public V getHigh() {
+    return high;
+  }
+
+  public boolean isDescending() {
+    return descending;
+  }
+
+  public int getLimit() {
+    return limit;
+  }
+
+  public String getContinuation() {
+    return continuation;
+  }
 }
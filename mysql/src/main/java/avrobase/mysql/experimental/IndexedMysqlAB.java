@@ -8,17 +8,13 @@ import com.google.common.base.Supplier;
 import com.google.common.collect.Iterables;
 import org.apache.avro.Schema;
 import org.apache.avro.specific.SpecificRecord;
-import org.apache.commons.codec.binary.Hex;
 
 import javax.annotation.Nullable;
 import javax.sql.DataSource;
-import java.io.ByteArrayInputStream;
-import java.io.IOException;
-import java.security.MessageDigest;
-import java.security.NoSuchAlgorithmException;
 import java.sql.*;
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 import static com.google.common.base.Preconditions.checkNotNull;
 
@@ -26,6 +22,7 @@ import static com.google.common.base.Preconditions.checkNotNull;
  * An experimental MySQL implementation of AvroBase that has a few interesting features:
  *  - supports same-table indexes, giving users simple transactional indexes. the indexcolumn can specify uniqueness contraints.
  *  - supports many-to-many relation tables, which is a combination of two indexes with a unique index capturing both columns
+ *  - supports composite indexes and AND/OR queries across index and relation columns, compiled to a single statement that uses the index estimated to read the fewest rows
  *  - supports audit values within avro objects -- "updated" and "created" -- where the current timestamp will be inserted into the avro object upon create/put, only if the object has those fields.
  *
  * Limitations:
@@ -46,17 +43,31 @@ public class IndexedMysqlAB<T extends SpecificRecord> extends AvroBaseImpl<T, Lo
   private static final String FIELD_UPDATED = "updated";
   private static final String FIELD_CREATED = "created";
 
+  // planner tuning
+  private static final long STATS_TTL = 10 * 60 * 1000;
+
   private final DataSource datasource;
   private final String schemaTable;
   private final String table;
   private final Supplier<Long> keySupplier;
   private final Iterable<IndexColumn<T, ?>> indexColumns;
   private final @Nullable ManyManyRelation<T> relation;
+  private final Iterable<CompositeIndex<T>> compositeIndexes;
+  private final Set<String> columnNames = new HashSet<String>();
   private final boolean createTable;
 
   // schema cache
-  private final Map<Integer, Schema> schemas = new ConcurrentHashMap<Integer, Schema>();
-  private final Map<Schema, Integer> schemaIds = new ConcurrentHashMap<Schema, Integer>();
+  private final SchemaRegistry<Integer> schemas = new SchemaRegistry<Integer>(new SchemaRegistry.Store<Integer>() {
+    @Override
+    public Schema load(Integer id) throws AvroBaseException {
+      return loadSchema(id);
+    }
+
+    @Override
+    public Integer store(Schema schema) throws AvroBaseException {
+      return storeSchema(schema);
+    }
+  });
 
   // pre-computed SQL statements
   private final String insertStatement;
@@ -65,16 +76,41 @@ public class IndexedMysqlAB<T extends SpecificRecord> extends AvroBaseImpl<T, Lo
   private final String selectStatement;
   private final String selectIndexBaseStatement;
 
+  // composite query plans by query shape
+  private final ConcurrentMap<String, String> plans = new ConcurrentHashMap<String, String>();
+  private final CompositePlanner planner;
+  private volatile CompositePlanner.IndexStats stats = new CompositePlanner.IndexStats();
+
   public IndexedMysqlAB(DataSource datasource, String table, Schema schema, String schemaTable, Supplier<Long> keySupplier, Iterable<IndexColumn<T, ?>> indexColumns, @Nullable ManyManyRelation<T> relation, boolean createTable) {
+    this(datasource, table, schema, schemaTable, keySupplier, indexColumns, relation, Collections.<CompositeIndex<T>>emptyList(), createTable);
+  }
+
+  public IndexedMysqlAB(DataSource datasource, String table, Schema schema, String schemaTable, Supplier<Long> keySupplier, Iterable<IndexColumn<T, ?>> indexColumns, @Nullable ManyManyRelation<T> relation, Iterable<CompositeIndex<T>> compositeIndexes, boolean createTable) {
     super(schema, AVRO_FORMAT);
     this.datasource = checkNotNull(datasource);
     this.table = checkNotNull(table);
     this.schemaTable = checkNotNull(schemaTable);
     this.indexColumns = checkNotNull(indexColumns);
     this.relation = relation;
+    this.compositeIndexes = checkNotNull(compositeIndexes);
     this.keySupplier = checkNotNull(keySupplier);
     this.createTable = createTable;
 
+    if (relation != null) {
+      columnNames.add(relation.getLeft().getColumnName());
+      columnNames.add(relation.getRight().getColumnName());
+    }
+    for (IndexColumn<T, ?> ic : indexColumns) {
+      columnNames.add(ic.getColumnName());
+    }
+    for (CompositeIndex<T> ci : compositeIndexes) {
+      for (IndexColumn<T, ?> ic : ci.getColumns()) {
+        Preconditions.checkArgument(columnNames.contains(ic.getColumnName()), "composite index column is not an index column: " + ic.getColumnName());
+      }
+    }
+
+    planner = new CompositePlanner(table, columnNames);
+
     final String insertColsClause = COMMAS.join(orderedColNames(relation, indexColumns));
     final String insertParamClause = paramClause(BASE_COLS.length + Iterables.size(indexColumns) + (relation != null ? 2 : 0));
     insertStatement = "INSERT INTO " + table + " (" + insertColsClause + ") VALUES " + insertParamClause;
@@ -134,6 +170,14 @@ public class IndexedMysqlAB<T extends SpecificRecord> extends AvroBaseImpl<T, Lo
       clauses.add(SPACES.join((ic.isUnique() ? "UNIQUE" : null), "INDEX (", ic.getColumnName(), ')'));
     }
 
+    for (CompositeIndex<T> ci : compositeIndexes) {
+      final List<String> names = new ArrayList<String>();
+      for (IndexColumn<T, ?> ic : ci.getColumns()) {
+        names.add(ic.getColumnName());
+      }
+      clauses.add(SPACES.join((ci.isUnique() ? "UNIQUE" : null), "INDEX", ci.getName(), '(', COMMAS.join(names), ')'));
+    }
+
     return SPACES.join("CREATE TABLE", table, '(', COMMAS.join(clauses), ')', "ENGINE=InnoDB DEFAULT CHARSET=UTF8");
   }
 
@@ -180,7 +224,8 @@ public class IndexedMysqlAB<T extends SpecificRecord> extends AvroBaseImpl<T, Lo
 
               Void execute(ResultSet rs) throws AvroBaseException, SQLException {
                 while (rs.next()) {
-                  loadSchema(rs.getInt(1), rs.getBytes(2));
+                  int id = rs.getInt(1);
+                  schemas.register(id, SchemaRegistry.parse(id, rs.getBytes(2)));
                 }
                 return null;
               }
@@ -289,12 +334,7 @@ public class IndexedMysqlAB<T extends SpecificRecord> extends AvroBaseImpl<T, Lo
    * @return
    */
   private Integer schemaId(T value) {
-    Schema schema = value.getSchema();
-    Integer schemaId = schemaIds.get(schema);
-    if (schemaId == null) {
-      schemaId = storeSchema(schema);
-    }
-    return schemaId;
+    return schemas.getId(value.getSchema());
   }
 
   /**
@@ -402,9 +442,191 @@ public class IndexedMysqlAB<T extends SpecificRecord> extends AvroBaseImpl<T, Lo
     return Collections.emptyList();
   }
 
+  /**
+   * Read all the rows matching the query before returning them, so no connection is held by
+   * the results. Use cursor(query) or keys(query) to stream them instead.
+   *
+   * @param query
+   * @return
+   */
   @Override
   public Iterable<Row<T, Long>> search(IndexQuery query) throws AvroBaseException {
-    return select(query.getColumn(), query.getColumn());
+    final List<Row<T, Long>> results = new ArrayList<Row<T, Long>>();
+    final IndexCursor<Row<T, Long>> cursor = cursor(query);
+    try {
+      while (cursor.hasNext()) {
+        results.add(cursor.next());
+      }
+    } finally {
+      cursor.close();
+    }
+    return results;
+  }
+
+  /**
+   * Stream the rows matching the query in index order.
+   *
+   * @param query
+   * @return a cursor that must be closed if it is not read to the end
+   */
+  public IndexCursor<Row<T, Long>> cursor(IndexQuery<?> query) throws AvroBaseException {
+    return new IndexCursor<Row<T, Long>>(datasource, indexStatement(query, false), indexParams(query), query.getLimit()) {
+      Row<T, Long> read(ResultSet rs) throws AvroBaseException, SQLException {
+        return readIndexRow(rs);
+      }
+    };
+  }
+
+  /**
+   * Stream the ids of the rows matching the query in index order. Only the index column and
+   * the id are selected, so the query is answered from the secondary index alone.
+   *
+   * @param query
+   * @return a cursor that must be closed if it is not read to the end
+   */
+  public IndexCursor<Long> keys(IndexQuery<?> query) throws AvroBaseException {
+    return new IndexCursor<Long>(datasource, indexStatement(query, true), indexParams(query), query.getLimit()) {
+      Long read(ResultSet rs) throws AvroBaseException, SQLException {
+        return rs.getLong(1);
+      }
+    };
+  }
+
+  // Select the id and index column first, for continuations, and order by both so that a
+  // continuation picks up exactly where the previous page stopped
+
+  private String indexStatement(IndexQuery<?> query, boolean keysOnly) {
+    final String column = query.getColumn().getColumnName();
+    final String direction = query.isDescending() ? " DESC" : " ASC";
+    final StringBuilder sb = new StringBuilder("SELECT id, ").append(column);
+    if (!keysOnly) {
+      sb.append(", schema_id, version, avro");
+    }
+    sb.append(" FROM ").append(table).append(" WHERE ").append(column).append(' ').append(query.getOperator().getSql()).append(" ?");
+    if (query.getOperator() == IndexQuery.Operator.BETWEEN) {
+      sb.append(" AND ?");
+    }
+    if (query.getContinuation() != null) {
+      final String past = query.isDescending() ? " < ?" : " > ?";
+      sb.append(" AND (").append(column).append(past).append(" OR (").append(column).append(" = ? AND id").append(past).append("))");
+    }
+    sb.append(" ORDER BY ").append(column).append(direction).append(", id").append(direction);
+    if (query.getLimit() > 0) {
+      sb.append(" LIMIT ?");
+    }
+    return sb.toString();
+  }
+
+  // Rows selected as id, order column, schema_id, version, avro
+
+  private Row<T, Long> readIndexRow(ResultSet rs) throws AvroBaseException, SQLException {
+    long row = rs.getLong(1);
+    int schema_id = rs.getInt(3);
+    long version = rs.getLong(4);
+    byte[] avro = rs.getBytes(5);
+    Schema schema = getSchema(schema_id);
+    if (schema != null) {
+      return new Row<T, Long>(readValue(avro, schema, format), row, version);
+    } else {
+      throw new AvroBaseException("Failed to find schema: " + schema_id);
+    }
+  }
+
+  private List<IndexCursor.Param> indexParams(IndexQuery<?> query) {
+    final List<IndexCursor.Param> params = new ArrayList<IndexCursor.Param>();
+    final int sqlType = query.getColumn().getColumnSqlType();
+    params.add(new IndexCursor.Param(query.getValue(), sqlType));
+    if (query.getOperator() == IndexQuery.Operator.BETWEEN) {
+      params.add(new IndexCursor.Param(query.getHigh(), sqlType));
+    }
+    final String continuation = query.getContinuation();
+    if (continuation != null) {
+      final Object value = IndexCursor.continuationValue(continuation, sqlType);
+      params.add(new IndexCursor.Param(value, sqlType));
+      params.add(new IndexCursor.Param(value, sqlType));
+      params.add(new IndexCursor.Param(IndexCursor.continuationId(continuation), Types.BIGINT));
+    }
+    if (query.getLimit() > 0) {
+      params.add(new IndexCursor.Param(query.getLimit(), Types.INTEGER));
+    }
+    return params;
+  }
+
+  /**
+   * Stream the rows matching a composite query in id order. The query is compiled into a
+   * single statement, planned once per shape.
+   *
+   * @param query
+   * @return a cursor that must be closed if it is not read to the end
+   */
+  public IndexCursor<Row<T, Long>> cursor(CompositeQuery query) throws AvroBaseException {
+    return new IndexCursor<Row<T, Long>>(datasource, compositeStatement(query, false), planner.params(query), query.getLimit()) {
+      Row<T, Long> read(ResultSet rs) throws AvroBaseException, SQLException {
+        return readIndexRow(rs);
+      }
+    };
+  }
+
+  /**
+   * Stream the ids of the rows matching a composite query in id order.
+   *
+   * @param query
+   * @return a cursor that must be closed if it is not read to the end
+   */
+  public IndexCursor<Long> keys(CompositeQuery query) throws AvroBaseException {
+    return new IndexCursor<Long>(datasource, compositeStatement(query, true), planner.params(query), query.getLimit()) {
+      Long read(ResultSet rs) throws AvroBaseException, SQLException {
+        return rs.getLong(1);
+      }
+    };
+  }
+
+  // The statement only depends on the shape of the query, so plan each shape once
+
+  private String compositeStatement(CompositeQuery query, boolean keysOnly) {
+    refreshStats();
+    final String key = planner.shape(query, keysOnly);
+    String statement = plans.get(key);
+    if (statement == null) {
+      statement = planner.plan(query, keysOnly, stats);
+      plans.putIfAbsent(key, statement);
+    }
+    return statement;
+  }
+
+  // Reload the index statistics once they are stale, plans made with the old ones are dropped
+
+  private void refreshStats() {
+    if (System.currentTimeMillis() - stats.loaded < STATS_TTL) return;
+    synchronized (plans) {
+      if (System.currentTimeMillis() - stats.loaded < STATS_TTL) return;
+      final CompositePlanner.IndexStats fresh = new CompositePlanner.IndexStats();
+      new Query<Void>("SELECT INDEX_NAME, NON_UNIQUE, COLUMN_NAME, CARDINALITY FROM information_schema.STATISTICS" +
+          " WHERE TABLE_SCHEMA = DATABASE() AND TABLE_NAME = ? AND INDEX_NAME <> 'PRIMARY' ORDER BY INDEX_NAME, SEQ_IN_INDEX") {
+        void setup(PreparedStatement ps) throws AvroBaseException, SQLException {
+          ps.setString(1, table);
+        }
+
+        Void execute(ResultSet rs) throws AvroBaseException, SQLException {
+          while (rs.next()) {
+            fresh.add(rs.getString(1), rs.getInt(2) == 0, rs.getString(3), rs.getLong(4));
+          }
+          return null;
+        }
+      }.query();
+      fresh.rows = new Query<Long>("SELECT TABLE_ROWS FROM information_schema.TABLES WHERE TABLE_SCHEMA = DATABASE() AND TABLE_NAME = ?") {
+        void setup(PreparedStatement ps) throws AvroBaseException, SQLException {
+          ps.setString(1, table);
+        }
+
+        Long execute(ResultSet rs) throws AvroBaseException, SQLException {
+          return rs.next() ? rs.getLong(1) : 0L;
+        }
+      }.query();
+      fresh.loaded = System.currentTimeMillis();
+      stats = fresh;
+      plans.clear();
+    }
   }
 
   private abstract class Query<R> {
@@ -440,85 +662,52 @@ public class IndexedMysqlAB<T extends SpecificRecord> extends AvroBaseImpl<T, Lo
     }
   }
 
-  private synchronized Schema getSchema(final int schema_id) throws AvroBaseException {
-    Schema schema = schemas.get(schema_id);
-    if (schema == null) {
-      schema = new Query<Schema>("SELECT id, json FROM " + schemaTable + " WHERE id=?") {
-        void setup(PreparedStatement ps) throws AvroBaseException, SQLException {
-          ps.setInt(1, schema_id);
-        }
+  private Schema getSchema(final int schema_id) throws AvroBaseException {
+    return schemas.getSchema(schema_id);
+  }
 
-        Schema execute(ResultSet rs) throws AvroBaseException, SQLException {
-          if (rs.next()) {
-            return loadSchema(schema_id, rs.getBytes(2));
-          } else {
-            return null;
-          }
+  private Schema loadSchema(final int schema_id) throws AvroBaseException {
+    return new Query<Schema>("SELECT id, json FROM " + schemaTable + " WHERE id=?") {
+      void setup(PreparedStatement ps) throws AvroBaseException, SQLException {
+        ps.setInt(1, schema_id);
+      }
+
+      Schema execute(ResultSet rs) throws AvroBaseException, SQLException {
+        if (rs.next()) {
+          return SchemaRegistry.parse(schema_id, rs.getBytes(2));
+        } else {
+          return null;
         }
-      }.query();
-    }
-    return schema;
+      }
+    }.query();
   }
 
   private int storeSchema(final Schema schema) throws AvroBaseException {
-    Integer id;
-    synchronized (schema) {
-      id = schemaIds.get(schema);
-      if (id == null) {
-        // Hash the schema, store it
-        MessageDigest md;
-        try {
-          md = MessageDigest.getInstance("SHA-256");
-        } catch (NoSuchAlgorithmException e) {
-          md = null;
-        }
-        String doc = schema.toString();
-        final String schemaKey;
-        if (md == null) {
-          schemaKey = doc;
-        } else {
-          schemaKey = new String(Hex.encodeHex(md.digest(doc.getBytes())));
-        }
-        id = new Query<Integer>("SELECT id FROM " + schemaTable + " WHERE hash=?") {
-          void setup(PreparedStatement ps) throws AvroBaseException, SQLException {
-            ps.setBytes(1, schemaKey.getBytes());
-          }
+    final String schemaKey = SchemaRegistry.hash(schema.toString());
+    Integer id = new Query<Integer>("SELECT id FROM " + schemaTable + " WHERE hash=?") {
+      void setup(PreparedStatement ps) throws AvroBaseException, SQLException {
+        ps.setBytes(1, schemaKey.getBytes());
+      }
 
-          Integer execute(ResultSet rs) throws AvroBaseException, SQLException {
-            if (rs.next()) {
-              return rs.getInt(1);
-            } else {
-              return null;
-            }
-          }
-        }.query();
-        if (id == null) {
-          id = new Insert("INSERT INTO " + schemaTable + " (hash, json) VALUES (?, ?)") {
-            void setup(PreparedStatement ps) throws AvroBaseException, SQLException {
-              ps.setBytes(1, schemaKey.getBytes());
-              ps.setBytes(2, schema.toString().getBytes());
-            }
-          }.insert();
+      Integer execute(ResultSet rs) throws AvroBaseException, SQLException {
+        if (rs.next()) {
+          return rs.getInt(1);
+        } else {
+          return null;
         }
-        schemas.put(id, schema);
-        schemaIds.put(schema, id);
       }
+    }.query();
+    if (id == null) {
+      id = new Insert("INSERT INTO " + schemaTable + " (hash, json) VALUES (?, ?)") {
+        void setup(PreparedStatement ps) throws AvroBaseException, SQLException {
+          ps.setBytes(1, schemaKey.getBytes());
+          ps.setBytes(2, schema.toString().getBytes());
+        }
+      }.insert();
     }
     return id;
   }
 
-  private Schema loadSchema(int id, byte[] value) throws AvroBaseException {
-    Schema schema;
-    try {
-      schema = Schema.parse(new ByteArrayInputStream(value));
-    } catch (IOException e) {
-      throw new AvroBaseException("Could not parse the schema", e);
-    }
-    schemas.put(id, schema);
-    schemaIds.put(schema, id);
-    return schema;
-  }
-
   private abstract class Insert {
     private String statement;
 
@@ -0,0 +1,104 @@
+package avrobase.mysql.logging;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Bloom filter over the row keys of a log table. Log tables never change once they have
+ * been rolled, so a filter built then stays valid for the life of the table and lets
+ * version lookups skip tables that can't contain the row.
+ * <p/>
+ * User: sam
+ * Date: 7/5/11
+ * Time: 10:20 AM
+ */
+class BloomFilter {
+  // Stored as a mediumblob, leave room for the header
+  private static final long MAX_BITS = 8L * (16 * 1024 * 1024 - 64);
+  private static final double LN2 = Math.log(2);
+
+  private final long[] bits;
+  private final int hashes;
+
+  /**
+   * @param expected       number of distinct keys that will be added
+   * @param falsePositives acceptable rate of false positives once they have been
+   */
+  BloomFilter(long expected, double falsePositives) {
+    long n = Math.max(1, expected);
+    long m = (long) Math.ceil(-n * Math.log(falsePositives) / (LN2 * LN2));
+    m = Math.max(64, Math.min(m, MAX_BITS));
+    bits = new long[(int) ((m + 63) / 64)];
+    hashes = Math.max(1, (int) Math.round((double) bits.length * 64 / n * LN2));
+  }
+
+  private BloomFilter(long[] bits, int hashes) {
+    this.bits = bits;
+    this.hashes = hashes;
+  }
+
+  void add(byte[] key) {
+    long h1 = hash(key);
+    long h2 = mix(h1);
+    long m = (long) bits.length * 64;
+    for (int i = 0; i < hashes; i++) {
+      long bit = ((h1 + i * h2) & Long.MAX_VALUE) % m;
+      bits[(int) (bit >>> 6)] |= 1L << bit;
+    }
+  }
+
+  /**
+   * @param key
+   * @return false if the key was definitely never added
+   */
+  boolean mightContain(byte[] key) {
+    long h1 = hash(key);
+    long h2 = mix(h1);
+    long m = (long) bits.length * 64;
+    for (int i = 0; i < hashes; i++) {
+      long bit = ((h1 + i * h2) & Long.MAX_VALUE) % m;
+      if ((bits[(int) (bit >>> 6)] & (1L << bit)) == 0) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  byte[] toBytes() {
+    ByteBuffer bb = ByteBuffer.allocate(4 + bits.length * 8);
+    bb.putInt(hashes);
+    for (long word : bits) {
+      bb.putLong(word);
+    }
+    return bb.array();
+  }
+
+  static BloomFilter fromBytes(byte[] bytes) {
+    ByteBuffer bb = ByteBuffer.wrap(bytes);
+    int hashes = bb.getInt();
+    long[] bits = new long[bb.remaining() / 8];
+    for (int i = 0; i < bits.length; i++) {
+      bits[i] = bb.getLong();
+    }
+    return new BloomFilter(bits, hashes);
+  }
+
+  // 64-bit FNV-1a
+
+  private static long hash(byte[] key) {
+    long h = 0xcbf29ce484222325L;
+    for (byte b : key) {
+      h ^= b & 0xff;
+      h *= 0x100000001b3L;
+    }
+    return h;
+  }
+
+  // Second hash for double hashing, odd so every probe differs
+
+  private static long mix(long h) {
+    h ^= 0x9e3779b97f4a7c15L;
+    h = (h ^ (h >>> 33)) * 0xff51afd7ed558ccdL;
+    h = (h ^ (h >>> 33)) * 0xc4ceb9fe1a85ec53L;
+    return (h ^ (h >>> 33)) | 1;
+  }
+}
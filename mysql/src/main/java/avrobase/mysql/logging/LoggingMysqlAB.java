@@ -5,12 +5,15 @@ import avrobase.AvroFormat;
 import avrobase.Row;
 import avrobase.mysql.KeyStrategy;
 import avrobase.mysql.MysqlAB;
-import com.google.common.collect.Iterables;
 import org.apache.avro.Schema;
 import org.apache.avro.specific.SpecificRecord;
+import org.apache.commons.codec.binary.Hex;
 
 import javax.sql.DataSource;
+import java.io.BufferedOutputStream;
 import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.sql.Connection;
 import java.sql.DatabaseMetaData;
@@ -19,16 +22,37 @@ import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Statement;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
 import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReadWriteLock;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
+import java.util.zip.GZIPOutputStream;
 
 /**
  * This needs multiserver synchronization if you don't want to federate queries across log tables.
@@ -38,24 +62,68 @@ import java.util.regex.Pattern;
  * Time: 11:17 PM
  */
 public class LoggingMysqlAB<T extends SpecificRecord, K> extends MysqlAB<T, K> {
-  private String logTableName;
+  public static final int LOG_QUEUE_SIZE = 10000;
+  public static final int LOG_BATCH_SIZE = 500;
+  public static final long FLUSH_INTERVAL = 50;
+  public static final double FILTER_FALSE_POSITIVES = 0.01;
+
+  // Keep each statement well under the default max_allowed_packet
+  private static final int LOG_STATEMENT_BYTES = 512 * 1024;
+  private static final int LOG_RETRIES = 3;
+  private static final long MAX_BACKOFF = 5000;
+  private static final int ARCHIVE_BUFFER = 64 * 1024;
+
+  private volatile String logTableName;
   private AtomicInteger count;
   private ReadWriteLock lock = new ReentrantReadWriteLock();
+  private final LogWriter writer;
+
+  // Row key filters of finished log tables, stored in the filter table
+  private final String filterTableName;
+  private final ConcurrentMap<String, BloomFilter> filters = new ConcurrentHashMap<String, BloomFilter>();
+  private final AtomicBoolean filtering = new AtomicBoolean();
+  // Tables being archived and dropped, whose filters must not be stored
+  private final Set<String> archiving = new HashSet<String>(); // guarded by filters
+  private int archiveVersions;
 
   public LoggingMysqlAB(ExecutorService es, DataSource datasource, String table, String family, String schemaTable, Schema schema, AvroFormat storageFormat, KeyStrategy<K> keytx) throws AvroBaseException {
     super(es, datasource, table, family, schemaTable, schema, storageFormat, keytx);
+    filterTableName = mysqlTableName + "_filters";
+    new Update(datasource, "CREATE TABLE IF NOT EXISTS " + filterTableName + " ( table_name varchar(255) primary key, bloom mediumblob not null ) ENGINE=INNODB") {
+      @Override
+      public void setup(PreparedStatement ps) throws AvroBaseException, SQLException {
+      }
+    }.insert();
     try {
       roll();
     } catch (SQLException e) {
       throw new AvroBaseException("Could not roll log table", e);
     }
+    writer = new LogWriter();
   }
 
+  /**
+   * Start a new log table. The previous ones are summarized in the background so version
+   * lookups can skip them.
+   *
+   * @return id of the new log table
+   */
   public long roll() throws SQLException {
+    return roll(true);
+  }
+
+  // Archiving drops the previous tables, so there is no point summarizing them
+
+  private long roll(boolean summarize) throws SQLException {
+    // Entries logged before the roll go into the table being rolled
+    if (writer != null) {
+      writer.flush();
+    }
+    long id;
     Lock writeLock = lock.writeLock();
     writeLock.lock();
     try {
-      long id = System.currentTimeMillis() / 1000;
+      id = System.currentTimeMillis() / 1000;
       logTableName = mysqlTableName + "_" + id;
       Connection connection = datasource.getConnection();
       DatabaseMetaData data = connection.getMetaData();
@@ -71,10 +139,18 @@ public class LoggingMysqlAB<T extends SpecificRecord, K> extends MysqlAB<T, K> {
       }
       connection.close();
       count = new AtomicInteger(0);
-      return id;
     } finally {
       writeLock.unlock();
     }
+    if (summarize) {
+      es.submit(new Runnable() {
+        @Override
+        public void run() {
+          buildFilters();
+        }
+      });
+    }
+    return id;
   }
 
   public int count() {
@@ -85,92 +161,552 @@ public class LoggingMysqlAB<T extends SpecificRecord, K> extends MysqlAB<T, K> {
     return mysqlTableName;
   }
 
+  @Override
+  public boolean put(byte[] row, T value, long version) throws AvroBaseException {
+    checkOpen();
+    return super.put(row, value, version);
+  }
+
+  @Override
+  public void delete(K row) throws AvroBaseException {
+    checkOpen();
+    super.delete(row);
+  }
+
   @Override
   protected void log(final byte[] row, final Integer schemaId, final int format, final byte[] serialized, final long version) {
-    es.submit(new Runnable() {
-      @Override
-      public void run() {
+    writer.log(new Entry(row, schemaId, version, format, serialized));
+  }
+
+  // Reject writes that could not be logged before they are made
+
+  private void checkOpen() {
+    if (writer.closed) {
+      throw new IllegalStateException("Log closed");
+    }
+  }
+
+  /**
+   * Wait until everything logged before this call is in a log table.
+   *
+   * @throws AvroBaseException if the log writer has been failing to write, the entries are
+   *                           kept and retried
+   */
+  public void flush() throws AvroBaseException {
+    writer.flush();
+  }
+
+  /**
+   * Write the queued log entries and stop the log writer.
+   *
+   * @throws AvroBaseException if entries could not be written before closing
+   */
+  public void close() throws AvroBaseException {
+    writer.close();
+  }
+
+  private static class Entry {
+    final byte[] row;
+    final int schemaId;
+    final long version;
+    final int format;
+    final byte[] avro;
+
+    Entry(byte[] row, int schemaId, long version, int format, byte[] avro) {
+      this.row = row;
+      this.schemaId = schemaId;
+      this.version = version;
+      this.format = format;
+      this.avro = avro;
+    }
+  }
+
+  /**
+   * Writes log entries in multi-row INSERTs on a single connection. Entries wait in a bounded
+   * queue, so writers block when the log falls behind, and a batch is written when it is full
+   * or FLUSH_INTERVAL after its first entry arrived. Batches are written under the read lock
+   * into whatever log table is current, so roll() never drops a table that is being written.
+   * A batch that fails is retried with backoff until it is written, only being given up on
+   * once the log is closed, and flush() reports the failure in the meantime.
+   */
+  private class LogWriter implements Runnable {
+    private final BlockingQueue<Entry> queue = new ArrayBlockingQueue<Entry>(LOG_QUEUE_SIZE);
+    private final AtomicLong queued = new AtomicLong(0);
+    private final Thread thread;
+    private volatile boolean closed;
+    private volatile Exception failure;
+    private long written; // guarded by this
+    private long lost; // guarded by this
+    private Connection connection;
+
+    LogWriter() {
+      thread = new Thread(this, "LoggingMysqlAB-" + mysqlTableName);
+      thread.setDaemon(true);
+      thread.start();
+    }
+
+    void log(Entry entry) {
+      if (closed) {
+        // Raced with close(), the row is already written so all we can do is report it
+        logger.error("Log closed, version " + entry.version + " of row " + new String(Hex.encodeHex(entry.row)) + " not logged");
+        return;
+      }
+      queued.incrementAndGet();
+      try {
+        queue.put(entry);
+      } catch (InterruptedException e) {
+        queued.decrementAndGet();
+        Thread.currentThread().interrupt();
+        throw new AvroBaseException("Interrupted waiting for the log", e);
+      }
+    }
+
+    synchronized void flush() {
+      long target = queued.get();
+      try {
+        while (written < target) {
+          if (failure != null) {
+            throw new AvroBaseException("Failing to write the log, " + (target - written) + " entries not logged yet", failure);
+          }
+          if (!thread.isAlive()) {
+            throw new AvroBaseException("Log writer stopped, " + (target - written) + " entries not logged");
+          }
+          wait(FLUSH_INTERVAL);
+        }
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new AvroBaseException("Interrupted flushing the log", e);
+      }
+    }
+
+    void close() {
+      closed = true;
+      try {
+        thread.join();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+      synchronized (this) {
+        if (lost > 0) {
+          throw new AvroBaseException("Closed the log with " + lost + " entries not logged", failure);
+        }
+      }
+    }
+
+    @Override
+    public void run() {
+      List<Entry> batch = new ArrayList<Entry>();
+      try {
+        while (!closed || !queue.isEmpty()) {
+          Entry first = queue.poll(FLUSH_INTERVAL, TimeUnit.MILLISECONDS);
+          if (first == null) continue;
+          batch.add(first);
+          long deadline = System.currentTimeMillis() + FLUSH_INTERVAL;
+          long remaining;
+          while (batch.size() < LOG_BATCH_SIZE && !closed && (remaining = deadline - System.currentTimeMillis()) > 0) {
+            if (queue.drainTo(batch, LOG_BATCH_SIZE - batch.size()) == 0) {
+              Entry next = queue.poll(remaining, TimeUnit.MILLISECONDS);
+              if (next != null) batch.add(next);
+            }
+          }
+          queue.drainTo(batch, LOG_BATCH_SIZE - batch.size());
+          boolean logged = write(batch);
+          synchronized (this) {
+            if (logged) {
+              written += batch.size();
+            } else {
+              lost += batch.size();
+            }
+            notifyAll();
+          }
+          batch.clear();
+        }
+      } catch (InterruptedException e) {
+        int remaining = queue.size() + batch.size();
+        logger.error("Log writer interrupted, " + remaining + " entries not logged");
+        synchronized (this) {
+          lost += remaining;
+          notifyAll();
+        }
+      } finally {
+        closeConnection();
+      }
+    }
+
+    // Retry on a fresh connection with backoff until the batch is written, only giving up
+    // on it once the log is closed
+
+    private boolean write(List<Entry> batch) throws InterruptedException {
+      for (int attempt = 1; ; attempt++) {
         Lock readLock = lock.readLock();
         readLock.lock();
         try {
-          count.getAndAdd(new Insert(datasource, "INSERT INTO " + logTableName + " (row, schema_id, version, format, avro) VALUES (?,?,?,?,?)") {
-            public void setup(PreparedStatement ps) throws AvroBaseException, SQLException {
-              ps.setBytes(1, row);
-              ps.setInt(2, schemaId);
-              ps.setLong(3, version);
-              ps.setInt(4, format);
-              ps.setBytes(5, serialized);
+          if (connection == null) {
+            connection = datasource.getConnection();
+          }
+          int start = 0;
+          while (start < batch.size()) {
+            int end = start;
+            int bytes = 0;
+            while (end < batch.size() && (end == start || bytes < LOG_STATEMENT_BYTES)) {
+              bytes += batch.get(end++).avro.length;
             }
-          }.insert());
+            insert(batch.subList(start, end));
+            start = end;
+          }
+          count.getAndAdd(batch.size());
+          failure = null;
+          return true;
+        } catch (SQLException e) {
+          closeConnection();
+          if (attempt >= LOG_RETRIES) {
+            failure = e;
+            logger.error("Failed to log " + batch.size() + " entries to " + logTableName + " after " + attempt + " attempts", e);
+            if (closed) {
+              return false;
+            }
+          }
         } finally {
           readLock.unlock();
         }
+        Thread.sleep(Math.min(FLUSH_INTERVAL << Math.min(attempt, 16), MAX_BACKOFF));
       }
-    });
+    }
+
+    private void insert(List<Entry> entries) throws SQLException {
+      StringBuilder sb = new StringBuilder("INSERT INTO ");
+      sb.append(logTableName).append(" (row, schema_id, version, format, avro) VALUES ");
+      for (int i = 0; i < entries.size(); i++) {
+        if (i != 0) sb.append(",");
+        sb.append("(?,?,?,?,?)");
+      }
+      PreparedStatement ps = connection.prepareStatement(sb.toString());
+      try {
+        int i = 1;
+        for (Entry entry : entries) {
+          ps.setBytes(i++, entry.row);
+          ps.setInt(i++, entry.schemaId);
+          ps.setLong(i++, entry.version);
+          ps.setInt(i++, entry.format);
+          ps.setBytes(i++, entry.avro);
+        }
+        ps.executeUpdate();
+      } finally {
+        ps.close();
+      }
+    }
+
+    private void closeConnection() {
+      if (connection != null) {
+        try {
+          connection.close();
+        } catch (SQLException e) {
+          // closing anyway
+        }
+        connection = null;
+      }
+    }
   }
 
-  public Iterable<Row<T, K>> versions(final K row) {
-    Iterable<Row<T, K>> iterable = null;
-    Connection connection = null;
+  /**
+   * Every logged version of the row, newest first. Log tables whose filter rules out the row
+   * are skipped and the rest are queried in parallel when iteration starts. Values are only
+   * deserialized as the iterator reaches them. Deletes are not included.
+   *
+   * @param row
+   * @return
+   */
+  public Iterable<Row<T, K>> versions(final K row) throws AvroBaseException {
+    final byte[] key = keytx.toBytes(row);
+    final List<String> tableNames = candidateTables(key);
+    return new Iterable<Row<T, K>>() {
+      @Override
+      public Iterator<Row<T, K>> iterator() {
+        List<Future<List<Entry>>> futures = new ArrayList<Future<List<Entry>>>();
+        for (String tableName : tableNames) {
+          futures.add(es.submit(lookup(tableName, key, Long.MAX_VALUE, false)));
+        }
+        return new VersionIterator(row, futures);
+      }
+    };
+  }
+
+  /**
+   * The row as it was at a version, that is the newest logged version no newer than it. All
+   * candidate log tables are queried in parallel and the lookup returns as soon as one of
+   * them has exactly that version.
+   *
+   * @param row
+   * @param version
+   * @return the row or null if nothing that old was logged
+   */
+  public Row<T, K> getAsOf(final K row, long version) throws AvroBaseException {
+    byte[] key = keytx.toBytes(row);
+    CompletionService<List<Entry>> cs = new ExecutorCompletionService<List<Entry>>(es);
+    List<Future<List<Entry>>> futures = new ArrayList<Future<List<Entry>>>();
     try {
-      connection = datasource.getConnection();
-      DatabaseMetaData metaData = connection.getMetaData();
-      String name = mysqlTableName;
-      ResultSet tables = metaData.getTables(null, null, name + "_%", null);
-      final Pattern tablePattern = Pattern.compile(name + "_([0-9]+)");
-      List<String> tableNames = new ArrayList<String>();
-      while (tables.next()) {
-        String tableName = tables.getString(3);
-        Matcher matcher = tablePattern.matcher(tableName);
-        if (matcher.matches()) {
-          tableNames.add(tableName);
-        }
-      }
-      Collections.sort(tableNames, new Comparator<String>() {
-        @Override
-        public int compare(String s, String s1) {
-          Matcher matcher = tablePattern.matcher(s);
-          matcher.matches();
-          long t = Long.parseLong(matcher.group(1));
-          Matcher matcher1 = tablePattern.matcher(s1);
-          matcher1.matches();
-          long t1 = Long.parseLong(matcher1.group(1));
-          return (int)(t1 - t);
+      for (String tableName : candidateTables(key)) {
+        futures.add(cs.submit(lookup(tableName, key, version, true)));
+      }
+      Entry best = null;
+      for (int i = 0; i < futures.size(); i++) {
+        List<Entry> entries = cs.take().get();
+        if (entries.isEmpty()) continue;
+        Entry entry = entries.get(0);
+        if (best == null || entry.version > best.version) {
+          best = entry;
+          if (best.version == version) break;
         }
-      });
-      tableNames.add(0, name);
-      for (String tableName : tableNames) {
-        Iterable<Row<T, K>> query = new Query<Iterable<Row<T, K>>>(datasource, "SELECT schema_id, version, format, avro FROM " + tableName + " WHERE row = ? ORDER BY version DESC") {
+      }
+      return best == null ? null : toRow(row, best);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new AvroBaseException("Interrupted looking up versions", e);
+    } catch (ExecutionException e) {
+      throw new AvroBaseException("Failed to look up versions", e.getCause());
+    } finally {
+      for (Future<List<Entry>> future : futures) {
+        future.cancel(true);
+      }
+    }
+  }
+
+  // Newest logged versions of the row in one table, no newer than maxVersion
 
+  private Callable<List<Entry>> lookup(final String tableName, final byte[] key, final long maxVersion, final boolean first) {
+    return new Callable<List<Entry>>() {
+      @Override
+      public List<Entry> call() throws Exception {
+        return new Query<List<Entry>>(datasource, "SELECT schema_id, version, format, avro FROM " + tableName +
+            " WHERE row = ? AND version BETWEEN 0 AND ? ORDER BY version DESC" + (first ? " LIMIT 1" : "")) {
           @Override
           public void setup(PreparedStatement ps) throws AvroBaseException, SQLException {
-            ps.setBytes(1, keytx.toBytes(row));
+            ps.setBytes(1, key);
+            ps.setLong(2, maxVersion);
           }
 
           @Override
-          public Iterable<Row<T, K>> execute(final ResultSet rs) throws AvroBaseException, SQLException {
-            List<Row<T, K>> result = new ArrayList<Row<T, K>>();
-            while(rs.next()) {
-              int schemaId = rs.getInt(1);
-              long version = rs.getLong(2);
-              int format = rs.getInt(3);
-              byte[] bytes = rs.getBytes(4);
-              result.add(new Row<T, K>(readValue(bytes, getSchema(schemaId), AvroFormat.values()[format]), row, version));
+          public List<Entry> execute(ResultSet rs) throws AvroBaseException, SQLException {
+            List<Entry> entries = new ArrayList<Entry>();
+            while (rs.next()) {
+              entries.add(new Entry(key, rs.getInt(1), rs.getLong(2), rs.getInt(3), rs.getBytes(4)));
             }
-            return result;
+            return entries;
           }
         }.query();
-        if (iterable == null) {
-          iterable = query;
-        } else {
-          iterable = Iterables.concat(iterable, query);
+      }
+    };
+  }
+
+  private Row<T, K> toRow(K row, Entry entry) throws AvroBaseException {
+    Schema schema = getSchema(entry.schemaId);
+    if (schema == null) {
+      throw new AvroBaseException("Failed to find schema: " + entry.schemaId);
+    }
+    return new Row<T, K>(readValue(entry.avro, schema, AvroFormat.values()[entry.format]), row, entry.version);
+  }
+
+  /**
+   * Merges the version lists of each table, newest first. The table itself holds a copy of
+   * the latest logged version so repeated versions are only returned once.
+   */
+  private class VersionIterator implements Iterator<Row<T, K>> {
+    private final K row;
+    private final List<Future<List<Entry>>> futures;
+    private PriorityQueue<Iterator<Entry>> heads;
+    private final Map<Iterator<Entry>, Entry> current = new HashMap<Iterator<Entry>, Entry>();
+    private long last = Long.MAX_VALUE;
+    private Entry next;
+
+    VersionIterator(K row, List<Future<List<Entry>>> futures) {
+      this.row = row;
+      this.futures = futures;
+    }
+
+    @Override
+    public boolean hasNext() {
+      if (heads == null) {
+        start();
+      }
+      while (next == null && !heads.isEmpty()) {
+        Iterator<Entry> head = heads.poll();
+        Entry entry = current.remove(head);
+        advance(head);
+        if (entry.version != last) {
+          next = entry;
+          last = entry.version;
+        }
+      }
+      return next != null;
+    }
+
+    @Override
+    public Row<T, K> next() {
+      if (!hasNext()) {
+        throw new NoSuchElementException();
+      }
+      Entry entry = next;
+      next = null;
+      return toRow(row, entry);
+    }
+
+    @Override
+    public void remove() {
+      throw new UnsupportedOperationException();
+    }
+
+    private void start() {
+      heads = new PriorityQueue<Iterator<Entry>>(Math.max(1, futures.size()), new Comparator<Iterator<Entry>>() {
+        @Override
+        public int compare(Iterator<Entry> a, Iterator<Entry> b) {
+          long va = current.get(a).version;
+          long vb = current.get(b).version;
+          return va > vb ? -1 : va == vb ? 0 : 1;
+        }
+      });
+      try {
+        for (Future<List<Entry>> future : futures) {
+          advance(future.get().iterator());
+        }
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new AvroBaseException("Interrupted looking up versions", e);
+      } catch (ExecutionException e) {
+        throw new AvroBaseException("Failed to look up versions", e.getCause());
+      }
+    }
+
+    private void advance(Iterator<Entry> head) {
+      if (head.hasNext()) {
+        current.put(head, head.next());
+        heads.add(head);
+      }
+    }
+  }
+
+  // The table and the log tables that may contain the key, newest first
+
+  private List<String> candidateTables(byte[] key) throws AvroBaseException {
+    Connection connection = null;
+    try {
+      connection = datasource.getConnection();
+      List<String> tableNames = logTables(connection);
+      String current = logTableName;
+      List<String> unknown = new ArrayList<String>();
+      for (String tableName : tableNames) {
+        if (!tableName.equals(current) && !filters.containsKey(tableName)) {
+          unknown.add(tableName);
+        }
+      }
+      loadFilters(connection, unknown);
+      List<String> candidates = new ArrayList<String>();
+      candidates.add(mysqlTableName);
+      for (String tableName : tableNames) {
+        BloomFilter filter = tableName.equals(current) ? null : filters.get(tableName);
+        if (filter == null || filter.mightContain(key)) {
+          candidates.add(tableName);
+        }
+      }
+      return candidates;
+    } catch (SQLException e) {
+      throw new AvroBaseException("Failed to list log tables", e);
+    } finally {
+      if (connection != null) {
+        try {
+          connection.close();
+        } catch (SQLException e) {
+          // closing anyway
         }
       }
+    }
+  }
 
-    } catch (Exception e) {
-      e.printStackTrace();
-      throw new AvroBaseException(e);
+  // Log tables, newest first
+
+  private List<String> logTables(Connection connection) throws SQLException {
+    DatabaseMetaData metaData = connection.getMetaData();
+    String name = mysqlTableName;
+    ResultSet tables = metaData.getTables(null, null, name + "_%", null);
+    final Pattern tablePattern = Pattern.compile(name + "_([0-9]+)");
+    List<String> tableNames = new ArrayList<String>();
+    while (tables.next()) {
+      String tableName = tables.getString(3);
+      Matcher matcher = tablePattern.matcher(tableName);
+      if (matcher.matches()) {
+        tableNames.add(tableName);
+      }
+    }
+    tables.close();
+    Collections.sort(tableNames, new Comparator<String>() {
+      @Override
+      public int compare(String s, String s1) {
+        Matcher matcher = tablePattern.matcher(s);
+        matcher.matches();
+        long t = Long.parseLong(matcher.group(1));
+        Matcher matcher1 = tablePattern.matcher(s1);
+        matcher1.matches();
+        long t1 = Long.parseLong(matcher1.group(1));
+        return (int)(t1 - t);
+      }
+    });
+    return tableNames;
+  }
+
+  private void loadFilters(Connection connection, List<String> tableNames) throws SQLException {
+    if (tableNames.isEmpty()) return;
+    StringBuilder sb = new StringBuilder("SELECT table_name, bloom FROM ");
+    sb.append(filterTableName).append(" WHERE table_name IN (");
+    for (int i = 0; i < tableNames.size(); i++) {
+      if (i != 0) sb.append(",");
+      sb.append("?");
+    }
+    sb.append(")");
+    PreparedStatement ps = connection.prepareStatement(sb.toString());
+    try {
+      for (int i = 0; i < tableNames.size(); i++) {
+        ps.setString(i + 1, tableNames.get(i));
+      }
+      ResultSet rs = ps.executeQuery();
+      while (rs.next()) {
+        filters.putIfAbsent(rs.getString(1), BloomFilter.fromBytes(rs.getBytes(2)));
+      }
+      rs.close();
     } finally {
+      ps.close();
+    }
+  }
+
+  // Build filters for the finished log tables that don't have one. If a roll happens while
+  // this runs, its tables are picked up by the next one. Tables being archived are skipped
+  // and a filter is only stored if its table is still there, so an archive that drops the
+  // table while its filter is built doesn't leave the filter behind.
+
+  private void buildFilters() {
+    if (!filtering.compareAndSet(false, true)) return;
+    Connection connection = null;
+    try {
+      connection = datasource.getConnection();
+      List<String> tableNames = logTables(connection);
+      String current = logTableName;
+      List<String> unknown = new ArrayList<String>();
+      for (String tableName : tableNames) {
+        if (!tableName.equals(current) && !filters.containsKey(tableName)) {
+          unknown.add(tableName);
+        }
+      }
+      synchronized (filters) {
+        unknown.removeAll(archiving);
+      }
+      loadFilters(connection, unknown);
+      for (String tableName : unknown) {
+        if (!filters.containsKey(tableName)) {
+          buildFilter(connection, tableName);
+        }
+      }
+    } catch (SQLException e) {
+      logger.warn("Failed to build log table filters", e);
+    } finally {
+      filtering.set(false);
       if (connection != null) {
         try {
           connection.close();
@@ -179,41 +715,103 @@ public class LoggingMysqlAB<T extends SpecificRecord, K> extends MysqlAB<T, K> {
         }
       }
     }
-    return iterable;
   }
 
+  private void buildFilter(Connection connection, String tableName) throws SQLException {
+    Statement statement = connection.createStatement();
+    BloomFilter filter;
+    try {
+      ResultSet rs = statement.executeQuery("SELECT COUNT(DISTINCT row) FROM " + tableName);
+      rs.next();
+      filter = new BloomFilter(rs.getLong(1), FILTER_FALSE_POSITIVES);
+      rs.close();
+    } finally {
+      statement.close();
+    }
+    // Stream the keys rather than buffering the whole table
+    statement = connection.createStatement(ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
+    try {
+      statement.setFetchSize(Integer.MIN_VALUE);
+      ResultSet rs = statement.executeQuery("SELECT row FROM " + tableName);
+      while (rs.next()) {
+        filter.add(rs.getBytes(1));
+      }
+      rs.close();
+    } finally {
+      statement.close();
+    }
+    // Archives claim their tables under the same lock before dropping them
+    synchronized (filters) {
+      if (archiving.contains(tableName) || !exists(connection, tableName)) return;
+      PreparedStatement ps = connection.prepareStatement("INSERT INTO " + filterTableName + " (table_name, bloom) VALUES (?, ?) ON DUPLICATE KEY UPDATE bloom=values(bloom)");
+      try {
+        ps.setString(1, tableName);
+        ps.setBytes(2, filter.toBytes());
+        ps.executeUpdate();
+      } finally {
+        ps.close();
+      }
+      filters.put(tableName, filter);
+    }
+  }
+
+  private boolean exists(Connection connection, String tableName) throws SQLException {
+    ResultSet tables = connection.getMetaData().getTables(null, null, tableName, null);
+    try {
+      return tables.next();
+    } finally {
+      tables.close();
+    }
+  }
+
+  private void dropFilter(Connection connection, String tableName) throws SQLException {
+    filters.remove(tableName);
+    PreparedStatement ps = connection.prepareStatement("DELETE FROM " + filterTableName + " WHERE table_name = ?");
+    try {
+      ps.setString(1, tableName);
+      ps.executeUpdate();
+    } finally {
+      ps.close();
+    }
+  }
+
+  /**
+   * Keep only this many of the newest versions of each row from each log table when
+   * archiving. 0, the default, keeps them all.
+   *
+   * @param archiveVersions
+   */
+  public void setArchiveVersions(int archiveVersions) {
+    if (archiveVersions < 0) {
+      throw new IllegalArgumentException("archiveVersions must not be negative: " + archiveVersions);
+    }
+    this.archiveVersions = archiveVersions;
+  }
+
+  /**
+   * Roll and write the previous log tables to the stream, oldest first, in the exportData row
+   * format. The tables are streamed from the database and each one is dropped as soon as it
+   * has been written and the stream flushed.
+   *
+   * @param dos closed when done
+   */
   public void roll(DataOutputStream dos) throws SQLException, IOException {
     Connection connection = null;
     try {
       connection = datasource.getConnection();
-      long roll = roll();
-      DatabaseMetaData metaData = connection.getMetaData();
-      ResultSet tables = metaData.getTables(null, null, mysqlTableName + "_%", null);
-      Pattern p = Pattern.compile(mysqlTableName + "_([0-9]+)");
-      while (tables.next()) {
-        String tableName = tables.getString(3);
-        String sql = "SELECT row, schema_id, version, format, avro FROM " + tableName + " ORDER BY row, version DESC";
-        Matcher matcher = p.matcher(tableName);
-        if (matcher.matches()) {
-          if (Long.parseLong(matcher.group(1)) != roll) {
-            PreparedStatement ps = connection.prepareStatement(sql);
-            ResultSet rs = ps.executeQuery();
-            while (rs.next()) {
-              byte[] row = rs.getBytes(1);
-              int schemaId = rs.getInt(2);
-              long version = rs.getLong(3);
-              int format = rs.getInt(4);
-              byte[] avro = rs.getBytes(5);
-              dos.writeBoolean(true);
-              writeRow(dos, row, schemaId, version, format, avro);
-            }
-            connection.prepareStatement("DROP TABLE " + tableName).executeUpdate();
-          }
+      long roll = roll(false);
+      List<String> tableNames = claim(finishedTables(connection, roll));
+      try {
+        for (String tableName : tableNames) {
+          archive(connection, tableName, dos);
+          dos.flush();
+          drop(connection, tableName);
         }
+      } finally {
+        release(tableNames);
       }
       dos.writeBoolean(false);
       dos.close();
-      connection.close();
     } finally {
       if (connection != null) {
         try {
@@ -225,4 +823,124 @@ public class LoggingMysqlAB<T extends SpecificRecord, K> extends MysqlAB<T, K> {
     }
   }
 
+  /**
+   * Roll and archive each previous log table to its own gzipped file in the directory, named
+   * after the table and in the same format as roll(dos). A file is only moved into place once
+   * it is complete and its table is dropped after that, so a failed roll can be run again and
+   * picks up with the first table that wasn't archived.
+   *
+   * @param dir
+   * @return number of tables archived
+   */
+  public int roll(File dir) throws SQLException, IOException {
+    if (!dir.isDirectory() && !dir.mkdirs()) {
+      throw new IOException("Could not create archive directory: " + dir);
+    }
+    Connection connection = null;
+    try {
+      connection = datasource.getConnection();
+      long roll = roll(false);
+      List<String> tableNames = claim(finishedTables(connection, roll));
+      int archived = 0;
+      try {
+        for (String tableName : tableNames) {
+          File file = new File(dir, tableName + ".gz");
+          if (!file.exists()) {
+            File tmp = new File(dir, tableName + ".gz.tmp");
+            DataOutputStream dos = new DataOutputStream(new BufferedOutputStream(new GZIPOutputStream(new FileOutputStream(tmp), ARCHIVE_BUFFER), ARCHIVE_BUFFER));
+            try {
+              archive(connection, tableName, dos);
+              dos.writeBoolean(false);
+            } finally {
+              dos.close();
+            }
+            if (!tmp.renameTo(file)) {
+              throw new IOException("Could not move " + tmp + " to " + file);
+            }
+          }
+          drop(connection, tableName);
+          archived++;
+        }
+      } finally {
+        release(tableNames);
+      }
+      return archived;
+    } finally {
+      if (connection != null) {
+        try {
+          connection.close();
+        } catch (SQLException e) {
+          // closing anyway
+        }
+      }
+    }
+  }
+
+  // Log tables other than the current one, oldest first
+
+  private List<String> finishedTables(Connection connection, long roll) throws SQLException {
+    List<String> tableNames = logTables(connection);
+    tableNames.remove(mysqlTableName + "_" + roll);
+    Collections.reverse(tableNames);
+    return tableNames;
+  }
+
+  // Keep buildFilters from storing filters for tables while they are archived
+
+  private List<String> claim(List<String> tableNames) {
+    synchronized (filters) {
+      archiving.addAll(tableNames);
+    }
+    return tableNames;
+  }
+
+  private void release(List<String> tableNames) {
+    synchronized (filters) {
+      archiving.removeAll(tableNames);
+    }
+  }
+
+  // Stream a log table rather than letting the driver buffer all of it
+
+  private void archive(Connection connection, String tableName, DataOutputStream dos) throws SQLException, IOException {
+    Statement statement = connection.createStatement(ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
+    try {
+      statement.setFetchSize(Integer.MIN_VALUE);
+      ResultSet rs = statement.executeQuery("SELECT row, schema_id, version, format, avro FROM " + tableName + " ORDER BY row, version DESC");
+      try {
+        byte[] last = null;
+        int versions = 0;
+        while (rs.next()) {
+          byte[] row = rs.getBytes(1);
+          if (Arrays.equals(row, last)) {
+            if (archiveVersions > 0 && ++versions >= archiveVersions) continue;
+          } else {
+            last = row;
+            versions = 0;
+          }
+          int schemaId = rs.getInt(2);
+          long version = rs.getLong(3);
+          int format = rs.getInt(4);
+          byte[] avro = rs.getBytes(5);
+          dos.writeBoolean(true);
+          writeRow(dos, row, schemaId, version, format, avro);
+        }
+      } finally {
+        rs.close();
+      }
+    } finally {
+      statement.close();
+    }
+  }
+
+  private void drop(Connection connection, String tableName) throws SQLException {
+    Statement statement = connection.createStatement();
+    try {
+      statement.executeUpdate("DROP TABLE " + tableName);
+    } finally {
+      statement.close();
+    }
+    dropFilter(connection, tableName);
+  }
+
 }
@@ -6,6 +6,10 @@ import avrobase.Mutator;
 import avrobase.Row;
 import avrobase.mysql.LongBytesKeyStrategy;
 import avrobase.mysql.MysqlAB;
+import avrobase.mysql.MysqlBatchWriter;
+import avrobase.mysql.MysqlExporter;
+import avrobase.mysql.MysqlImporter;
+import avrobase.mysql.MysqlScanner;
 import bagcheck.User;
 import com.google.common.base.Charsets;
 import com.google.common.primitives.Ints;
@@ -15,12 +19,29 @@ import org.apache.avro.util.Utf8;
 import org.junit.BeforeClass;
 import org.junit.Test;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
 import java.net.UnknownHostException;
 import java.nio.ByteBuffer;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
 
 import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertFalse;
+import static junit.framework.Assert.assertTrue;
 
 public class MysqlABTest {
 
@@ -131,6 +152,187 @@ public class MysqlABTest {
     assertEquals(0, total);
   }
 
+  @Test
+  public void testScanPages() {
+    MysqlAB<User, byte[]> userRAB = getAB();
+    userRAB.setScanPageSize(7);
+    userRAB.setScanBufferBytes(1024);
+    User user = getUser();
+    for (int i = 0; i < 1000; i++) {
+      userRAB.put(Ints.toByteArray(i), user);
+    }
+    int total = 0;
+    int last = -1;
+    for (Row<User, byte[]> userRow : userRAB.scan(Ints.toByteArray(100), Ints.toByteArray(900))) {
+      int current = Ints.fromByteArray(userRow.row);
+      assertTrue(current > last);
+      last = current;
+      total++;
+    }
+    assertEquals(800, total);
+    // Abandon a scan part way through
+    MysqlScanner<User, byte[]> scanner = userRAB.scanner(null, null);
+    for (int i = 0; i < 10; i++) {
+      assertEquals(i, Ints.fromByteArray(scanner.next().row));
+    }
+    scanner.close();
+    assertFalse(scanner.hasNext());
+    for (int i = 0; i < 1000; i++) {
+      userRAB.delete(Ints.toByteArray(i));
+    }
+  }
+
+  @Test
+  public void testBatchWriter() throws InterruptedException {
+    final MysqlAB<User, byte[]> userRAB = getAB();
+    final MysqlBatchWriter<User, byte[]> writer = new MysqlBatchWriter<User, byte[]>(userRAB);
+    final User user = getUser();
+    // Concurrent writers share commits
+    List<Future<?>> futures = new ArrayList<Future<?>>();
+    for (int t = 0; t < 10; t++) {
+      final int offset = t * 100;
+      futures.add(es.submit(new Runnable() {
+        @Override
+        public void run() {
+          for (int i = 0; i < 100; i++) {
+            writer.put(Ints.toByteArray(offset + i), user);
+          }
+        }
+      }));
+    }
+    for (Future<?> future : futures) {
+      try {
+        future.get();
+      } catch (ExecutionException e) {
+        throw new AssertionError(e.getCause());
+      }
+    }
+    writer.close();
+    for (int i = 0; i < 1000; i++) {
+      assertEquals(user, userRAB.get(Ints.toByteArray(i)).value);
+    }
+    // Repeated writes to a key are coalesced behind the writer
+    MysqlBatchWriter<User, byte[]> behind = new MysqlBatchWriter<User, byte[]>(userRAB, true, 100);
+    User last = getUser();
+    for (int i = 0; i < 50; i++) {
+      last = getUser();
+      last.firstName = $("Sam" + i);
+      behind.put(Ints.toByteArray(0), last);
+    }
+    assertTrue(behind.flush().isEmpty());
+    assertEquals(last, userRAB.get(Ints.toByteArray(0)).value);
+    behind.close();
+    for (int i = 0; i < 1000; i++) {
+      userRAB.delete(Ints.toByteArray(i));
+    }
+  }
+
+  @Test
+  public void testImport() throws IOException {
+    MysqlAB<User, byte[]> userRAB = getAB();
+    User user = getUser();
+    for (int i = 0; i < 1000; i++) {
+      userRAB.put(Ints.toByteArray(i), user);
+    }
+    ByteArrayOutputStream baos = new ByteArrayOutputStream();
+    userRAB.exportData(new DataOutputStream(baos));
+    MysqlAB<User, byte[]> copy = new MysqlAB<User, byte[]>(es, dataSource, "user", "copy", "avro_schemas", User.SCHEMA$, AvroFormat.BINARY, new LongBytesKeyStrategy());
+    MysqlImporter<User, byte[]> importer = new MysqlImporter<User, byte[]>(copy);
+    importer.setBatchRows(64);
+    final AtomicLong reported = new AtomicLong();
+    importer.setProgress(new MysqlImporter.Progress() {
+      @Override
+      public void progress(long rows, byte[] lastRow) {
+        assertTrue(rows > reported.get());
+        reported.set(rows);
+      }
+    });
+    assertEquals(1000, importer.importData(new DataInputStream(new ByteArrayInputStream(baos.toByteArray()))));
+    assertEquals(1000, reported.get());
+    assertEquals(user, copy.get(Ints.toByteArray(999)).value);
+    // Resuming skips what was already committed
+    copy.delete(Ints.toByteArray(999));
+    MysqlImporter<User, byte[]> resume = new MysqlImporter<User, byte[]>(copy);
+    resume.setResumeAfter(Ints.toByteArray(899));
+    assertEquals(100, resume.importData(new DataInputStream(new ByteArrayInputStream(baos.toByteArray()))));
+    assertEquals(user, copy.get(Ints.toByteArray(999)).value);
+    assertEquals(user, copy.get(Ints.toByteArray(0)).value);
+    for (int i = 0; i < 1000; i++) {
+      userRAB.delete(Ints.toByteArray(i));
+      copy.delete(Ints.toByteArray(i));
+    }
+  }
+
+  @Test
+  public void testImportRestoresKeyChecks() throws IOException, SQLException {
+    MysqlAB<User, byte[]> userRAB = getAB();
+    User user = getUser();
+    for (int i = 0; i < 100; i++) {
+      userRAB.put(Ints.toByteArray(i), user);
+    }
+    ByteArrayOutputStream baos = new ByteArrayOutputStream();
+    userRAB.exportData(new DataOutputStream(baos));
+
+    // One pooled connection, so the importer's connection is the one checked afterwards
+    final BoneCPConfig config = new BoneCPConfig();
+    config.setJdbcUrl("jdbc:mysql://localhost:3306/avrobasetest");
+    config.setMinConnectionsPerPartition(1);
+    config.setMaxConnectionsPerPartition(1);
+    config.setPartitionCount(1);
+    config.setUsername("bagcheck");
+    config.setPassword("");
+    BoneCPDataSource single = new BoneCPDataSource(config);
+    try {
+      MysqlAB<User, byte[]> copy = new MysqlAB<User, byte[]>(es, single, "user", "copy", "avro_schemas", User.SCHEMA$, AvroFormat.BINARY, new LongBytesKeyStrategy());
+      MysqlImporter<User, byte[]> importer = new MysqlImporter<User, byte[]>(copy);
+      importer.setConnections(1);
+      importer.setDisableKeys(true);
+      assertEquals(100, importer.importData(new DataInputStream(new ByteArrayInputStream(baos.toByteArray()))));
+      Connection c = single.getConnection();
+      try {
+        Statement s = c.createStatement();
+        ResultSet rs = s.executeQuery("SELECT @@unique_checks, @@foreign_key_checks");
+        assertTrue(rs.next());
+        assertEquals(1, rs.getInt(1));
+        assertEquals(1, rs.getInt(2));
+        s.close();
+      } finally {
+        c.close();
+      }
+      for (int i = 0; i < 100; i++) {
+        userRAB.delete(Ints.toByteArray(i));
+        copy.delete(Ints.toByteArray(i));
+      }
+    } finally {
+      single.close();
+    }
+  }
+
+  @Test
+  public void testParallelExport() throws IOException {
+    MysqlAB<User, byte[]> userRAB = getAB();
+    User user = getUser();
+    for (int i = 0; i < 1000; i++) {
+      userRAB.put(Ints.toByteArray(i), user);
+    }
+    File dir = File.createTempFile("export", "");
+    dir.delete();
+    List<MysqlExporter.Part> parts = new MysqlExporter<User, byte[]>(userRAB).export(dir, 8, 4);
+    assertEquals(parts.size(), MysqlExporter.readManifest(dir).size());
+    long total = 0;
+    for (MysqlExporter.Part part : parts) {
+      total += part.rows;
+    }
+    assertEquals(1000, total);
+    MysqlAB<User, byte[]> copy = new MysqlAB<User, byte[]>(es, dataSource, "user", "copy", "avro_schemas", User.SCHEMA$, AvroFormat.BINARY, new LongBytesKeyStrategy());
+    assertEquals(1000, new MysqlExporter<User, byte[]>(copy).importParts(dir, 4));
+    assertEquals(user, copy.get(Ints.toByteArray(500)).value);
+    for (int i = 0; i < 1000; i++) {
+      userRAB.delete(Ints.toByteArray(i));
+      copy.delete(Ints.toByteArray(i));
+    }
+  }
+
   private User getUser() {
     User user = new User();
     user.email = $("spullara@yahoo.com");
@@ -0,0 +1,80 @@
+package avrobase.mysql;
+
+import org.junit.Test;
+
+import javax.sql.DataSource;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Test replica selection without a database.
+ * <p/>
+ * User: sam
+ * Date: 7/7/11
+ * Time: 10:30 AM
+ */
+public class ReplicaPoolTest {
+  private static DataSource ds() {
+    return (DataSource) Proxy.newProxyInstance(DataSource.class.getClassLoader(), new Class[]{DataSource.class}, new InvocationHandler() {
+      @Override
+      public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+        if (method.getName().equals("equals")) return proxy == args[0];
+        if (method.getName().equals("hashCode")) return System.identityHashCode(proxy);
+        throw new UnsupportedOperationException();
+      }
+    });
+  }
+
+  @Test
+  public void testFailover() {
+    DataSource a = ds();
+    DataSource b = ds();
+    ReplicaPool pool = new ReplicaPool(Arrays.asList(a, b));
+    pool.setRetryMillis(60000);
+    ReplicaPool.Lease lease = pool.acquire();
+    DataSource failed = lease.getDataSource();
+    lease.release(true);
+    for (int i = 0; i < 100; i++) {
+      lease = pool.acquire();
+      assertSame(failed == a ? b : a, lease.getDataSource());
+      lease.release(false);
+    }
+    pool.acquire().release(true);
+    assertNull(pool.acquire());
+  }
+
+  @Test
+  public void testLoadAware() {
+    DataSource a = ds();
+    DataSource b = ds();
+    ReplicaPool pool = new ReplicaPool(Arrays.asList(a, b));
+    // Pin a lot of reads on whichever replica comes up first
+    List<ReplicaPool.Lease> busy = new ArrayList<ReplicaPool.Lease>();
+    ReplicaPool.Lease first = pool.acquire();
+    busy.add(first);
+    while (busy.size() < 50) {
+      ReplicaPool.Lease lease = pool.acquire();
+      if (lease.getDataSource() == first.getDataSource()) {
+        busy.add(lease);
+      } else {
+        lease.release(false);
+      }
+    }
+    int idle = 0;
+    for (int i = 0; i < 1000; i++) {
+      ReplicaPool.Lease lease = pool.acquire();
+      if (lease.getDataSource() != first.getDataSource()) idle++;
+      lease.release(false);
+    }
+    // Only picking the busy one twice in a row sends a read to it
+    assertTrue("Idle replica chosen " + idle + " times", idle > 650);
+  }
+}
@@ -0,0 +1,122 @@
+package avrobase.mysql.experimental;
+
+import com.google.common.base.Function;
+import org.apache.avro.specific.SpecificRecord;
+import org.junit.Test;
+
+import java.sql.Types;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+
+/**
+ * Composite query planning without a database.
+ * <p/>
+ * User: sam
+ * Date: 7/14/11
+ * Time: 11:20 AM
+ */
+public class CompositePlannerTest {
+  private static final IndexColumn<SpecificRecord, Long> A = column("a");
+  private static final IndexColumn<SpecificRecord, Long> B = column("b");
+  private static final IndexColumn<SpecificRecord, Long> C = column("c");
+
+  private final CompositePlanner planner = new CompositePlanner("t", new HashSet<String>(Arrays.asList("a", "b", "c")));
+
+  @Test
+  public void testAnd() {
+    CompositeQuery query = CompositeQuery.and(new IndexQuery<Long>(A, 1L), IndexQuery.gt(B, 2L));
+    assertEquals("SELECT id, id, schema_id, version, avro FROM t WHERE (a = ? AND b > ?) ORDER BY id ASC",
+        planner.plan(query, false, new CompositePlanner.IndexStats()));
+  }
+
+  @Test
+  public void testNestedOr() {
+    CompositeQuery query = CompositeQuery.or(new IndexQuery<Long>(A, 1L),
+        CompositeQuery.and(new IndexQuery<Long>(B, 2L), IndexQuery.between(C, 3L, 4L)))
+        .descending().limit(10).after(IndexCursor.continuation(42, 42L));
+    assertEquals("SELECT id, id FROM t WHERE (a = ? OR (b = ? AND c BETWEEN ? AND ?)) AND id < ? ORDER BY id DESC LIMIT ?",
+        planner.plan(query, true, stats()));
+    List<IndexCursor.Param> params = planner.params(query);
+    assertEquals(6, params.size());
+    Object[] values = new Object[]{1L, 2L, 3L, 4L, 42L, 10};
+    int[] types = new int[]{Types.BIGINT, Types.BIGINT, Types.BIGINT, Types.BIGINT, Types.BIGINT, Types.INTEGER};
+    for (int i = 0; i < values.length; i++) {
+      assertEquals(values[i], params.get(i).value);
+      assertEquals(types[i], params.get(i).sqlType);
+    }
+  }
+
+  @Test
+  public void testChooseIndex() {
+    CompositePlanner.IndexStats stats = stats();
+    // The longer equality prefix reads fewer rows
+    assertEquals("idx_ab", planner.chooseIndex(CompositeQuery.and(new IndexQuery<Long>(A, 1L), new IndexQuery<Long>(B, 2L)).getTerms(), stats));
+    // A range on the next column still beats the shorter index
+    assertEquals("idx_ab", planner.chooseIndex(CompositeQuery.and(new IndexQuery<Long>(A, 1L), IndexQuery.gt(B, 2L)).getTerms(), stats));
+    // A unique index matched on every column reads one row
+    assertEquals("idx_c", planner.chooseIndex(CompositeQuery.and(new IndexQuery<Long>(A, 1L), new IndexQuery<Long>(C, 2L)).getTerms(), stats));
+    // No index starts with b
+    assertNull(planner.chooseIndex(CompositeQuery.and(IndexQuery.gt(B, 2L)).getTerms(), stats));
+    CompositeQuery query = CompositeQuery.and(new IndexQuery<Long>(A, 1L), new IndexQuery<Long>(B, 2L));
+    assertEquals("SELECT id, id FROM t USE INDEX (idx_ab) WHERE (a = ? AND b = ?) ORDER BY id ASC", planner.plan(query, true, stats));
+    // An OR can't use a single index
+    query = CompositeQuery.or(new IndexQuery<Long>(A, 1L), new IndexQuery<Long>(C, 2L));
+    assertEquals("SELECT id, id FROM t WHERE (a = ? OR c = ?) ORDER BY id ASC", planner.plan(query, true, stats));
+  }
+
+  @Test
+  public void testShape() {
+    String shape = planner.shape(CompositeQuery.and(new IndexQuery<Long>(A, 1L), IndexQuery.gt(B, 2L)), false);
+    assertEquals(shape, planner.shape(CompositeQuery.and(new IndexQuery<Long>(A, 5L), IndexQuery.gt(B, 6L)), false));
+    assertFalse(shape.equals(planner.shape(CompositeQuery.and(new IndexQuery<Long>(A, 1L), IndexQuery.ge(B, 2L)), false)));
+    assertFalse(shape.equals(planner.shape(CompositeQuery.and(new IndexQuery<Long>(A, 1L), IndexQuery.gt(B, 2L)), true)));
+    assertFalse(shape.equals(planner.shape(CompositeQuery.and(new IndexQuery<Long>(A, 1L), IndexQuery.gt(B, 2L)).limit(5), false)));
+    assertFalse(shape.equals(planner.shape(CompositeQuery.and(new IndexQuery<Long>(A, 1L), CompositeQuery.and(IndexQuery.gt(B, 2L))), false)));
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testTermLimit() {
+    planner.shape(CompositeQuery.and(new IndexQuery<Long>(A, 1L).limit(5)), false);
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testTermDescending() {
+    planner.shape(CompositeQuery.or(new IndexQuery<Long>(A, 1L), CompositeQuery.and(new IndexQuery<Long>(B, 1L)).descending()), false);
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testUnknownColumn() {
+    planner.plan(CompositeQuery.and(new IndexQuery<Long>(column("d"), 1L)), false, new CompositePlanner.IndexStats());
+  }
+
+  // 1000 rows with indexes on (a), (a, b) and a unique one on (c)
+
+  private static CompositePlanner.IndexStats stats() {
+    CompositePlanner.IndexStats stats = new CompositePlanner.IndexStats();
+    stats.rows = 1000;
+    stats.add("idx_a", false, "a", 10);
+    stats.add("idx_ab", false, "a", 10);
+    stats.add("idx_ab", false, "b", 500);
+    stats.add("idx_c", true, "c", 1000);
+    return stats;
+  }
+
+  private static IndexColumn<SpecificRecord, Long> column(final String name) {
+    return new ReferenceColumn<SpecificRecord>() {
+      @Override
+      public String getColumnName() {
+        return name;
+      }
+
+      @Override
+      public Function<SpecificRecord, Long> valueFunction() {
+        return null;
+      }
+    };
+  }
+}
@@ -0,0 +1,54 @@
+package avrobase.mysql.experimental;
+
+import org.junit.Test;
+
+import java.math.BigDecimal;
+import java.sql.Date;
+import java.sql.Timestamp;
+import java.sql.Types;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Round trip continuation tokens for the column types an index can be ordered by.
+ * <p/>
+ * User: sam
+ * Date: 7/12/11
+ * Time: 4:05 PM
+ */
+public class IndexCursorTest {
+  @Test
+  public void testBinary() {
+    byte[] value = new byte[]{0, -1, 42, ':', 127};
+    String token = IndexCursor.continuation(7, value);
+    assertEquals(7, IndexCursor.continuationId(token));
+    assertArrayEquals(value, (byte[]) IndexCursor.continuationValue(token, Types.VARBINARY));
+  }
+
+  @Test
+  public void testTemporal() {
+    Timestamp timestamp = Timestamp.valueOf("2011-07-12 16:05:00.123");
+    assertEquals(timestamp, IndexCursor.continuationValue(IndexCursor.continuation(1, timestamp), Types.TIMESTAMP));
+    Date date = Date.valueOf("2011-07-12");
+    assertEquals(date, IndexCursor.continuationValue(IndexCursor.continuation(1, date), Types.DATE));
+  }
+
+  @Test
+  public void testDecimal() {
+    BigDecimal decimal = new BigDecimal("-12345.678900");
+    assertEquals(decimal, IndexCursor.continuationValue(IndexCursor.continuation(1, decimal), Types.DECIMAL));
+  }
+
+  @Test
+  public void testText() {
+    assertEquals("a:bé", IndexCursor.continuationValue(IndexCursor.continuation(-3, "a:bé"), Types.VARCHAR));
+    assertEquals(Long.MAX_VALUE, IndexCursor.continuationValue(IndexCursor.continuation(-3, Long.MAX_VALUE), Types.BIGINT));
+    assertEquals(-3, IndexCursor.continuationId(IndexCursor.continuation(-3, "x")));
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testInvalid() {
+    IndexCursor.continuationValue("12:zz", Types.VARCHAR);
+  }
+}
@@ -0,0 +1,38 @@
+package avrobase.mysql.logging;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Test the log table row filters.
+ * <p/>
+ * User: sam
+ * Date: 7/5/11
+ * Time: 11:05 AM
+ */
+public class BloomFilterTest {
+  @Test
+  public void testFilter() {
+    BloomFilter filter = new BloomFilter(1000, 0.01);
+    for (int i = 0; i < 1000; i++) {
+      filter.add(("row" + i).getBytes());
+    }
+    filter = BloomFilter.fromBytes(filter.toBytes());
+    for (int i = 0; i < 1000; i++) {
+      assertTrue(filter.mightContain(("row" + i).getBytes()));
+    }
+    int falsePositives = 0;
+    for (int i = 1000; i < 11000; i++) {
+      if (filter.mightContain(("row" + i).getBytes())) falsePositives++;
+    }
+    assertTrue("False positives: " + falsePositives, falsePositives < 300);
+  }
+
+  @Test
+  public void testEmpty() {
+    BloomFilter filter = new BloomFilter(0, 0.01);
+    assertFalse(filter.mightContain("row".getBytes()));
+  }
+}
@@ -0,0 +1,411 @@
+package avrobase.mysql.logging;
+
+import avrobase.AvroBase;
+import avrobase.AvroBaseException;
+import avrobase.AvroFormat;
+import avrobase.mysql.LongBytesKeyStrategy;
+import bagcheck.User;
+import com.google.common.primitives.Ints;
+import com.jolbox.bonecp.BoneCPConfig;
+import com.jolbox.bonecp.BoneCPDataSource;
+import org.apache.avro.util.Utf8;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import javax.sql.DataSource;
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.nio.ByteBuffer;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.GZIPInputStream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Test the log writer and log archival against a local database. Statements that write to
+ * log tables go through a data source that counts them and can be made to fail.
+ * <p/>
+ * User: sam
+ * Date: 7/15/11
+ * Time: 2:40 PM
+ */
+public class LoggingMysqlABTest {
+  private static final Pattern LOG_INSERT = Pattern.compile("INSERT INTO \\w+_[0-9]+ .*");
+  private static final Pattern LOG_TABLE = Pattern.compile(".*_([0-9]+)");
+
+  private static final ExecutorService es = Executors.newCachedThreadPool();
+  private static final AtomicBoolean failing = new AtomicBoolean();
+  private static final AtomicInteger statements = new AtomicInteger();
+  private static final AtomicInteger largest = new AtomicInteger();
+  private static BoneCPDataSource dataSource;
+
+  @BeforeClass
+  public static void setup() {
+    try {
+      Class.forName("com.mysql.jdbc.Driver");
+    } catch (ClassNotFoundException e) {
+      throw new AssertionError("Could not find JDBC driver: " + e);
+    }
+
+    final BoneCPConfig config = new BoneCPConfig();
+    config.setJdbcUrl("jdbc:mysql://localhost:3306/avrobasetest");
+    config.setMaxConnectionsPerPartition(50);
+    config.setPartitionCount(4);
+    config.setLazyInit(true);
+    config.setUsername("bagcheck");
+    config.setPassword("");
+    dataSource = new BoneCPDataSource(config);
+  }
+
+  @Test
+  public void testBatching() throws SQLException {
+    LoggingMysqlAB<User, byte[]> ab = getAB("batching");
+    try {
+      statements.set(0);
+      largest.set(0);
+      User user = getUser();
+      for (int i = 0; i < 1200; i++) {
+        put(ab, i, user);
+      }
+      ab.flush();
+      assertEquals(1200, ab.count());
+      assertEquals(1200, rows(current(ab)));
+      // Entries are written several to a statement, never more than a batch
+      assertTrue("Statements: " + statements.get(), statements.get() < 1200);
+      assertTrue("Largest: " + largest.get(), largest.get() > 1 && largest.get() <= LoggingMysqlAB.LOG_BATCH_SIZE);
+    } finally {
+      ab.close();
+    }
+  }
+
+  @Test
+  public void testRetry() throws SQLException, InterruptedException {
+    LoggingMysqlAB<User, byte[]> ab = getAB("retry");
+    try {
+      User user = getUser();
+      failing.set(true);
+      try {
+        for (int i = 0; i < 10; i++) {
+          put(ab, i, user);
+        }
+        try {
+          ab.flush();
+          fail("Flushed while the log was failing");
+        } catch (AvroBaseException e) {
+          // the entries are still queued
+        }
+      } finally {
+        failing.set(false);
+      }
+      flushed(ab);
+      assertEquals(10, ab.count());
+      assertEquals(10, rows(current(ab)));
+    } finally {
+      ab.close();
+    }
+  }
+
+  @Test
+  public void testBackpressure() throws SQLException, InterruptedException {
+    final LoggingMysqlAB<User, byte[]> ab = getAB("backpressure");
+    try {
+      final User user = getUser();
+      final int total = LoggingMysqlAB.LOG_QUEUE_SIZE + LoggingMysqlAB.LOG_BATCH_SIZE + 100;
+      final AtomicInteger puts = new AtomicInteger();
+      Thread putter = new Thread() {
+        @Override
+        public void run() {
+          for (int i = 0; i < total; i++) {
+            put(ab, i, user);
+            puts.incrementAndGet();
+          }
+        }
+      };
+      failing.set(true);
+      try {
+        putter.start();
+        // The writer holds one batch while it retries, after that writers wait for the queue
+        long deadline = System.currentTimeMillis() + 120000;
+        int last = -1;
+        while (puts.get() != last && System.currentTimeMillis() < deadline) {
+          last = puts.get();
+          Thread.sleep(1000);
+        }
+        assertTrue(putter.isAlive());
+        assertTrue("Puts: " + puts.get(), puts.get() <= LoggingMysqlAB.LOG_QUEUE_SIZE + LoggingMysqlAB.LOG_BATCH_SIZE);
+      } finally {
+        failing.set(false);
+      }
+      putter.join();
+      flushed(ab);
+      assertEquals(total, rows(current(ab)));
+    } finally {
+      ab.close();
+    }
+  }
+
+  @Test
+  public void testRollFile() throws SQLException, IOException, InterruptedException {
+    LoggingMysqlAB<User, byte[]> ab = getAB("archive");
+    try {
+      // Archive whatever earlier runs left behind
+      File scratch = tempDir("scratch");
+      ab.roll(scratch);
+      File dir = tempDir("archive");
+
+      String first = logRows(ab, 0, 10);
+      assertEquals(1, ab.roll(dir));
+      assertFalse(exists(first));
+      assertEquals(range(0, 10), archived(new File(dir, first + ".gz")));
+
+      // An archive that is already in place is kept and the table is still dropped
+      String second = logRows(ab, 10, 20);
+      File done = new File(dir, second + ".gz");
+      write(done, "done");
+      assertEquals(1, ab.roll(dir));
+      assertFalse(exists(second));
+      assertEquals(4, done.length());
+
+      // A partial archive from a failed roll is replaced
+      String third = logRows(ab, 20, 30);
+      File tmp = new File(dir, third + ".gz.tmp");
+      write(tmp, "partial");
+      assertEquals(1, ab.roll(dir));
+      assertFalse(exists(third));
+      assertFalse(tmp.exists());
+      assertEquals(range(20, 30), archived(new File(dir, third + ".gz")));
+
+      // Rolling again leaves the archives alone
+      ab.roll(dir);
+      ab.roll(dir);
+      assertEquals(range(0, 10), archived(new File(dir, first + ".gz")));
+      assertEquals(4, done.length());
+      assertEquals(range(20, 30), archived(new File(dir, third + ".gz")));
+      assertEquals(0, filters(ab, first, second, third));
+    } finally {
+      ab.close();
+    }
+  }
+
+  // Log the rows into the current log table and wait for the next roll to start a new one
+
+  private String logRows(LoggingMysqlAB<User, byte[]> ab, int from, int to) throws SQLException, InterruptedException {
+    User user = getUser();
+    for (int i = from; i < to; i++) {
+      put(ab, i, user);
+    }
+    ab.flush();
+    String table = current(ab);
+    Thread.sleep(1100);
+    return table;
+  }
+
+  // MysqlAB has byte[] puts of its own, so go through the AvroBase ones
+
+  private void put(AvroBase<User, byte[]> ab, int i, User user) {
+    ab.put(Ints.toByteArray(i), user);
+  }
+
+  // Flush once the log writer has recovered
+
+  private void flushed(LoggingMysqlAB<User, byte[]> ab) throws InterruptedException {
+    long deadline = System.currentTimeMillis() + 30000;
+    while (true) {
+      try {
+        ab.flush();
+        return;
+      } catch (AvroBaseException e) {
+        if (System.currentTimeMillis() > deadline) throw e;
+        Thread.sleep(100);
+      }
+    }
+  }
+
+  private List<Integer> archived(File file) throws IOException {
+    List<Integer> keys = new ArrayList<Integer>();
+    DataInputStream dis = new DataInputStream(new BufferedInputStream(new GZIPInputStream(new FileInputStream(file))));
+    try {
+      while (dis.readBoolean()) {
+        byte[] row = new byte[dis.readInt()];
+        dis.readFully(row);
+        dis.readInt();
+        dis.readLong();
+        dis.readInt();
+        dis.skipBytes(dis.readInt());
+        keys.add(Ints.fromByteArray(row));
+      }
+    } finally {
+      dis.close();
+    }
+    return keys;
+  }
+
+  private List<Integer> range(int from, int to) {
+    List<Integer> keys = new ArrayList<Integer>();
+    for (int i = from; i < to; i++) {
+      keys.add(i);
+    }
+    return keys;
+  }
+
+  private File tempDir(String prefix) throws IOException {
+    File dir = File.createTempFile(prefix, "");
+    dir.delete();
+    return dir;
+  }
+
+  private void write(File file, String contents) throws IOException {
+    FileOutputStream fos = new FileOutputStream(file);
+    try {
+      fos.write(contents.getBytes());
+    } finally {
+      fos.close();
+    }
+  }
+
+  // The newest log table
+
+  private String current(LoggingMysqlAB<User, byte[]> ab) throws SQLException {
+    Connection connection = dataSource.getConnection();
+    try {
+      ResultSet tables = connection.getMetaData().getTables(null, null, ab.name() + "_%", null);
+      String current = null;
+      long newest = -1;
+      while (tables.next()) {
+        String tableName = tables.getString(3);
+        Matcher matcher = LOG_TABLE.matcher(tableName);
+        if (tableName.startsWith(ab.name() + "_") && matcher.matches() && Long.parseLong(matcher.group(1)) > newest) {
+          newest = Long.parseLong(matcher.group(1));
+          current = tableName;
+        }
+      }
+      tables.close();
+      return current;
+    } finally {
+      connection.close();
+    }
+  }
+
+  private boolean exists(String tableName) throws SQLException {
+    Connection connection = dataSource.getConnection();
+    try {
+      ResultSet tables = connection.getMetaData().getTables(null, null, tableName, null);
+      boolean exists = tables.next();
+      tables.close();
+      return exists;
+    } finally {
+      connection.close();
+    }
+  }
+
+  private long rows(String tableName) throws SQLException {
+    return count("SELECT COUNT(*) FROM " + tableName);
+  }
+
+  private long filters(LoggingMysqlAB<User, byte[]> ab, String... tableNames) throws SQLException {
+    StringBuilder sb = new StringBuilder("SELECT COUNT(*) FROM ").append(ab.name()).append("_filters WHERE table_name IN (");
+    for (int i = 0; i < tableNames.length; i++) {
+      if (i != 0) sb.append(",");
+      sb.append("?");
+    }
+    sb.append(")");
+    return count(sb.toString(), tableNames);
+  }
+
+  private long count(String sql, String... params) throws SQLException {
+    Connection connection = dataSource.getConnection();
+    try {
+      PreparedStatement ps = connection.prepareStatement(sql);
+      for (int i = 0; i < params.length; i++) {
+        ps.setString(i + 1, params[i]);
+      }
+      ResultSet rs = ps.executeQuery();
+      rs.next();
+      long count = rs.getLong(1);
+      rs.close();
+      ps.close();
+      return count;
+    } finally {
+      connection.close();
+    }
+  }
+
+  // Counts the statements that write to log tables and fails them while failing is set
+
+  private static DataSource faulty(final DataSource dataSource) {
+    return (DataSource) Proxy.newProxyInstance(DataSource.class.getClassLoader(), new Class[]{DataSource.class}, new InvocationHandler() {
+      @Override
+      public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+        Object result = call(dataSource, method, args);
+        return method.getName().equals("getConnection") ? faulty((Connection) result) : result;
+      }
+    });
+  }
+
+  private static Connection faulty(final Connection connection) {
+    return (Connection) Proxy.newProxyInstance(Connection.class.getClassLoader(), new Class[]{Connection.class}, new InvocationHandler() {
+      @Override
+      public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+        if (method.getName().equals("prepareStatement") && LOG_INSERT.matcher((String) args[0]).matches()) {
+          if (failing.get()) {
+            throw new SQLException("Log table unavailable");
+          }
+          statements.incrementAndGet();
+          int entries = ((String) args[0]).split("\\(\\?").length - 1;
+          synchronized (largest) {
+            if (entries > largest.get()) largest.set(entries);
+          }
+        }
+        return call(connection, method, args);
+      }
+    });
+  }
+
+  private static Object call(Object target, Method method, Object[] args) throws Throwable {
+    try {
+      return method.invoke(target, args);
+    } catch (InvocationTargetException e) {
+      throw e.getCause();
+    }
+  }
+
+  private User getUser() {
+    User user = new User();
+    user.email = $("spullara@yahoo.com");
+    user.firstName = $("Sam");
+    user.lastName = $("Pullara");
+    user.image = $("");
+    user.password = ByteBuffer.allocate(0);
+    return user;
+  }
+
+  Utf8 $(String s) {
+    return new Utf8(s);
+  }
+
+  private LoggingMysqlAB<User, byte[]> getAB(String family) {
+    return new LoggingMysqlAB<User, byte[]>(es, faulty(dataSource), "user", family, "avro_schemas", User.SCHEMA$, AvroFormat.BINARY, new LongBytesKeyStrategy());
+  }
+}
@@ -3,85 +3,239 @@ package avrobase.redis;
 import avrobase.AvroBaseException;
 import avrobase.AvroBaseImpl;
 import avrobase.AvroFormat;
+import avrobase.CacheTier;
 import avrobase.Row;
+import avrobase.SchemaRegistry;
 import com.google.common.base.Supplier;
 import org.apache.avro.Schema;
 import org.apache.avro.specific.SpecificRecord;
+import org.apache.commons.codec.binary.Hex;
 import redis.clients.jedis.Jedis;
-import redis.clients.jedis.JedisException;
 import redis.clients.jedis.JedisPool;
-import redis.clients.jedis.TransactionBlock;
-import sun.reflect.generics.reflectiveObjects.NotImplementedException;
+import redis.clients.jedis.Pipeline;
+import redis.clients.jedis.Response;
+import redis.clients.jedis.exceptions.JedisDataException;
 
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
-import java.util.concurrent.TimeoutException;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Random;
 
 /**
- * AvroBase on top of Redis
+ * AvroBase on top of Redis. Each row is a single hash holding the id of its schema, its
+ * version and its avro binary value, so reads are one HMGET and writes that have to check
+ * or bump the version run as a Lua script on the server in one round trip. Every row key is
+ * also kept in a sorted set with the same score so that scans can page through the keys in
+ * order with ZRANGEBYLEX.
+ * <p/>
+ * As a CacheTier the version of each row is the one the store of record gave it rather than
+ * a counter of its own. A lease is a random token in the row hash, with no value, that
+ * expires if it is never filled.
  * <p/>
  * User: sam
  * Date: Oct 3, 2010
  * Time: 11:32:10 AM
  */
 @SuppressWarnings({"unchecked"})
-public class RAB<T extends SpecificRecord> extends AvroBaseImpl<T, String> {
+public class RAB<T extends SpecificRecord> extends AvroBaseImpl<T, String> implements CacheTier<T, String> {
+
+  public static final int DEFAULT_SCAN_PAGE_SIZE = 100;
+  public static final int LEASE_SECONDS = 60;
 
   private JedisPool pool;
   private int db;
   private Supplier<String> kg;
+  private int scanPageSize = DEFAULT_SCAN_PAGE_SIZE;
+  private final Random random = new SecureRandom();
+
+  // Fields of a row hash
+  private static final byte[] s = bytes("s");
+  private static final byte[] v = bytes("v");
+  private static final byte[] d = bytes("d");
+
+  // Schemas by id, ids by schema hash and the last id assigned
+  private static final byte[] SCHEMAS = bytes("_schemas");
+  private static final byte[] SCHEMA_IDS = bytes("_schema_ids");
+  private static final byte[] SCHEMA_SEQ = bytes("_schema_seq");
+
+  // Every row key, all with score 0 so they sort lexicographically
+  private static final byte[] ROWS = bytes("_rows");
+
+  // Store a value and bump the version, returning the new version. Any lease a tier read
+  // took on the row is cleared along with its expiry.
+  private static final Script PUT = new Script(
+      "redis.call('HMSET', KEYS[1], 's', ARGV[1], 'd', ARGV[2])\n" +
+      "redis.call('HDEL', KEYS[1], 'l')\n" +
+      "redis.call('PERSIST', KEYS[1])\n" +
+      "redis.call('ZADD', KEYS[2], 0, KEYS[1])\n" +
+      "return redis.call('HINCRBY', KEYS[1], 'v', 1)");
+
+  // Store a value if the version matches, version 0 meaning that the row must not exist,
+  // clearing any lease like PUT
+  private static final Script CAS = new Script(
+      "local v = redis.call('HGET', KEYS[1], 'v')\n" +
+      "if ARGV[1] == '0' then\n" +
+      "  if v then return 0 end\n" +
+      "elseif v ~= ARGV[1] then\n" +
+      "  return 0\n" +
+      "end\n" +
+      "redis.call('HMSET', KEYS[1], 'v', ARGV[2], 's', ARGV[3], 'd', ARGV[4])\n" +
+      "redis.call('HDEL', KEYS[1], 'l')\n" +
+      "redis.call('PERSIST', KEYS[1])\n" +
+      "redis.call('ZADD', KEYS[2], 0, KEYS[1])\n" +
+      "return 1");
+
+  // Store a value at the given version unless the row is already at that version or later.
+  // With a lease, ARGV[4], the row must still be leased with it or cached at an older
+  // version. Versions are compared as decimal strings, longer is later, since Lua numbers
+  // are doubles.
+  private static final Script CACHE = new Script(
+      "local l = redis.call('HGET', KEYS[1], 'l')\n" +
+      "local v = redis.call('HGET', KEYS[1], 'v')\n" +
+      "if l and ARGV[4] then\n" +
+      "  if l ~= ARGV[4] then return 0 end\n" +
+      "elseif ARGV[4] and not v then\n" +
+      "  return 0\n" +
+      "elseif v and (#v > #ARGV[1] or (#v == #ARGV[1] and v >= ARGV[1])) then\n" +
+      "  return 0\n" +
+      "end\n" +
+      "redis.call('HMSET', KEYS[1], 'v', ARGV[1], 's', ARGV[2], 'd', ARGV[3])\n" +
+      "redis.call('HDEL', KEYS[1], 'l')\n" +
+      "redis.call('PERSIST', KEYS[1])\n" +
+      "redis.call('ZADD', KEYS[2], 0, KEYS[1])\n" +
+      "return 1");
+
+  // Lease a row that isn't cached, sharing the lease already taken if there is one
+  private static final Script LEASE = new Script(
+      "if redis.call('HEXISTS', KEYS[1], 'v') == 1 then return '0' end\n" +
+      "if redis.call('HSETNX', KEYS[1], 'l', ARGV[1]) == 1 then\n" +
+      "  redis.call('EXPIRE', KEYS[1], ARGV[2])\n" +
+      "end\n" +
+      "return redis.call('HGET', KEYS[1], 'l')");
+
+  // Remove a row and its key
+  private static final Script DELETE = new Script(
+      "redis.call('ZREM', KEYS[2], KEYS[1])\n" +
+      "return redis.call('DEL', KEYS[1])");
+
+  // Page of row keys in a lexicographic range, run as a script since the client has no command for it
+  private static final Script RANGE = new Script(
+      "return redis.call('ZRANGEBYLEX', KEYS[1], ARGV[1], ARGV[2], 'LIMIT', 0, tonumber(ARGV[3]))");
+
+  // Find or assign the id of a schema by its hash
+  private static final Script SCHEMA = new Script(
+      "local id = redis.call('HGET', KEYS[2], ARGV[1])\n" +
+      "if id then return tonumber(id) end\n" +
+      "id = redis.call('INCR', KEYS[3])\n" +
+      "redis.call('HSET', KEYS[2], ARGV[1], id)\n" +
+      "redis.call('HSET', KEYS[1], id, ARGV[2])\n" +
+      "return id");
+
+  private final SchemaRegistry<String> schemas = new SchemaRegistry<String>(new SchemaRegistry.Store<String>() {
+    @Override
+    public Schema load(final String schemaId) throws AvroBaseException {
+      byte[] doc = execute(new Command<byte[]>() {
+        @Override
+        byte[] run(Jedis j) {
+          return j.hget(SCHEMAS, bytes(schemaId));
+        }
+      });
+      return doc == null ? null : SchemaRegistry.parse(schemaId, doc);
+    }
 
-  private static final String d = "_d";
-  private static final String s = "_s";
-  private static final String v = "_v";
-  private static final String z = "_z";
+    @Override
+    public String store(Schema schema) throws AvroBaseException {
+      final String doc = schema.toString();
+      Long id = execute(new Command<Long>() {
+        @Override
+        Long run(Jedis j) {
+          return (Long) SCHEMA.eval(j, Arrays.asList(SCHEMAS, SCHEMA_IDS, SCHEMA_SEQ),
+              Arrays.asList(bytes(SchemaRegistry.hash(doc)), bytes(doc)));
+        }
+      });
+      return String.valueOf(id);
+    }
+  });
 
   public RAB(JedisPool pool, int db, Supplier<String> kg, Schema actualSchema) {
-    super(actualSchema, AvroFormat.JSON);
+    super(actualSchema, AvroFormat.BINARY);
     this.pool = pool;
     this.db = db;
     this.kg = kg;
   }
 
+  /**
+   * @param scanPageSize rows fetched per round trip when scanning, which also bounds how long
+   *                     each scan command holds up the server
+   */
+  public void setScanPageSize(int scanPageSize) {
+    if (scanPageSize < 1) {
+      throw new IllegalArgumentException("Page size must be positive: " + scanPageSize);
+    }
+    this.scanPageSize = scanPageSize;
+  }
+
   @Override
   public Row<T, String> get(final String row) throws AvroBaseException {
-    try {
-      boolean returned = false;
-      final Jedis j = pool.getResource();
-      try {
-        j.select(db);
-        List<Object> results;
-        do {
-          results = j.multi(new TransactionBlock() {
-            @Override
-            public void execute() throws JedisException {
-              mget(row + s, row + v, row + d);
-            }
-          });
-        } while (results == null);
-        if (results.size() != 1 || (results = (List<Object>) results.get(0)).size() != 3) {
-          throw new AvroBaseException("Incorrect number of results from redis transaction: " + results);
-        }
-        String schemaId = (String) results.get(0);
-        String versionStr = (String) results.get(1);
-        String data = (String) results.get(2);
-        if (versionStr == null || schemaId == null || data == null) {
-          return null;
-        }
-        Schema schema = schemaCache.get(schemaId);
-        if (schema == null) {
-          schema = loadSchema(j.get(schemaId + z).getBytes(), schemaId);
+    List<byte[]> fields = execute(new Command<List<byte[]>>() {
+      @Override
+      List<byte[]> run(Jedis j) {
+        return j.hmget(bytes(row), s, v, d);
+      }
+    });
+    return readRow(row, fields);
+  }
+
+  /**
+   * Get many rows in one round trip.
+   *
+   * @param rows
+   * @return the rows that exist, in the order they were asked for
+   */
+  public Map<String, Row<T, String>> getAll(Collection<String> rows) throws AvroBaseException {
+    final List<byte[]> keys = new ArrayList<byte[]>(rows.size());
+    for (String row : rows) {
+      keys.add(bytes(row));
+    }
+    Map<String, Row<T, String>> found = new LinkedHashMap<String, Row<T, String>>();
+    for (Row<T, String> r : fetch(keys)) {
+      found.put(r.row, r);
+    }
+    return found;
+  }
+
+  // Fetch the rows under these keys in one pipeline, leaving out any that are missing
+
+  private List<Row<T, String>> fetch(final List<byte[]> keys) throws AvroBaseException {
+    List<Response<List<byte[]>>> responses = execute(new Command<List<Response<List<byte[]>>>>() {
+      @Override
+      List<Response<List<byte[]>>> run(Jedis j) {
+        List<Response<List<byte[]>>> responses = new ArrayList<Response<List<byte[]>>>(keys.size());
+        Pipeline p = j.pipelined();
+        for (byte[] key : keys) {
+          responses.add(p.hmget(key, s, v, d));
         }
-        return new Row<T, String>(readValue(data.getBytes(), schema, format), row, Long.parseLong(versionStr));
-      } catch (Exception e) {
-        pool.returnBrokenResource(j);
-        returned = true;
-        throw new AvroBaseException(e);
-      } finally {
-        if (!returned) pool.returnResource(j);
+        p.sync();
+        return responses;
+      }
+    });
+    List<Row<T, String>> found = new ArrayList<Row<T, String>>(keys.size());
+    for (int i = 0; i < keys.size(); i++) {
+      Row<T, String> r = readRow(new String(keys.get(i), UTF8), responses.get(i).get());
+      if (r != null) {
+        found.add(r);
       }
-    } catch (TimeoutException e) {
-      throw new AvroBaseException("Timed out", e);
     }
+    return found;
   }
 
   @Override
@@ -95,118 +249,262 @@ public class RAB<T extends SpecificRecord> extends AvroBaseImpl<T, String> {
 
   @Override
   public void put(final String row, final T value) throws AvroBaseException {
-    try {
-      boolean returned = false;
-      Jedis j = pool.getResource();
-      try {
-        j.select(db);
-        Schema schema = value.getSchema();
-        String schemaKey = hashCache.get(schema);
-        if (schemaKey == null) {
-          final String doc = schema.toString();
-          schemaKey = createSchemaKey(schema, doc);
-          j.set(schemaKey + z, doc);
-        }
-        final String finalSchemaKey = schemaKey;
-        List<Object> results;
-        do {
-          results = j.multi(new TransactionBlock() {
-            @Override
-            public void execute() throws JedisException {
-              incr(row + v);
-              mset(row + s, finalSchemaKey, row + d, new String(serialize(value), UTF8));
-            }
-          });
-        } while (results == null);
-      } catch (Exception e) {
-        pool.returnBrokenResource(j);
-        returned = true;
-        throw new AvroBaseException(e);
-      } finally {
-        if (!returned) pool.returnResource(j);
+    final byte[] schemaId = bytes(schemas.getId(value.getSchema()));
+    final byte[] data = serialize(value);
+    execute(new Command<Object>() {
+      @Override
+      Object run(Jedis j) {
+        return PUT.eval(j, Arrays.asList(bytes(row), ROWS), Arrays.asList(schemaId, data));
       }
-    } catch (TimeoutException e) {
-      throw new AvroBaseException("Timed out", e);
+    });
+  }
+
+  /**
+   * Put many rows in one round trip without checking their versions. Each row is written
+   * atomically but other clients may see some of the rows written before the rest.
+   *
+   * @param values by row
+   */
+  public void putAll(Map<String, T> values) throws AvroBaseException {
+    final Map<byte[], Map<byte[], byte[]>> hashes = new LinkedHashMap<byte[], Map<byte[], byte[]>>();
+    for (Map.Entry<String, T> entry : values.entrySet()) {
+      T value = entry.getValue();
+      Map<byte[], byte[]> hash = new HashMap<byte[], byte[]>();
+      hash.put(s, bytes(schemas.getId(value.getSchema())));
+      hash.put(d, serialize(value));
+      hashes.put(bytes(entry.getKey()), hash);
     }
+    execute(new Command<Object>() {
+      @Override
+      Object run(Jedis j) {
+        Pipeline p = j.pipelined();
+        for (Map.Entry<byte[], Map<byte[], byte[]>> entry : hashes.entrySet()) {
+          p.multi();
+          p.hmset(entry.getKey(), entry.getValue());
+          p.hincrBy(entry.getKey(), v, 1);
+          p.zadd(ROWS, 0, entry.getKey());
+          p.exec();
+        }
+        p.sync();
+        return null;
+      }
+    });
   }
 
   @Override
   public boolean put(final String row, final T value, final long version) throws AvroBaseException {
-    try {
-      boolean returned = false;
-      final Jedis j = pool.getResource();
-      try {
-        j.select(db);
-        Schema schema = value.getSchema();
-        String schemaKey = hashCache.get(schema);
-        if (schemaKey == null) {
-          final String doc = schema.toString();
-          schemaKey = createSchemaKey(schema, doc);
-          j.set(schemaKey + z, doc);
-        }
-        String watch = j.watch(row + v);
-        if (!watch.equals("OK")) {
-          return false;
-        }
-        String versionStr = j.get(row + v);
-        if ((versionStr == null && version != 0) || // row missing but version set
-            (versionStr != null && version == 0) || // row exists but insert requested
-            (versionStr != null && !versionStr.equals(String.valueOf(version))) // version in db doesn't match
-            ) {
-          return false;
-        }
-        final String finalSchemaKey = schemaKey;
-        List<Object> results = j.multi(new TransactionBlock() {
+    final byte[] schemaId = bytes(schemas.getId(value.getSchema()));
+    final byte[] data = serialize(value);
+    Long stored = execute(new Command<Long>() {
+      @Override
+      Long run(Jedis j) {
+        return (Long) CAS.eval(j, Arrays.asList(bytes(row), ROWS),
+            Arrays.asList(bytes(String.valueOf(version)), bytes(String.valueOf(version + 1)), schemaId, data));
+      }
+    });
+    return stored == 1;
+  }
+
+  @Override
+  public void delete(final String row) throws AvroBaseException {
+    execute(new Command<Long>() {
+      @Override
+      Long run(Jedis j) {
+        return (Long) DELETE.eval(j, Arrays.asList(bytes(row), ROWS), new ArrayList<byte[]>());
+      }
+    });
+  }
+
+  @Override
+  public Row<T, String> getCached(String row) throws AvroBaseException {
+    return get(row);
+  }
+
+  @Override
+  public void cache(final Row<T, String> row) throws AvroBaseException {
+    final byte[] schemaId = bytes(schemas.getId(row.value.getSchema()));
+    final byte[] data = serialize(row.value);
+    execute(new Command<Object>() {
+      @Override
+      Object run(Jedis j) {
+        return CACHE.eval(j, Arrays.asList(bytes(row.row), ROWS),
+            Arrays.asList(bytes(String.valueOf(row.version)), schemaId, data));
+      }
+    });
+  }
+
+  @Override
+  public long lease(final String row) throws AvroBaseException {
+    long token = 0;
+    while (token == 0) {
+      token = random.nextLong();
+    }
+    final byte[] proposed = bytes(String.valueOf(token));
+    byte[] leased = execute(new Command<byte[]>() {
+      @Override
+      byte[] run(Jedis j) {
+        return (byte[]) LEASE.eval(j, Arrays.asList(bytes(row)),
+            Arrays.asList(proposed, bytes(String.valueOf(LEASE_SECONDS))));
+      }
+    });
+    return Long.parseLong(new String(leased, UTF8));
+  }
+
+  @Override
+  public void cache(final Row<T, String> row, long lease) throws AvroBaseException {
+    final byte[] schemaId = bytes(schemas.getId(row.value.getSchema()));
+    final byte[] data = serialize(row.value);
+    final byte[] token = bytes(String.valueOf(lease));
+    execute(new Command<Object>() {
+      @Override
+      Object run(Jedis j) {
+        return CACHE.eval(j, Arrays.asList(bytes(row.row), ROWS),
+            Arrays.asList(bytes(String.valueOf(row.version)), schemaId, data, token));
+      }
+    });
+  }
+
+  @Override
+  public void invalidate(String row) throws AvroBaseException {
+    delete(row);
+  }
+
+  /**
+   * Rows in key order, fetched a page at a time.
+   *
+   * @param startRow first row, inclusive, or null to start at the beginning
+   * @param stopRow  last row, exclusive, or null to scan to the end
+   * @return
+   */
+  @Override
+  public Iterable<Row<T, String>> scan(final String startRow, final String stopRow) throws AvroBaseException {
+    return new Iterable<Row<T, String>>() {
+      @Override
+      public Iterator<Row<T, String>> iterator() {
+        return new Iterator<Row<T, String>>() {
+          String from = startRow == null ? "-" : "[" + startRow;
+          final String to = stopRow == null ? "+" : "(" + stopRow;
+          Iterator<Row<T, String>> page;
+          boolean done;
+
+          @Override
+          public boolean hasNext() {
+            while ((page == null || !page.hasNext()) && !done) {
+              List<byte[]> keys = range(from, to, scanPageSize);
+              if (keys.size() < scanPageSize) {
+                done = true;
+              }
+              if (!keys.isEmpty()) {
+                from = "(" + new String(keys.get(keys.size() - 1), UTF8);
+              }
+              // Rows deleted since the page of keys was read are left out
+              page = fetch(keys).iterator();
+            }
+            return page != null && page.hasNext();
+          }
+
+          @Override
+          public Row<T, String> next() {
+            if (!hasNext()) {
+              throw new NoSuchElementException();
+            }
+            return page.next();
+          }
+
           @Override
-          public void execute() throws JedisException {
-            mset(row + v, String.valueOf(version + 1), row + s, finalSchemaKey, row + d, new String(serialize(value), UTF8));
+          public void remove() {
+            throw new UnsupportedOperationException();
           }
-        });
-        return results != null;
-      } catch (Exception e) {
-        pool.returnBrokenResource(j);
-        returned = true;
-        throw new AvroBaseException(e);
-      } finally {
-        if (!returned) pool.returnResource(j);
+        };
       }
-    } catch (TimeoutException e) {
-      throw new AvroBaseException("Timed out", e);
+    };
+  }
+
+  // Up to limit row keys between the ZRANGEBYLEX bounds
+
+  private List<byte[]> range(final String from, final String to, final int limit) throws AvroBaseException {
+    return execute(new Command<List<byte[]>>() {
+      @Override
+      List<byte[]> run(Jedis j) {
+        return (List<byte[]>) RANGE.eval(j, Arrays.asList(ROWS),
+            Arrays.asList(bytes(from), bytes(to), bytes(String.valueOf(limit))));
+      }
+    });
+  }
+
+  // Decode the schema id, version and value fields of a row hash
+
+  private Row<T, String> readRow(String row, List<byte[]> fields) throws AvroBaseException {
+    if (fields.size() != 3) {
+      throw new AvroBaseException("Incorrect number of fields from redis: " + fields.size());
+    }
+    byte[] schemaId = fields.get(0);
+    byte[] version = fields.get(1);
+    byte[] data = fields.get(2);
+    if (schemaId == null || version == null || data == null) {
+      return null;
+    }
+    String id = new String(schemaId, UTF8);
+    Schema schema = schemas.getSchema(id);
+    if (schema == null) {
+      throw new AvroBaseException("Failed to find schema: " + id);
     }
+    return new Row<T, String>(readValue(data, schema, format), row, Long.parseLong(new String(version, UTF8)));
   }
 
-  @Override
-  public void delete(final String row) throws AvroBaseException {
+  /**
+   * Something to run with a connection to the right database.
+   */
+  private abstract static class Command<V> {
+    abstract V run(Jedis j);
+  }
+
+  // Run the command on a pooled connection, discarding the connection if it fails
+
+  private <V> V execute(Command<V> command) throws AvroBaseException {
+    boolean returned = false;
+    Jedis j = pool.getResource();
     try {
-      boolean returned = false;
-      Jedis j = pool.getResource();
+      j.select(db);
+      return command.run(j);
+    } catch (Exception e) {
+      pool.returnBrokenResource(j);
+      returned = true;
+      throw new AvroBaseException(e);
+    } finally {
+      if (!returned) pool.returnResource(j);
+    }
+  }
+
+  /**
+   * A Lua script that is sent to the server once and then run by its digest.
+   */
+  private static class Script {
+    private final byte[] script;
+    private final byte[] sha1;
+
+    Script(String script) {
+      this.script = bytes(script);
       try {
-        j.select(db);
-        List<Object> results;
-        do {
-          results = j.multi(new TransactionBlock() {
-            @Override
-            public void execute() throws JedisException {
-              del(row + v); // Delete the version first and it is deleted
-              del(row + d);
-              del(row + s);
-            }
-          });
-        } while (results == null);
-      } catch (Exception e) {
-        pool.returnBrokenResource(j);
-        returned = true;
-        throw new AvroBaseException(e);
-      } finally {
-        if (!returned) pool.returnResource(j);
+        sha1 = bytes(new String(Hex.encodeHex(MessageDigest.getInstance("SHA-1").digest(this.script))));
+      } catch (NoSuchAlgorithmException e) {
+        throw new AssertionError(e);
+      }
+    }
+
+    Object eval(Jedis j, List<byte[]> keys, List<byte[]> args) {
+      try {
+        return j.evalsha(sha1, keys, args);
+      } catch (JedisDataException e) {
+        if (e.getMessage() == null || !e.getMessage().startsWith("NOSCRIPT")) {
+          throw e;
+        }
+        return j.eval(script, keys, args);
       }
-    } catch (TimeoutException e) {
-      throw new AvroBaseException("Timed out", e);
     }
   }
 
-  @Override
-  public Iterable<Row<T, String>> scan(String startRow, String stopRow) throws AvroBaseException {
-    throw new NotImplementedException();
+  private static byte[] bytes(String string) {
+    return string.getBytes(UTF8);
   }
 }
@@ -4,14 +4,19 @@ import avrobase.Row;
 import bagcheck.User;
 import com.google.common.base.Supplier;
 import org.apache.avro.util.Utf8;
+import org.apache.commons.pool.impl.GenericObjectPool;
 import org.junit.Test;
+import redis.clients.jedis.Jedis;
 import redis.clients.jedis.JedisPool;
 
 import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.security.SecureRandom;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Random;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
@@ -63,6 +68,31 @@ public class RABTest {
     assertFalse(userRAB.put("test", user, test.version));
   }
 
+  @Test
+  public void leaseThenPut() {
+    RAB<User> userRAB = getRAB();
+    User user = getUser();
+    Jedis jedis = new Jedis("localhost");
+    try {
+      // A tier read leases the row, then it is written through the store API
+      userRAB.delete("leased");
+      assertTrue(userRAB.lease("leased") != 0);
+      userRAB.put("leased", user);
+      assertEquals(-1, (long) jedis.ttl("leased"));
+      assertFalse(jedis.hexists("leased", "l"));
+
+      userRAB.delete("leased");
+      assertTrue(userRAB.lease("leased") != 0);
+      assertTrue(userRAB.put("leased", user, 0));
+      assertEquals(-1, (long) jedis.ttl("leased"));
+      assertFalse(jedis.hexists("leased", "l"));
+      assertEquals(user, userRAB.get("leased").value);
+      userRAB.delete("leased");
+    } finally {
+      jedis.disconnect();
+    }
+  }
+
   @Test
   public void create() {
     RAB<User> userRAB = getRAB();
@@ -74,6 +104,43 @@ public class RABTest {
     assertEquals(null, userRAB.get(s));
   }
 
+  @Test
+  public void putAllGetAll() {
+    RAB<User> userRAB = getRAB();
+    User user = getUser();
+    Map<String, User> users = new LinkedHashMap<String, User>();
+    for (int i = 0; i < 10; i++) {
+      users.put("batch" + i, user);
+    }
+    userRAB.delete("batch10");
+    userRAB.putAll(users);
+    List<String> rows = new ArrayList<String>(users.keySet());
+    rows.add("batch10");
+    Map<String, Row<User, String>> found = userRAB.getAll(rows);
+    assertEquals(users.keySet(), found.keySet());
+    for (Row<User, String> row : found.values()) {
+      assertEquals(user, row.value);
+      assertTrue(userRAB.put(row.row, user, row.version));
+    }
+  }
+
+  @Test
+  public void scan() {
+    RAB<User> userRAB = getRAB();
+    userRAB.setScanPageSize(3);
+    User user = getUser();
+    for (int i = 0; i < 10; i++) {
+      userRAB.put("scan" + i, user);
+    }
+    userRAB.delete("scan5");
+    List<String> rows = new ArrayList<String>();
+    for (Row<User, String> row : userRAB.scan("scan2", "scan8")) {
+      assertEquals(user, row.value);
+      rows.add(row.row);
+    }
+    assertEquals(Arrays.asList("scan2", "scan3", "scan4", "scan6", "scan7"), rows);
+  }
+
   @Test
   public void multithreadedContention() throws InterruptedException, IOException {
     final RAB<User> userRAB = getRAB();
@@ -172,10 +239,9 @@ public class RABTest {
   }
 
   private JedisPool getPool() {
-    JedisPool pool = new JedisPool("localhost");
-    pool.setResourcesNumber(100);
-    pool.init();
-    return pool;
+    GenericObjectPool.Config config = new GenericObjectPool.Config();
+    config.maxActive = 100;
+    return new JedisPool(config, "localhost");
   }
 
   private User getUser() {